@@ -0,0 +1,218 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Authenticated encryption of messages with AES-GCM, working on {@link ByteBuffer}s so a message can be encrypted
+ * straight into an outbound frame buffer and decrypted straight out of an inbound one, direct buffers included,
+ * without intermediate arrays. The cipher is created once and reinitialised with a fresh nonce for every message.
+ * <p>
+ * An encrypted message is the 12-byte nonce followed by the ciphertext and the 16-byte tag. The nonce is a 4-byte
+ * salt, random unless given, followed by an 8-byte counter, so an engine never repeats a nonce; two engines sharing
+ * a key must use different salts, such as one per direction of a session. An engine keeps the state of its cipher
+ * between calls, so it must be confined to one thread.
+ * <p>
+ * An engine made with {@link #forReceiving(byte[], int)} only decrypts, and only the messages of the engine with the
+ * given salt. It remembers the counters of the last {@link #REPLAY_WINDOW} nonces below the highest one it accepted,
+ * so a message is read at most once: a repeated counter, or one too old to be remembered, is rejected, while messages
+ * reordered within the window are still read.
+ */
+public class AesGcmEngine {
+
+    /** The length of the nonce in bytes. */
+    public static final int NONCE_LENGTH = 12;
+    /** The length of the authentication tag in bytes. */
+    public static final int TAG_LENGTH = 16;
+    /** The number of bytes an encrypted message adds to its plaintext. */
+    public static final int OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+    /** The number of counters below the highest one received that a receiving engine remembers. */
+    public static final int REPLAY_WINDOW = Long.SIZE;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] receivedNonce = new byte[NONCE_LENGTH];
+    private long counter;
+    private final boolean receiving;
+    /** The highest counter received, and a bitmap of the counters received up to it, bit {@code i} for highest - i. */
+    private long highestReceived;
+    private long window;
+
+    /**
+     * Constructs an engine for the given key with a random salt.
+     *
+     * @param key the AES key of 16, 24 or 32 bytes
+     * @throws GeneralSecurityException if AES-GCM is not available
+     */
+    public AesGcmEngine(byte[] key) throws GeneralSecurityException {
+        this(key, new SecureRandom().nextInt());
+    }
+
+    /**
+     * Constructs an engine for the given key and salt.
+     *
+     * @param key the AES key of 16, 24 or 32 bytes
+     * @param salt the first four bytes of every nonce of this engine
+     * @throws GeneralSecurityException if AES-GCM is not available
+     */
+    public AesGcmEngine(byte[] key, int salt) throws GeneralSecurityException {
+        this(key, salt, false);
+    }
+
+    private AesGcmEngine(byte[] key, int salt, boolean receiving) throws GeneralSecurityException {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("An AES key has 16, 24 or 32 bytes.");
+        }
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.key = new SecretKeySpec(key, "AES");
+        ByteBuffer.wrap(nonce).putInt(salt);
+        this.receiving = receiving;
+    }
+
+    /**
+     * Constructs an engine that decrypts the messages of the engine with the given key and salt, each at most once.
+     *
+     * @param key the AES key of 16, 24 or 32 bytes
+     * @param salt the salt of the sending engine
+     * @return the receiving engine
+     * @throws GeneralSecurityException if AES-GCM is not available
+     */
+    public static AesGcmEngine forReceiving(byte[] key, int salt) throws GeneralSecurityException {
+        return new AesGcmEngine(key, salt, true);
+    }
+
+    /**
+     * Gets the size of a message once encrypted.
+     *
+     * @param plaintextLength the size of the plaintext
+     * @return the size of the encrypted message
+     */
+    public static int encryptedSize(int plaintextLength) {
+        return plaintextLength + OVERHEAD;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the plaintext into the output, advancing both buffers. To encrypt in place,
+     * the output may be a view of the same memory that starts {@link #NONCE_LENGTH} bytes before the plaintext: the
+     * nonce fills the gap and the ciphertext overwrites the plaintext, followed by the tag.
+     *
+     * @param plaintext the message to encrypt
+     * @param out the buffer receiving the nonce, the ciphertext and the tag
+     * @return the number of bytes written
+     * @throws GeneralSecurityException if the encryption fails or the output is too small
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        if (out.remaining() < encryptedSize(plaintext.remaining())) {
+            throw new ShortBufferException("The output cannot hold the encrypted message.");
+        }
+        if (receiving) {
+            throw new IllegalStateException("A receiving engine does not encrypt.");
+        }
+        if (counter == -1) {
+            throw new IllegalStateException("The nonces of this engine are exhausted.");
+        }
+        ByteBuffer.wrap(nonce).putLong(4, ++counter);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        out.put(nonce);
+        return NONCE_LENGTH + cipher.doFinal(plaintext, out);
+    }
+
+    /**
+     * Decrypts the remaining bytes of an encrypted message into the output, advancing both buffers. To decrypt in
+     * place, the output may be a view of the same memory that starts where the encrypted message starts.
+     *
+     * @param encrypted the nonce, the ciphertext and the tag
+     * @param out the buffer receiving the plaintext
+     * @return the number of bytes written
+     * @throws AEADBadTagException if the message was altered or encrypted with another key
+     * @throws GeneralSecurityException if the decryption fails, the output is too small or, for a receiving engine,
+     *         the message comes from another engine or was already received
+     */
+    public int decrypt(ByteBuffer encrypted, ByteBuffer out) throws GeneralSecurityException {
+        if (encrypted.remaining() < OVERHEAD) {
+            throw new AEADBadTagException("The message is shorter than a nonce and a tag.");
+        }
+        encrypted.get(receivedNonce);
+        long count = ByteBuffer.wrap(receivedNonce).getLong(4);
+        if (receiving) {
+            checkReplay(count);
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, receivedNonce));
+        int written = cipher.doFinal(encrypted, out);
+        if (receiving) {
+            markReceived(count);
+        }
+        return written;
+    }
+
+    /**
+     * Rejects a message from another engine, or one whose counter was already received or left the window.
+     */
+    private void checkReplay(long count) throws GeneralSecurityException {
+        if (!Arrays.equals(nonce, 0, 4, receivedNonce, 0, 4)) {
+            throw new AEADBadTagException("The message was not encrypted by the expected engine.");
+        }
+        if (count < 1) {
+            throw new GeneralSecurityException("The message has an invalid counter.");
+        }
+        if (count <= highestReceived && (highestReceived - count >= REPLAY_WINDOW
+                || (window >>> (highestReceived - count) & 1) != 0)) {
+            throw new GeneralSecurityException("The message was already received, or is too old to tell.");
+        }
+    }
+
+    /**
+     * Records the counter of a message that was decrypted. Called only after the tag of the message was checked, so
+     * a forged nonce cannot move the window.
+     */
+    private void markReceived(long count) {
+        if (count > highestReceived) {
+            long shift = count - highestReceived;
+            window = shift >= REPLAY_WINDOW ? 1 : window << shift | 1;
+            highestReceived = count;
+        } else {
+            window |= 1L << (highestReceived - count);
+        }
+    }
+
+    /**
+     * Encrypts a message held in an array.
+     *
+     * @param message the message to encrypt
+     * @return the nonce, the ciphertext and the tag
+     * @throws GeneralSecurityException if the encryption fails
+     */
+    public byte[] encrypt(byte[] message) throws GeneralSecurityException {
+        ByteBuffer out = ByteBuffer.allocate(encryptedSize(message.length));
+        encrypt(ByteBuffer.wrap(message), out);
+        return out.array();
+    }
+
+    /**
+     * Decrypts a message held in an array.
+     *
+     * @param encrypted the nonce, the ciphertext and the tag
+     * @return the message
+     * @throws GeneralSecurityException if the message was altered or the decryption fails
+     */
+    public byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
+        ByteBuffer out = ByteBuffer.allocate(Math.max(0, encrypted.length - OVERHEAD));
+        decrypt(ByteBuffer.wrap(encrypted), out);
+        return out.array();
+    }
+
+    /**
+     * Gets the number of messages encrypted by this engine.
+     *
+     * @return the number of nonces used
+     */
+    public long getMessageCount() {
+        return counter;
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signs the certificates of a CA in batches with {@link MerkleSignature}, so a wave of certificate requests costs
+ * one RSA operation per batch instead of one per certificate. The handlers hand their digests to a single signing
+ * thread and wait for their signature. The thread takes the first waiting digest, collects the digests that arrive
+ * within the window, up to the batch size, and signs them together; with no window it signs whatever queued up
+ * while the previous batch was being signed, so an idle CA answers at once and a busy one batches on its own.
+ */
+public class BatchSigner implements Closeable {
+
+    private final PrivateKey privateKey;
+    private final Settings settings;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread signer;
+    private final LongAdder certificates = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Constructs a batch signer and starts its signing thread.
+     *
+     * @param privateKey the private key of the CA
+     * @param settings the window and the size of the batches
+     */
+    public BatchSigner(PrivateKey privateKey, Settings settings) {
+        this.privateKey = privateKey;
+        this.settings = settings;
+        this.signer = new Thread(this::run, "batch-signer");
+        signer.setDaemon(true);
+        signer.start();
+    }
+
+    /**
+     * Signs the digest of a certificate in the next batch, waiting until the batch is signed.
+     *
+     * @param digest the SHA-256 digest of the certificate data
+     * @return the signature of the certificate with its inclusion path
+     * @throws GeneralSecurityException if the batch cannot be signed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public byte[] sign(byte[] digest) throws GeneralSecurityException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("The batch signer is closed.");
+        }
+        Request request = new Request(digest, new CompletableFuture<>());
+        queue.add(request);
+        if (closed && queue.remove(request)) {
+            throw new IllegalStateException("The batch signer is closed.");
+        }
+        try {
+            return request.signature().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException cause) {
+                throw cause;
+            }
+            throw new GeneralSecurityException(e.getCause());
+        }
+    }
+
+    /**
+     * Collects and signs batches until the signer is closed.
+     */
+    private void run() {
+        List<Request> batch = new ArrayList<>(settings.batchSize());
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.windowMillis());
+                while (batch.size() < settings.batchSize()) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                fail(batch, new GeneralSecurityException("The batch signer was closed."));
+                break;
+            }
+            List<byte[]> digests = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                digests.add(request.digest());
+            }
+            try {
+                byte[][] signatures = MerkleSignature.sign(digests, privateKey);
+                batches.increment();
+                certificates.add(batch.size());
+                for (int i = 0; i < signatures.length; i++) {
+                    batch.get(i).signature().complete(signatures[i]);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                fail(batch, e);
+            }
+            batch.clear();
+        }
+        List<Request> left = new ArrayList<>();
+        queue.drainTo(left);
+        fail(left, new GeneralSecurityException("The batch signer was closed."));
+    }
+
+    private static void fail(List<Request> requests, Exception cause) {
+        for (Request request : requests) {
+            request.signature().completeExceptionally(cause);
+        }
+        requests.clear();
+    }
+
+    /**
+     * Gets the number of certificates signed.
+     *
+     * @return the number of certificates
+     */
+    public long getCertificateCount() {
+        return certificates.sum();
+    }
+
+    /**
+     * Gets the number of batches signed, which is the number of RSA operations.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Stops the signing thread, failing the requests that are still waiting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signer.interrupt();
+    }
+
+    /**
+     * A digest waiting for its signature.
+     */
+    private record Request(byte[] digest, CompletableFuture<byte[]> signature) {
+    }
+
+    /**
+     * The batching of a signer.
+     *
+     * @param batchSize the largest number of certificates signed together
+     * @param windowMillis the time the signer waits for more certificates after the first one of a batch, or 0 to
+     *                     only batch the certificates that queued up during the previous signature
+     */
+    public record Settings(int batchSize, long windowMillis) {
+
+        /**
+         * Validates the batching.
+         */
+        public Settings {
+            if (batchSize < 1 || batchSize > 1 << 16 || windowMillis < 0) {
+                throw new IllegalArgumentException("The batching of a signer is invalid.");
+            }
+        }
+
+        /**
+         * Reads the batching from the {@code ca.batchSize} (default 1, which disables batching) and
+         * {@code ca.batchWindowMillis} (default 0) system properties.
+         *
+         * @return the configured batching
+         */
+        public static Settings fromProperties() {
+            return new Settings(Integer.getInteger("ca.batchSize", 1), Long.getLong("ca.batchWindowMillis", 0));
+        }
+    }
+}
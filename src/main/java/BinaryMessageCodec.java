@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * A {@link MessageCodec} with a compact binary layout, avoiding the class descriptors and reflection of Java
+ * serialization. A payload is laid out as follows, where every length is an unsigned varint holding the length plus
+ * one, so that zero stands for a null field:
+ *
+ * <pre>
+ * version (1 byte) | kind (1 byte) | type (1 byte) | sender (varint + UTF-8) | recipient (varint + UTF-8)
+ *                  | message (varint + bytes) | kind-specific fields
+ * </pre>
+ *
+ * A {@link KeyMessage} appends the algorithm of its public key (varint + UTF-8) and the X.509 encoding of the key
+ * (varint + bytes). A {@link LoginMessage} appends the roster version known to the client and a {@link RosterMessage}
+ * the version of its roster, each as 8 big-endian bytes.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    /** The identifier of the codec. */
+    public static final byte ID = 1;
+
+    /** The version of the payload layout. */
+    public static final byte VERSION = 1;
+
+    /** The shared instance of the codec. */
+    public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+
+    private static final byte KIND_MESSAGE = 0;
+    private static final byte KIND_KEY_MESSAGE = 1;
+    private static final byte KIND_LOGIN_MESSAGE = 2;
+    private static final byte KIND_ROSTER_MESSAGE = 3;
+    private static final MessageTypes[] TYPES = MessageTypes.values();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        byte[] sender = utf8(message.getSender());
+        byte[] recipient = utf8(message.getRecipient());
+        byte[] content = message.getMessage();
+        byte[] algorithm = null;
+        byte[] key = null;
+        long version = 0;
+        byte kind = KIND_MESSAGE;
+        if (message instanceof KeyMessage keyMessage) {
+            kind = KIND_KEY_MESSAGE;
+            algorithm = utf8(keyMessage.getPublicKey().getAlgorithm());
+            key = keyMessage.getPublicKey().getEncoded();
+        } else if (message instanceof LoginMessage loginMessage) {
+            kind = KIND_LOGIN_MESSAGE;
+            version = loginMessage.getKnownVersion();
+        } else if (message instanceof RosterMessage rosterMessage) {
+            kind = KIND_ROSTER_MESSAGE;
+            version = rosterMessage.getVersion();
+        }
+        int size = 3 + fieldSize(sender) + fieldSize(recipient) + fieldSize(content);
+        if (kind == KIND_KEY_MESSAGE) {
+            size += fieldSize(algorithm) + fieldSize(key);
+        } else if (kind != KIND_MESSAGE) {
+            size += Long.BYTES;
+        }
+        Writer writer = new Writer(new byte[size]);
+        writer.data[writer.position++] = VERSION;
+        writer.data[writer.position++] = kind;
+        writer.data[writer.position++] = (byte) message.getMessageType().ordinal();
+        writer.field(sender);
+        writer.field(recipient);
+        writer.field(content);
+        if (kind == KIND_KEY_MESSAGE) {
+            writer.field(algorithm);
+            writer.field(key);
+        } else if (kind != KIND_MESSAGE) {
+            writer.fixedLong(version);
+        }
+        return writer.data;
+    }
+
+    @Override
+    public Message decode(byte[] data, int offset, int length) throws IOException {
+        Reader reader = new Reader(data, offset, offset + length);
+        if (reader.readByte() != VERSION) {
+            throw new IOException("Unsupported binary message version");
+        }
+        byte kind = reader.readByte();
+        int type = reader.readByte();
+        if (type < 0 || type >= TYPES.length) {
+            throw new IOException("Unknown message type " + type);
+        }
+        String sender = reader.readString();
+        String recipient = reader.readString();
+        byte[] content = reader.readField();
+        switch (kind) {
+            case KIND_MESSAGE -> {
+                return new Message(content, recipient, sender, TYPES[type]);
+            }
+            case KIND_KEY_MESSAGE -> {
+                String algorithm = reader.readString();
+                byte[] key = reader.readField();
+                try {
+                    PublicKey publicKey = KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(key));
+                    return new KeyMessage(publicKey, recipient, sender);
+                } catch (GeneralSecurityException | NullPointerException e) {
+                    throw new IOException("Invalid public key", e);
+                }
+            }
+            case KIND_LOGIN_MESSAGE -> {
+                return new LoginMessage(content, recipient, sender, reader.readFixedLong());
+            }
+            case KIND_ROSTER_MESSAGE -> {
+                return new RosterMessage(content, recipient, sender, TYPES[type], reader.readFixedLong());
+            }
+            default -> throw new IOException("Unknown message kind " + kind);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] field) {
+        int length = field == null ? 0 : field.length;
+        return varintSize(length + 1) + length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes fields into a buffer that was sized in advance.
+     */
+    private static final class Writer {
+        private final byte[] data;
+        private int position;
+
+        private Writer(byte[] data) {
+            this.data = data;
+        }
+
+        private void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                data[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[position++] = (byte) value;
+        }
+
+        private void fixedLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void field(byte[] field) {
+            if (field == null) {
+                varint(0);
+                return;
+            }
+            varint(field.length + 1);
+            System.arraycopy(field, 0, data, position, field.length);
+            position += field.length;
+        }
+    }
+
+    /**
+     * Reads fields from a payload, checking every length against the end of the payload.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        private Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        private byte readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Truncated binary message");
+            }
+            return data[position++];
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private long readFixedLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        private byte[] readField() throws IOException {
+            int length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > end - position) {
+                throw new IOException("Truncated binary message");
+            }
+            byte[] field = new byte[length];
+            System.arraycopy(data, position, field, 0, length);
+            position += length;
+            return field;
+        }
+
+        private String readString() throws IOException {
+            int length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > end - position) {
+                throw new IOException("Truncated binary message");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
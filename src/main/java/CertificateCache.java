@@ -0,0 +1,169 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The certificates a client has already verified. Verifying a certificate decodes the PEM, digests the certificate
+ * data and checks its signature, made alone or in a batch (see {@link MerkleSignature}), with the key of the CA;
+ * the cache remembers the subject of every certificate that passed, keyed by the SHA-256 fingerprint of the PEM
+ * together with the CA key, so a certificate seen again, in a later roster or after a reconnect, costs one digest.
+ * A certificate that fails verification is never remembered.
+ * <p>
+ * A cache backed by a file appends every verified fingerprint to it as a line holding the fingerprint and the
+ * subject, and loads the file when it is opened, so the certificates verified in earlier runs stay verified.
+ */
+public class CertificateCache implements Closeable {
+
+    private final ConcurrentHashMap<String, String> subjects = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BufferedWriter writer;
+
+    /**
+     * Constructs an empty cache that is kept only in memory.
+     */
+    public CertificateCache() {
+        this.writer = null;
+    }
+
+    /**
+     * Constructs a cache holding the certificates verified in earlier runs, which records every certificate it
+     * verifies in the given file.
+     *
+     * @param file the file of the verified fingerprints, created if it does not exist
+     * @throws IOException if the file cannot be read or opened for writing
+     */
+    public CertificateCache(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    subjects.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Verifies a PEM encoded certificate against the key of the CA, unless it was verified before.
+     *
+     * @param pemCertificate the PEM encoded certificate
+     * @param caPublicKey the public key of the CA
+     * @return the subject of the certificate, or null if the certificate is not signed by the CA
+     * @throws Exception if the certificate cannot be decoded
+     */
+    public String verify(String pemCertificate, PublicKey caPublicKey) throws Exception {
+        String fingerprint = fingerprint(pemCertificate, caPublicKey);
+        String subject = subjects.get(fingerprint);
+        if (subject != null) {
+            hits.increment();
+            return subject;
+        }
+        misses.increment();
+        Certificate certificate = new CertificateEncoder().decode(pemCertificate);
+        byte[] digest = Integrity.generateDigest(certificate.getCertificateData());
+        if (!MerkleSignature.verify(digest, certificate.getSignature(), caPublicKey)) {
+            return null;
+        }
+        subject = certificate.getSubject();
+        if (subjects.putIfAbsent(fingerprint, subject) == null) {
+            record(fingerprint, subject);
+        }
+        return subject;
+    }
+
+    private static String fingerprint(String pemCertificate, PublicKey caPublicKey) throws Exception {
+        return HexFormat.of().formatHex(Integrity.generateDigest(caPublicKey.getEncoded(), pemCertificate.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void record(String fingerprint, String subject) throws IOException {
+        if (writer == null || subject.indexOf('\n') >= 0) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            writer.write(fingerprint);
+            writer.write(' ');
+            writer.write(subject);
+            writer.newLine();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the fingerprints verified since the last call to the file of the cache.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void flush() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            writer.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of verifications answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of certificates that had to be verified.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of verified certificates.
+     *
+     * @return the number of cached certificates
+     */
+    public int size() {
+        return subjects.size();
+    }
+
+    /**
+     * Writes the pending fingerprints and closes the file of the cache.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -1,14 +1,16 @@
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A class responsible for handling client connections and processing messages.
@@ -16,22 +18,36 @@ import java.util.Date;
 public class CertificateHandler implements Runnable {
 
     private final Socket client;
-    private final ObjectInputStream in;
-    private final ObjectOutputStream out;
+    private final MessageChannel channel;
     private final PublicKey publicKey;
     private final PrivateKey privateKey;
+    private final SigningService signingService;
 
     /**
      * Constructs a CertificateHandler object with the specified client socket, input stream, and output stream.
+     * The client may speak Object streams or negotiate a framed codec
+     * (see {@link FramedMessageChannel#accept(Socket)}).
      *
      * @param client The client socket associated with this handler.
      * @param keyPair The key pair used for encryption and decryption.
      */
     public CertificateHandler(Socket client, KeyPair keyPair) {
+        this(client, keyPair, null);
+    }
+
+    /**
+     * Constructs a CertificateHandler object that hands its signatures to the signing workers shared by the handlers
+     * of the CA (see {@link SigningService}).
+     *
+     * @param client The client socket associated with this handler.
+     * @param keyPair The key pair used for encryption and decryption.
+     * @param signingService The workers that sign the certificates, or null to sign on the thread of this handler.
+     */
+    public CertificateHandler(Socket client, KeyPair keyPair, SigningService signingService) {
         this.client = client;
+        this.signingService = signingService;
         try {
-            this.in = new ObjectInputStream(client.getInputStream());
-            this.out = new ObjectOutputStream(client.getOutputStream());
+            this.channel = FramedMessageChannel.accept(client);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -49,11 +65,13 @@ public class CertificateHandler implements Runnable {
         // Creates thread to display messages
         try {
             Message message;
-            while((message = (Message) in.readObject()) != null)
+            while((message = channel.receive()) != null)
             {
                 process(message);
             }
             //process(in, out);
+        } catch (EOFException e) {
+            // The client closed the connection
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         } finally {
@@ -83,6 +101,9 @@ public class CertificateHandler implements Runnable {
             case SIGN_CERTIFICATE:
                 signCertificate(message);
                 break;
+            case CERTIFICATE_REQUEST:
+                signRequest(message);
+                break;
         }
     }
 
@@ -93,8 +114,7 @@ public class CertificateHandler implements Runnable {
      * @throws IOException If an I/O error occurs while writing the message.
      */
     protected void sendMessage(Message messageObj) throws IOException {
-        out.writeObject(messageObj);
-        out.flush();
+        channel.send(messageObj);
     }
 
     /**
@@ -108,6 +128,8 @@ public class CertificateHandler implements Runnable {
 
     /**
      * Signs a certificate and sends the signed certificate along with the public key to the appropriate recipient.
+     * The certificate is read from, and then deleted from, the directory shared with the client; clients that do not
+     * share a disk with the CA send a {@link MessageTypes#CERTIFICATE_REQUEST} instead.
      *
      * @param messageObj the message containing the filename of the certificate to be signed
      * @throws IOException if an I/O error occurs when reading or deleting the certificate file
@@ -117,17 +139,44 @@ public class CertificateHandler implements Runnable {
             Path path = Path.of( "src/SignCertificates/" + fileName );
             String fileContent = Files.readString(  path );
             Files.delete( path);
-            CertificateEncoder encoder = new CertificateEncoder();
+            sign( fileContent );
+    }
+
+    /**
+     * Signs the certificate carried in the message and sends the signed certificate along with the public key, as
+     * {@link #signCertificate(Message)} does, without going through the file system.
+     *
+     * @param messageObj the message containing the PEM encoded certificate to be signed
+     * @throws IOException if an I/O error occurs when sending the signed certificate
+     */
+    protected void signRequest(Message messageObj) throws IOException {
+        sign( new String( messageObj.getMessage(), StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Signs a PEM encoded certificate and sends the signed certificate followed by the public key of the CA.
+     *
+     * @param pemCertificate the certificate to be signed
+     * @throws IOException if the signing workers are overloaded, which ends the connection without a reply
+     */
+    private void sign(String pemCertificate) throws IOException {
+        CertificateEncoder encoder = new CertificateEncoder();
         try {
-            Certificate certificate = encoder.decode(  fileContent );
+            Certificate certificate = encoder.decode(  pemCertificate );
             Certificate newCertificate = createCertificate(certificate);
             byte[] data = newCertificate.getCertificateData();
             byte[] digest = Integrity.generateDigest(data);
-            digest = Encryption.encryptRSA(digest,privateKey);
+            digest = signingService == null ? Encryption.encryptRSA(digest,privateKey) : signingService.sign(digest);
             newCertificate.setSignature(digest);
             System.out.println(newCertificate.getSerialNumber());
-            sendMessage(new Message(encoder.encode(newCertificate).getBytes(), newCertificate.getSubject(),newCertificate.getIssuer(),MessageTypes.SIGN_CERTIFICATE ));
-            sendMessage(new KeyMessage(publicKey, newCertificate.getSubject(),newCertificate.getIssuer()));
+            // Both replies leave in one flush, so the second does not wait for the acknowledgement of the first
+            channel.write(new Message(encoder.encode(newCertificate).getBytes(), newCertificate.getSubject(),newCertificate.getIssuer(),MessageTypes.SIGN_CERTIFICATE ));
+            channel.write(new KeyMessage(publicKey, newCertificate.getSubject(),newCertificate.getIssuer()));
+            channel.flush();
+        } catch (TimeoutException | RejectedExecutionException e) {
+            throw new IOException("The CA is overloaded", e);
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -152,9 +201,7 @@ public class CertificateHandler implements Runnable {
      * @throws Exception if the connection is not closing.
      */
     private void closeConnection() throws Exception {
-        client.close();
-        out.close();
-        in.close();
+        channel.close();
     }
 
 }
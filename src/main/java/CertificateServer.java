@@ -5,31 +5,63 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The CertificateServer class represents a server for handling certificate-related operations.
- * This server listens for incoming connections from clients and spawns a new CertificateHandler thread
- * for each client connection.
+ * This server listens for incoming connections from clients and runs a CertificateHandler for each client
+ * connection on the executor selected by the {@code ca.mode} system property (see {@link ExecutionMode}).
+ * <p>
+ * The signing key of the CA is kept in the file given by the {@code ca.keyFile} system property (default
+ * {@code data/ca/ca.key}), created on the first start, so the certificates it issued stay valid when it restarts.
+ * An empty property gives the CA a new key on every start. Certificates are signed by a bounded pool of workers (see
+ * {@link SigningService}), in batches of a {@link BatchSigner} when {@code ca.batchSize} is above one, and the
+ * metrics of the workers are printed every {@code ca.metricsSeconds} seconds when that property is above zero.
  */
 public class CertificateServer {
     /**
      * The main method of the CertificateServer class.
-     * It initializes the server's key pair, listens for incoming client connections on a specific port,
-     * and spawns a CertificateHandler thread for each client connection.
+     * It loads the server's key pair, warms up the signing path, listens for incoming client connections on the
+     * port given by the {@code ca.port} system property (default 8100), and runs a CertificateHandler for each
+     * client connection.
      *
      * @param args command line arguments (not used)
      * @throws Exception if an error occurs during the server operation
      */
     public static void main ( String[] args ) throws Exception {
-        KeyPair keyPair = Encryption.generateKeyPair();
-        try (ServerSocket socket = new ServerSocket( 8100 ))
+        String keyFile = System.getProperty( "ca.keyFile", "data/ca/ca.key" );
+        KeyPair keyPair = keyFile.isEmpty() ? Encryption.generateKeyPair() : loadKeyPair( Path.of( keyFile ) );
+        warmUp( keyPair, Integer.getInteger( "ca.warmupSignatures", 4 ) );
+        BatchSigner.Settings batching = BatchSigner.Settings.fromProperties();
+        SigningService.Settings signing = SigningService.Settings.fromProperties();
+        SigningService signingService;
+        if ( batching.batchSize() > 1 ) {
+            // Every worker waits for its batch, so there must be enough workers to fill one
+            BatchSigner batchSigner = new BatchSigner( keyPair.getPrivate(), batching );
+            signingService = new SigningService( batchSigner::sign, new SigningService.Settings( Math.max( signing.threads(), batching.batchSize() ),
+                    signing.queueCapacity(), signing.timeoutMillis() ) );
+        } else {
+            signingService = new SigningService( keyPair.getPrivate(), signing );
+        }
+        reportMetrics( signingService, Integer.getInteger( "ca.metricsSeconds", 0 ) );
+        ExecutionMode mode = ExecutionMode.fromProperty( "ca.mode", ExecutionMode.THREADS );
+        ExecutorService handlers = mode.newExecutor( Integer.getInteger( "ca.poolSize", Runtime.getRuntime().availableProcessors() * 16 ) );
+        try (ServerSocket socket = new ServerSocket( Integer.getInteger( "ca.port", 8100 ) ))
         {
-            Socket client;
             do
             {
-                client = socket.accept();
-                Thread thread = new Thread(new CertificateHandler(client,keyPair));
-                thread.start();
+                Socket client = socket.accept();
+                handlers.execute( () -> new CertificateHandler(client,keyPair,signingService).run() );
             }while( true );
         }
         catch (IOException e)
@@ -37,4 +69,78 @@ public class CertificateServer {
             System.out.println("Socket Closed: " + e.getMessage());
         }
     }
+
+    /**
+     * Prints the metrics of the signing workers at a fixed interval on a daemon thread.
+     *
+     * @param signingService the signing workers of the CA
+     * @param seconds the interval between two reports, or 0 to print nothing
+     */
+    private static void reportMetrics( SigningService signingService, int seconds ) {
+        if ( seconds <= 0 ) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor( Thread.ofPlatform().name( "signing-metrics" ).daemon().factory() );
+        reporter.scheduleAtFixedRate( () -> System.out.println( "Signing: " + signingService.snapshot() ), seconds, seconds, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Loads the key pair of the CA from a file, or generates one and saves it there if the file does not exist.
+     *
+     * @param file the file of the key pair
+     * @return the key pair of the CA
+     * @throws IOException if the file cannot be read or written
+     * @throws GeneralSecurityException if the file does not hold an RSA key pair
+     */
+    public static KeyPair loadKeyPair( Path file ) throws IOException, GeneralSecurityException {
+        if ( Files.exists( file ) ) {
+            Properties properties = SecureFiles.read( file );
+            String publicKey = properties.getProperty( "publicKey" );
+            String privateKey = properties.getProperty( "privateKey" );
+            if ( publicKey == null || privateKey == null ) {
+                throw new InvalidKeyException( "The key file " + file + " has no key pair" );
+            }
+            KeyFactory keyFactory = KeyFactory.getInstance( "RSA" );
+            return new KeyPair( keyFactory.generatePublic( new X509EncodedKeySpec( Base64.getDecoder().decode( publicKey ) ) ),
+                    keyFactory.generatePrivate( new PKCS8EncodedKeySpec( Base64.getDecoder().decode( privateKey ) ) ) );
+        }
+        KeyPair keyPair;
+        try {
+            keyPair = Encryption.generateKeyPair();
+        } catch ( Exception e ) {
+            throw new GeneralSecurityException( e );
+        }
+        Properties properties = new Properties();
+        properties.setProperty( "publicKey", Base64.getEncoder().encodeToString( keyPair.getPublic().getEncoded() ) );
+        properties.setProperty( "privateKey", Base64.getEncoder().encodeToString( keyPair.getPrivate().getEncoded() ) );
+        SecureFiles.write( file, properties, "Signing key of the CA" );
+        return keyPair;
+    }
+
+    /**
+     * Signs and verifies throwaway digests the way certificates are signed, so the providers are loaded, the RSA
+     * key is prepared and the code is compiled before the first client asks for a signature. A signature that does
+     * not verify means the key file holds a mismatched pair.
+     *
+     * @param keyPair the key pair of the CA
+     * @param signatures the number of signatures to make
+     * @throws GeneralSecurityException if the private key does not match the public key
+     */
+    public static void warmUp( KeyPair keyPair, int signatures ) throws GeneralSecurityException {
+        byte[] data = new byte[ 64 ];
+        for ( int i = 0; i < signatures; i++ ) {
+            data[ 0 ] = (byte) i;
+            try {
+                byte[] digest = Integrity.generateDigest( data );
+                byte[] signature = Encryption.encryptRSA( digest, keyPair.getPrivate() );
+                if ( !Arrays.equals( digest, Encryption.decryptRSA( signature, keyPair.getPublic() ) ) ) {
+                    throw new InvalidKeyException( "The private key of the CA does not match its public key" );
+                }
+            } catch ( GeneralSecurityException e ) {
+                throw e;
+            } catch ( Exception e ) {
+                throw new GeneralSecurityException( e );
+            }
+        }
+    }
 }
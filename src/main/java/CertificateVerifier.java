@@ -0,0 +1,102 @@
+import java.io.Closeable;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies peer certificates on a pool of threads, so the thread that receives messages only hands certificates over
+ * and goes back to reading. Each verification goes through a {@link CertificateCache} and completes a future with
+ * the subject of the certificate; the certificates of a roster are verified in parallel and each peer can be added
+ * as soon as its own certificate passed, without waiting for the rest of the roster.
+ */
+public class CertificateVerifier implements Closeable {
+
+    private final CertificateCache cache;
+    private final ExecutorService pool;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    /**
+     * Constructs a verifier running on a fork-join pool with the parallelism given by the
+     * {@code verifier.parallelism} system property (default the number of processors).
+     *
+     * @param cache the cache of verified certificates
+     */
+    public CertificateVerifier(CertificateCache cache) {
+        this(cache, new ForkJoinPool(Integer.getInteger("verifier.parallelism", Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Constructs a verifier running on the given pool, which it shuts down when it is closed.
+     *
+     * @param cache the cache of verified certificates
+     * @param pool the threads that verify the certificates
+     */
+    public CertificateVerifier(CertificateCache cache, ExecutorService pool) {
+        this.cache = cache;
+        this.pool = pool;
+    }
+
+    /**
+     * Verifies a PEM encoded certificate against the key of the CA on the pool.
+     *
+     * @param pemCertificate the PEM encoded certificate
+     * @param caPublicKey the public key of the CA
+     * @return a future completed with the subject of the certificate, or with null if the certificate is not signed
+     *         by the CA, and completed exceptionally if the certificate cannot be decoded
+     */
+    public CompletableFuture<String> verify(String pemCertificate, PublicKey caPublicKey) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        submitted.increment();
+        pool.execute(() -> {
+            String subject = null;
+            Exception failure = null;
+            try {
+                subject = cache.verify(pemCertificate, caPublicKey);
+            } catch (Exception e) {
+                failure = e;
+            }
+            completed.increment();
+            if (failure == null) {
+                result.complete(subject);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Gets the number of certificates submitted and not verified yet.
+     *
+     * @return the number of pending verifications
+     */
+    public long getPendingCount() {
+        return submitted.sum() - completed.sum();
+    }
+
+    /**
+     * Gets the cache of verified certificates.
+     *
+     * @return the cache
+     */
+    public CertificateCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Stops the pool, letting the submitted verifications finish for a short while.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
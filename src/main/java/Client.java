@@ -1,14 +1,20 @@
 import java.beans.Encoder;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Array;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,18 +26,39 @@ public class Client {
 
     private static final String HOST = "0.0.0.0";
     private final Socket client;
-    private final ObjectInputStream MSGin;
-    private final ObjectOutputStream MSGout;
-    private final Socket CA;
-    private final ObjectInputStream CAin;
-    private final ObjectOutputStream CAout;
+    private final MessageChannel MSGchannel;
+    private final int portCA;
+    private final MessageCodec codec;
     private boolean isConnected;
     private String nickname;
     private PublicKey RSAPublicKey;
     private PrivateKey RSAPrivateKey;
     private String certificate;
     private PublicKey CAPublicKey;
-    private ArrayList<User> userList;
+    private final List<User> userList = new CopyOnWriteArrayList<>();
+    /**
+     * The version of the roster held by this client. It is kept in memory only, like the user list it describes: a
+     * new process holds no roster, so it logs in with {@link LoginMessage#NO_VERSION} and receives a whole roster.
+     */
+    private long rosterVersion = LoginMessage.NO_VERSION;
+    private final CertificateVerifier certificateVerifier;
+    private final IdentityStore identityStore;
+    /** Guards the changes to the user list, which are applied by the receive thread and by the verifier. */
+    private final ReentrantLock rosterLock = new ReentrantLock();
+    /** The sequence number of the last roster change, and of the last change to each user, guarded by rosterLock. */
+    private long rosterSequence;
+    private long rosterClearedAt;
+    private final Map<String, Long> lastRosterChange = new HashMap<>();
+    private SessionManager sessions;
+    private PooledKeyAgreementEngine keyAgreement;
+    /** The messages waiting for the handshakes with their recipients, guarded by pendingLock. */
+    private final PendingMessageQueue pendingMessages = new PendingMessageQueue(SessionManager.HANDSHAKE_TIMEOUT_MILLIS);
+    /** Expires the messages whose handshakes never complete. */
+    private final ScheduledExecutorService pendingTimer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("pending-messages").daemon().factory());
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    /** The last handshake of each peer whose certificate is not verified yet, guarded by rosterLock. */
+    private final Map<String, HeldHandshake> heldHandshakes = new HashMap<>();
 
     /**
      * Constructs a Client object by specifying the port and the CA port to connect to.
@@ -44,17 +71,62 @@ public class Client {
      * @throws Exception when an error occurs during key pair generation
      */
     public Client (int port, int  portCA) throws Exception {
+        this ( port , portCA , null );
+    }
+
+    /**
+     * Constructs a Client object that talks to the server and to the CA through length-prefixed frames encoded with
+     * the given codec, as required by the {@link NioServer}. When the codec is null, the client uses Object streams.
+     *
+     * @param port the port to connect to
+     * @param portCA the port to connect to the Certification Authority (CA)
+     * @param codec the codec proposed to the server and to the CA, or null to use Object streams
+     *
+     * @throws IOException when an I/O error occurs when creating the socket
+     * @throws Exception when an error occurs during key pair generation
+     */
+    public Client (int port, int  portCA, MessageCodec codec) throws Exception {
+        this ( port , portCA , codec , new CertificateCache ( ) );
+    }
+
+    /**
+     * Constructs a Client object that remembers the certificates it verifies in the given cache, which may keep them
+     * across runs. Certificates are verified by a {@link CertificateVerifier} off the receive thread.
+     *
+     * @param port the port to connect to
+     * @param portCA the port to connect to the Certification Authority (CA)
+     * @param codec the codec proposed to the server and to the CA, or null to use Object streams
+     * @param certificateCache the cache of verified certificates
+     *
+     * @throws IOException when an I/O error occurs when creating the socket
+     * @throws Exception when an error occurs during key pair generation
+     */
+    public Client (int port, int  portCA, MessageCodec codec, CertificateCache certificateCache) throws Exception {
+        this ( port , portCA , codec , certificateCache , null );
+    }
+
+    /**
+     * Constructs a Client object that keeps its key pair and signed certificate in the given store. A client whose
+     * nickname has a valid identity in the store reuses it, and only generates a key pair and has it signed by the
+     * CA when there is none. The CA is only connected to while a certificate is being signed, so a client with a
+     * stored identity starts even when the CA is down.
+     *
+     * @param port the port to connect to
+     * @param portCA the port to connect to the Certification Authority (CA)
+     * @param codec the codec proposed to the server and to the CA, or null to use Object streams
+     * @param certificateCache the cache of verified certificates
+     * @param identityStore the store of the client identities, or null to generate a new identity on every start
+     *
+     * @throws IOException when an I/O error occurs when creating the socket
+     */
+    public Client (int port, int  portCA, MessageCodec codec, CertificateCache certificateCache, IdentityStore identityStore) throws IOException {
+        this.certificateVerifier = new CertificateVerifier ( certificateCache );
+        this.identityStore = identityStore;
         client = new Socket ( HOST , port );
-        MSGout = new ObjectOutputStream ( client.getOutputStream ( ) );
-        MSGin = new ObjectInputStream ( client.getInputStream ( ) );
-        CA = new Socket(HOST, portCA);
-        CAout = new ObjectOutputStream ( CA.getOutputStream ( ) );
-        CAin = new ObjectInputStream ( CA.getInputStream ( ) );
+        MSGchannel = codec == null ? new ObjectMessageChannel ( client ) : new FramedMessageChannel ( client , codec );
+        this.portCA = portCA;
+        this.codec = codec;
         isConnected = true;
-        KeyPair keyPair= Encryption.generateKeyPair();
-        this.RSAPrivateKey= keyPair.getPrivate();
-        this.RSAPublicKey= keyPair.getPublic();
-        this.userList= new ArrayList<>();
     }
 
 
@@ -67,8 +139,18 @@ public class Client {
      */
     public void execute() throws Exception {
         nickname = registerName();
-        certificate = generateCertificate();
+        loadIdentity();
+        keyAgreement = new PooledKeyAgreementEngine(KeyAgreementEngine.fromProperties(), EphemeralKeyPool.Settings.fromProperties());
+        sessions = new SessionManager(nickname, RSAPrivateKey, this::peerKey, SessionManager.Limits.fromProperties(), keyAgreement);
         login();
+        pendingTimer.scheduleWithFixedDelay(() -> {
+            try {
+                sendPendingMessages();
+            } catch (IOException | RuntimeException e) {
+                // An exception would cancel the timer, so the next tick retries instead
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
 
         try {
             // Thread for receiving messages
@@ -85,7 +167,17 @@ public class Client {
             Scanner msgInput = new Scanner(System.in);
             while (isConnected) {
                 String msg = msgInput.nextLine();
-                sendMessage(msg);
+                if (msg.startsWith("/subscribe")) {
+                    subscribe(extractRecipients(msg));
+                } else if (msg.startsWith("/create") || msg.startsWith("/join") || msg.startsWith("/leave")) {
+                    MessageTypes type = msg.startsWith("/create") ? MessageTypes.GROUP_CREATE
+                            : msg.startsWith("/join") ? MessageTypes.GROUP_JOIN : MessageTypes.GROUP_LEAVE;
+                    for (String group : extractGroups(msg)) {
+                        updateGroup(type, group.substring(1));
+                    }
+                } else {
+                    sendMessage(msg);
+                }
             }
 
         } finally {
@@ -97,13 +189,14 @@ public class Client {
     /**
      * Requests the public key from the Certification Authority (CA).
      *
+     * @param CAchannel the connection to the CA
      * @return the public key obtained from the CA
      * @throws IOException if an I/O error occurs while reading from the input stream
      * @throws ClassNotFoundException if the class of the serialized object could not be found
      * @throws RuntimeException if the received message type is not a key message
      */
-    private PublicKey askCAPublicKey() throws IOException, ClassNotFoundException {
-        Message message = (Message) CAin.readObject();
+    private PublicKey askCAPublicKey(MessageChannel CAchannel) throws IOException, ClassNotFoundException {
+        Message message = CAchannel.receive();
         if(message.getMessageType().equals(MessageTypes.KEY_MESSAGE)){
             return ((KeyMessage) message).getPublicKey();
         }
@@ -126,8 +219,8 @@ public class Client {
                 System.out.println("input is empty try again");
                 continue;
             }
-            MSGout.writeObject(new Message(input.getBytes(),"Server","new user",MessageTypes.REGISTER));
-            Message message = (Message) MSGin.readObject();
+            MSGchannel.send(new Message(input.getBytes(),"Server","new user",MessageTypes.REGISTER));
+            Message message = MSGchannel.receive();
             if (message.getMessageType()==MessageTypes.ERROR){
                 System.out.println(message.getSender()+": "+new String(message.getMessage()));
             }
@@ -141,20 +234,45 @@ public class Client {
     }
 
     /**
-     * Generates a certificate for the user and sends it to the Certification Authority (CA) for signing.
+     * Loads the identity of the nickname from the store, or generates a key pair, has its certificate signed by the
+     * CA and saves the new identity when the store has no valid one.
+     *
+     * @throws Exception if the key pair cannot be generated or the identity cannot be saved
+     */
+    private void loadIdentity() throws Exception {
+        IdentityStore.Identity identity = identityStore == null ? null : identityStore.load(nickname);
+        if (identity == null) {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            RSAPrivateKey = keyPair.getPrivate();
+            RSAPublicKey = keyPair.getPublic();
+            certificate = generateCertificate();
+            if (identityStore != null) {
+                identityStore.save(nickname, new IdentityStore.Identity(keyPair, certificate, CAPublicKey));
+            }
+        } else {
+            RSAPrivateKey = identity.keyPair().getPrivate();
+            RSAPublicKey = identity.keyPair().getPublic();
+            certificate = identity.certificate();
+            CAPublicKey = identity.caPublicKey();
+        }
+    }
+
+    /**
+     * Generates a certificate for the user and sends it to the Certification Authority (CA) for signing. The
+     * certificate travels inside a {@link MessageTypes#CERTIFICATE_REQUEST}, so the client and the CA need not
+     * share a disk. The connection to the CA is opened for the request and closed once the answer arrived.
      *
      * @return the response message from the CA after sending the certificate
-     * @throws RuntimeException if an I/O error occurs while writing to the file, or if a ClassNotFoundException occurs during object deserialization
+     * @throws RuntimeException if an I/O error occurs while talking to the CA, or if a ClassNotFoundException occurs during object deserialization
      */
     private String generateCertificate(){
         Certificate certificate = new Certificate(RSAPublicKey, nickname);
-        try(FileWriter fileWriter= new FileWriter("src/SignCertificates/"+nickname+".pem")){
+        try (Socket CA = new Socket(HOST, portCA);
+             MessageChannel CAchannel = codec == null ? new ObjectMessageChannel ( CA ) : new FramedMessageChannel ( CA , codec )) {
             CertificateEncoder encoder = new CertificateEncoder();
-            fileWriter.write(encoder.encode(certificate));
-            fileWriter.close();
-            CAout.writeObject(new Message((nickname+".pem").getBytes(),"CA",nickname,MessageTypes.SIGN_CERTIFICATE));
-            Message message = (Message) CAin.readObject();
-            CAPublicKey = askCAPublicKey();
+            CAchannel.send(new Message(encoder.encode(certificate).getBytes(StandardCharsets.UTF_8),"CA",nickname,MessageTypes.CERTIFICATE_REQUEST));
+            Message message = CAchannel.receive();
+            CAPublicKey = askCAPublicKey(CAchannel);
             return new String(message.getMessage());
         } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException(e);
@@ -164,127 +282,348 @@ public class Client {
 
     /**
      * Logs the user into the server. This method sends the user's certificate to the server
-     * for authentication and retrieves the list of connected users upon successful login.
+     * for authentication and retrieves the list of connected users upon successful login. A client that logs in
+     * again sends the version of the roster it holds and receives only the changes since that version. The login
+     * returns as soon as the roster is handed to the verifier; peers are added as their certificates pass.
      *
      * @throws Exception if an error occurs during the login process, such as I/O errors
      *                   or certificate validation errors
      */
     private void login() throws Exception {
-        Message message = new Message(certificate.getBytes(),"Server",nickname,MessageTypes.LOGIN);
-        MSGout.writeObject(message);
-        Message msg= (Message) MSGin.readObject();
+        Message message = new LoginMessage(certificate.getBytes(),"Server",nickname,rosterVersion);
+        MSGchannel.send(message);
+        Message msg= MSGchannel.receive();
         if(new String(msg.getMessage()).equals("Sucess")){
-            msg = (Message) MSGin.readObject();
-            CertificateEncoder encoder = new CertificateEncoder();
-            String certificateList= new String(msg.getMessage());
-            if(!certificateList.isEmpty()){
-                String[] certificates =certificateList.substring(0,certificateList.length()-1).split(",");
-                for( String certificate : certificates){
-                    if (validateCertificate(certificate,encoder)){
-                        String username = encoder.decode(certificate).getSubject();
-                        userList.add(new User(username,null,certificate));
-                        System.out.println(new Date()+" User: "+username+" has connected");
-                    }
-                }
-            }else{
+            if(applyRoster(MSGchannel.receive()) == 0){
                 System.out.println("You are the only user connected");
             }
         }
     }
 
     /**
-     * Validates a PEM encoded certificate by comparing its integrity digest with the decrypted original digest
-     * obtained from the CA's public key.
+     * Applies the roster entries received from the server: a whole roster replaces the known users, while a delta,
+     * either the answer to a login or a batch of announcements, adds and removes users in order. Entries are described
+     * by {@link PresenceRoster}; the entry of this client is skipped. The messages sent to a subscriber only cover its
+     * contacts and carry {@link LoginMessage#NO_VERSION}, which resets the known version, so the next login asks for a
+     * whole roster. Certificates are handed to the {@link CertificateVerifier} and verified in parallel, so the receive
+     * thread never waits for them; removals are applied at once, and every change carries a sequence number so a
+     * certificate verified after a later removal of its user is discarded.
+     *
+     * @param msg the {@link MessageTypes#LOGGED_USERS} or {@link MessageTypes#ROSTER_DELTA} message
+     * @return the number of certificates submitted for verification
+     */
+    private int applyRoster(Message msg) {
+        int submitted = 0;
+        rosterLock.lock();
+        try {
+            if(msg.getMessageType() == MessageTypes.LOGGED_USERS){
+                userList.clear();
+                lastRosterChange.clear();
+                rosterClearedAt = ++rosterSequence;
+            }
+            for( String entry : new String(msg.getMessage()).split(",")){
+                if(entry.startsWith(CertificateEncoder.HEADER)){
+                    addUser(entry, ++rosterSequence, " has connected");
+                    submitted++;
+                }else if(entry.startsWith("-")){
+                    lastRosterChange.put(entry.substring(1), ++rosterSequence);
+                    removeUser(entry.substring(1));
+                }
+            }
+        } finally {
+            rosterLock.unlock();
+        }
+        if(msg instanceof RosterMessage rosterMessage){
+            long version = rosterMessage.getVersion();
+            rosterVersion = msg.getMessageType() == MessageTypes.LOGGED_USERS || version == LoginMessage.NO_VERSION ? version : Math.max(rosterVersion, version);
+        }
+        return submitted;
+    }
+
+    /**
+     * Verifies the certificate of a peer on the verifier and adds the peer once it passed, unless the peer was
+     * removed or replaced by a later change in the meantime. The entry of this client is skipped. A handshake the
+     * peer sent while its certificate was being verified is accepted once the peer is added.
+     *
+     * @param pemCertificate the PEM encoded certificate of the peer
+     * @param sequence the sequence number of the change
+     * @param event the text printed when the peer is added
+     */
+    private void addUser(String pemCertificate, long sequence, String event) {
+        certificateVerifier.verify(pemCertificate, CAPublicKey).whenComplete((username, error) -> {
+            if(error != null || username == null){
+                System.out.println("Invalid certificate");
+                return;
+            }
+            HeldHandshake held;
+            rosterLock.lock();
+            try {
+                if(username.equals(nickname) || sequence < rosterClearedAt || lastRosterChange.getOrDefault(username, 0L) > sequence){
+                    return;
+                }
+                lastRosterChange.put(username, sequence);
+                removeUser(username);
+                userList.add(new User(username,pemCertificate));
+                held = heldHandshakes.remove(username);
+            } finally {
+                rosterLock.unlock();
+            }
+            System.out.println(new Date()+" User: "+username+event);
+            if(held != null && System.currentTimeMillis() - held.receivedAt() < SessionManager.HANDSHAKE_TIMEOUT_MILLIS){
+                try {
+                    acceptHandshake(held.handshake());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a user from the list of known users.
      *
-     * @param pemCertificate the PEM encoded certificate to be validated
-     * @param encoder        the certificate encoder used for decoding the certificate
-     * @return true if the certificate is valid, false otherwise
-     * @throws Exception if an error occurs during the certificate validation process, such as decoding errors or RSA decryption errors
+     * @param username the name of the user
+     * @return true if the user was known
      */
-    private boolean validateCertificate(String pemCertificate, CertificateEncoder encoder) throws Exception {
-        Certificate certificate = encoder.decode(pemCertificate);
-        byte[] digest = Integrity.generateDigest(certificate.getCertificateData());
-        byte[] originalDigest = Encryption.decryptRSA(certificate.getSignature(),CAPublicKey);
-        return Arrays.equals(digest,originalDigest);
+    private boolean removeUser(String username) {
+        return userList.removeIf(user -> user.getName().equals(username));
     }
 
     /**
-     * Sends a message to the receiver using the OutputStream of the socket. The message is sent as an object of the
-     * {@link Message} class.
+     * Sends a message to the receivers using the OutputStream of the socket. A message to users is sealed once with the
+     * end-to-end sessions of its recipients and sent as one {@link MessageTypes#SESSION_MESSAGE}; when a recipient has
+     * no session yet, a handshake is sent to it and the message waits in the queue of each such recipient until the
+     * handshakes completed (see {@link PendingMessageQueue}). A message to a group channel is sent as a
+     * {@link MessageTypes#USER_MESSAGE} that the server delivers to each member.
      *
      * @param message the message to send
      *
      * @throws IOException when the encryption or the integrity generation fails
      */
     public void sendMessage ( String message ) throws IOException {
-        List<String>recipients = extractRecipients ( message );
+        List<String> groups = extractGroups ( message );
         String userMessage= extractMessage(message);
-        // Creates the message object
+        if (!groups.isEmpty()) {
+            MSGchannel.send(new Message(userMessage.getBytes(), String.join(", ", groups), nickname, MessageTypes.USER_MESSAGE));
+        }
+        List<String> recipients = new ArrayList<>();
+        for (String recipient : new LinkedHashSet<>( extractRecipients ( message ) )) {
+            if (userList.stream().anyMatch(user -> user.getName().equals(recipient))) {
+                recipients.add(recipient);
+            }
+        }
         if (!recipients.isEmpty()) {
-            for (String recipient : recipients) {
-                Message messageObj = new Message(userMessage.getBytes(), recipient, nickname, MessageTypes.USER_MESSAGE);
-                // Sends the message
-                MSGout.writeObject(messageObj);
+            pendingLock.lock();
+            try {
+                pendingMessages.add(recipients, userMessage.getBytes(), System.currentTimeMillis());
+                startHandshakes(recipients);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } finally {
+                pendingLock.unlock();
             }
-        }else{
+            sendPendingMessages();
+        } else if (groups.isEmpty()) {
             System.out.println("Invalid User");
         }
     }
 
+    /**
+     * Sends a handshake to each of the given recipients that has no usable session, unless one is already waiting
+     * for its reply. Called with pendingLock held.
+     *
+     * @param recipients the names of the recipients
+     * @throws IOException when a handshake cannot be sent
+     * @throws GeneralSecurityException when a handshake cannot be signed
+     */
+    private void startHandshakes(List<String> recipients) throws IOException, GeneralSecurityException {
+        for (String recipient : recipients) {
+            if (!sessions.isReady(recipient)) {
+                Message handshake = sessions.initiate(recipient);
+                if (handshake != null) {
+                    MSGchannel.send(handshake);
+                }
+            }
+        }
+    }
+
+    /**
+     * Seals and sends the waiting messages whose recipients all have a session, in order for each recipient. A
+     * message still waiting after {@link SessionManager#HANDSHAKE_TIMEOUT_MILLIS} is sent to the recipients that
+     * have a session and reported as undelivered to the others. The messages left waiting, such as those beyond the
+     * limits of a session, start a handshake with their recipients. Called after every handshake and once a second.
+     *
+     * @throws IOException when the encryption fails or the message cannot be sent
+     */
+    private void sendPendingMessages() throws IOException {
+        pendingLock.lock();
+        try {
+            if (pendingMessages.size() == 0) {
+                return;
+            }
+            List<PendingMessageQueue.Entry> expired = pendingMessages.drain(sessions::isReady, this::sealPending,
+                    System.currentTimeMillis());
+            for (PendingMessageQueue.Entry entry : expired) {
+                System.out.println("Message not delivered to " + String.join(", ", entry.recipients())
+                        + ": no session was established");
+            }
+            startHandshakes(pendingMessages.recipients());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Seals a waiting message with the sessions of its recipients and sends it.
+     *
+     * @param pending the message and its recipients
+     * @return true if the message was sent, false if a session reached its limits since it was checked
+     * @throws IOException when the message cannot be sent
+     * @throws GeneralSecurityException when the encryption fails
+     */
+    private boolean sealPending(PendingMessageQueue.Entry pending) throws IOException, GeneralSecurityException {
+        Message sealed;
+        try {
+            sealed = sessions.seal(pending.message(), pending.recipients());
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        MSGchannel.send(sealed);
+        return true;
+    }
+
+    /**
+     * Finds the public RSA key of a peer in the certificate it presented when it logged in.
+     *
+     * @param peer the name of the peer
+     * @return the public key of the peer, or null if the peer is not connected
+     * @throws GeneralSecurityException if the certificate cannot be decoded
+     */
+    private PublicKey peerKey(String peer) throws GeneralSecurityException {
+        for (User user : userList) {
+            if (user.getName().equals(peer)) {
+                try {
+                    return new CertificateEncoder().decode(user.getCertificate()).getPublicRSAKey();
+                } catch (Exception e) {
+                    throw new GeneralSecurityException(e);
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Subscribes to the presence of the given contacts, so that the server only announces their logins and logouts.
+     * The server answers with the contacts that are logged in, which replace the known users.
+     * The command {@code /subscribe @alice @bob} calls this method.
+     *
+     * @param contacts the names of the contacts
+     * @throws IOException if an I/O error occurs while sending the subscription
+     */
+    public void subscribe(Collection<String> contacts) throws IOException {
+        MSGchannel.send(new Message(String.join(", ", contacts).getBytes(), "Server", nickname, MessageTypes.SUBSCRIBE));
+    }
+
+
+    /**
+     * Creates, joins or leaves a group channel. Messages addressed to {@code #group} reach every other member of the
+     * group. The commands {@code /create #group}, {@code /join #group} and {@code /leave #group} call this method.
+     *
+     * @param type {@link MessageTypes#GROUP_CREATE}, {@link MessageTypes#GROUP_JOIN} or
+     *             {@link MessageTypes#GROUP_LEAVE}
+     * @param group the name of the group, without the leading {@code #}
+     * @throws IOException if an I/O error occurs while sending the request
+     */
+    public void updateGroup(MessageTypes type, String group) throws IOException {
+        MSGchannel.send(new Message(group.getBytes(), "Server", nickname, type));
+    }
+
 
     /**
      * Reads a Message object from the input stream and prints the sender and message content if the message type is USER_MESSAGE.
+     * A USER_MESSAGE travels in plaintext and is vouched for only by the server, so it is printed marked as such, apart
+     * from the messages opened from an end-to-end session.
      *
      * @throws IOException If an I/O error occurs while reading the message.
      * @throws ClassNotFoundException If the class of the serialized object cannot be found.
      */
     public void receiveMessage () throws Exception {
-        Message messageObj = (Message) MSGin.readObject();
+        Message messageObj = MSGchannel.receive();
         switch (messageObj.getMessageType()) {
             case USER_MESSAGE->{
-                System.out.println(new Date() +" "+ messageObj.getSender()+": "+ new String(messageObj.getMessage()));
+                String recipient = messageObj.getRecipient();
+                String group = recipient != null && recipient.contains("#") ? " (" + recipient + ")" : "";
+                System.out.println(new Date() +" [not end-to-end encrypted] "+ messageObj.getSender()+group+": "
+                        + new String(messageObj.getMessage()));
             }
-            case USER_LOGIN -> {
-                userLogin(messageObj);
+            case SESSION_HANDSHAKE -> {
+                if (holdHandshake(messageObj)) {
+                    return;
+                }
+                acceptHandshake(messageObj);
             }
-            case USER_LOGOUT -> {
-                userLogout(messageObj);
+            case SESSION_MESSAGE -> {
+                try {
+                    System.out.println(new Date() +" "+ messageObj.getSender()+": "+ new String(sessions.open(messageObj)));
+                } catch (GeneralSecurityException | IOException e) {
+                    System.out.println("Dropped a message from " + messageObj.getSender() + ": " + e.getMessage());
+                }
+            }
+            case GROUP_CREATE, GROUP_JOIN, GROUP_LEAVE -> {
+                System.out.println(messageObj.getMessageType() + ": " + new String(messageObj.getMessage()));
+            }
+            case LOGGED_USERS, ROSTER_DELTA -> {
+                applyRoster(messageObj);
             }
         }
     }
 
     /**
-     * Handles the login of a user based on the received message containing the user's certificate.
+     * Holds a handshake from a peer that is not in the list of users yet, which happens when the handshake overtakes
+     * the verification of the certificate of the peer. Only the last handshake of each peer is held, and held
+     * handshakes older than {@link SessionManager#HANDSHAKE_TIMEOUT_MILLIS} are discarded.
      *
-     * @param messageObj the message containing the user's certificate
-     * @throws Exception if an error occurs during the user login process, such as certificate validation errors
+     * @param handshake the {@link MessageTypes#SESSION_HANDSHAKE} message
+     * @return true if the handshake was held, false if the peer is known
      */
-    private void userLogin(Message messageObj) throws Exception {
-        String certificate = new String(messageObj.getMessage());
-        CertificateEncoder encoder = new CertificateEncoder();
-        String username = encoder.decode(certificate).getSubject();
-        if(validateCertificate(certificate,encoder)){
-            userList.add(new User(username,null,certificate));
-            System.out.println(new Date() +" User: "+username+" has logged in");
-        }else{
-            System.out.println("Invalid certificate");
+    private boolean holdHandshake(Message handshake) {
+        rosterLock.lock();
+        try {
+            if (userList.stream().anyMatch(user -> user.getName().equals(handshake.getSender()))) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            heldHandshakes.values().removeIf(held -> now - held.receivedAt() >= SessionManager.HANDSHAKE_TIMEOUT_MILLIS);
+            heldHandshakes.put(handshake.getSender(), new HeldHandshake(handshake, now));
+            return true;
+        } finally {
+            rosterLock.unlock();
         }
-
     }
 
     /**
-     * Handles the logout of a user based on the received message containing the user's username.
+     * Accepts a handshake from a known peer, answers it and sends the messages that were waiting for the session. A
+     * handshake that cannot be accepted, because it is malformed, forged, stale or uses another key agreement, is
+     * reported and dropped, so one bad handshake never stops the client from receiving.
      *
-     * @param messageObj the message containing the user's username
-     * @throws Exception if an error occurs during the user logout process
+     * @param handshake the {@link MessageTypes#SESSION_HANDSHAKE} message
+     * @throws IOException if the reply or the waiting messages cannot be sent
      */
-    private void userLogout(Message messageObj) throws Exception {
-        String username = new String(messageObj.getMessage());
-        if(userList.remove(username)){
-            System.out.println(new Date() +"User: "+username+" has logged out");
-        }else{
-            System.out.println("invalid username to remove");
+    private void acceptHandshake(Message handshake) throws IOException {
+        Message reply;
+        try {
+            reply = sessions.accept(handshake);
+        } catch (GeneralSecurityException | IOException e) {
+            System.out.println("Dropped a handshake from " + handshake.getSender() + ": " + e.getMessage());
+            return;
         }
+        if (reply != null) {
+            MSGchannel.send(reply);
+        }
+        sendPendingMessages();
     }
 
     /**
@@ -305,13 +644,29 @@ public class Client {
     }
 
     /**
-     * Extracts the message content from the message string by removing recipient mentions.
+     * Extracts the group channels mentioned in the message string, keeping their leading {@code #}.
+     *
+     * @param message The message string containing group mentions.
+     * @return A list of groups extracted from the message.
+     */
+    public static List<String> extractGroups(String message) {
+        List<String> groups = new ArrayList<>();
+        Matcher matcher = Pattern.compile("#\\w+").matcher(message);
+
+        while (matcher.find()) {
+            groups.add(matcher.group());
+        }
+        return groups;
+    }
+
+    /**
+     * Extracts the message content from the message string by removing recipient and group mentions.
      *
      * @param message The message string containing recipient mentions.
      * @return The message content without recipient mentions.
      */
     public static String extractMessage(String message) {
-        String messagem = message.replaceAll("@\\w+(,\\s*@\\w+)*", "").trim();
+        String messagem = message.replaceAll("[@#]\\w+(,\\s*[@#]\\w+)*", "").trim();
         return messagem;
     }
 
@@ -321,9 +676,22 @@ public class Client {
      * @throws IOException when an I/O error occurs when closing the connection
      */
     private void closeConnection ( ) throws IOException {
-        client.close ( );
-        MSGout.close ( );
-        MSGin.close ( );
+        MSGchannel.close ( );
+        pendingTimer.shutdownNow ( );
+        certificateVerifier.close ( );
+        if ( keyAgreement != null ) {
+            keyAgreement.close ( );
+        }
+        certificateVerifier.getCache ( ).close ( );
     }
 
+
+    /**
+     * A handshake received from a peer whose certificate was still being verified.
+     *
+     * @param handshake the {@link MessageTypes#SESSION_HANDSHAKE} message
+     * @param receivedAt the time the handshake was received
+     */
+    private record HeldHandshake(Message handshake, long receivedAt) {
+    }
 }
@@ -1,38 +1,77 @@
 import java.beans.Encoder;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A class responsible for handling communication with a single client.
+ * A class responsible for handling communication with a single client. Messages addressed to the client, including
+ * the ones sent by other handlers, go through a bounded {@link OutboundQueue}, so a slow client never blocks the
+ * threads of the clients that message it.
  */
 public class ClientHandler implements Runnable {
-    private final Socket client;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private final MessageChannel in;
+    private final MessageSink out;
     private ConcurrentHashMap<String, User> clientsList;
-    private ArrayList<String> registeredClients;
-    private ReentrantLock registeredClientsLock;
+    private UserRegistry registeredClients;
+    private PresenceAggregator presence;
+    private GroupDirectory groups;
     private boolean connected = false;
+    private User user;
 
     /**
      * Constructs a ClientHandler object with the specified client socket, input stream, output stream, and client list.
+     * The client may speak Object streams or negotiate a framed codec
+     * (see {@link FramedMessageChannel#accept(Socket)}).
      *
      * @param client The client socket associated with this handler.
      * @param clients The HashMap containing the list of connected clients.
+     * @param registeredClients The registry of client names.
+     * @param presence The aggregator announcing logins and logouts.
+     * @param groups The group channels and their members.
      */
-    public ClientHandler(Socket client, ConcurrentHashMap<String, User> clients, ArrayList<String> registeredClients, ReentrantLock clientsLock) throws IOException {
-        this.client = client;
-        this.in=new ObjectInputStream(client.getInputStream());
-        this.out=new ObjectOutputStream(client.getOutputStream());
+    public ClientHandler(Socket client, ConcurrentHashMap<String, User> clients, UserRegistry registeredClients, PresenceAggregator presence, GroupDirectory groups) throws IOException {
+        this(FramedMessageChannel.accept(client), clients, registeredClients, presence, groups);
+    }
+
+    /**
+     * Constructs a ClientHandler object that reads requests from the specified channel and answers through it.
+     *
+     * @param channel The channel connected to the client.
+     * @param clients The HashMap containing the list of connected clients.
+     * @param registeredClients The registry of client names.
+     * @param presence The aggregator announcing logins and logouts.
+     * @param groups The group channels and their members.
+     */
+    public ClientHandler(MessageChannel channel, ConcurrentHashMap<String, User> clients, UserRegistry registeredClients, PresenceAggregator presence, GroupDirectory groups) {
+        this(channel, new OutboundQueue(channel, OutboundQueue.Limits.fromProperties()), clients, registeredClients, presence, groups);
+    }
+
+    /**
+     * Constructs a ClientHandler object whose requests are delivered by an event loop instead of a blocking channel.
+     * The owner of the handler must call {@link #handleRequest(Message)} for every request it decodes, and the sink
+     * must queue messages without blocking.
+     *
+     * @param out The sink used to answer the client.
+     * @param clients The HashMap containing the list of connected clients.
+     * @param registeredClients The registry of client names.
+     * @param presence The aggregator announcing logins and logouts.
+     * @param groups The group channels and their members.
+     */
+    ClientHandler(MessageSink out, ConcurrentHashMap<String, User> clients, UserRegistry registeredClients, PresenceAggregator presence, GroupDirectory groups) {
+        this(null, out, clients, registeredClients, presence, groups);
+    }
+
+    private ClientHandler(MessageChannel in, MessageSink out, ConcurrentHashMap<String, User> clients, UserRegistry registeredClients, PresenceAggregator presence, GroupDirectory groups) {
+        this.in = in;
+        this.out = out;
         this.clientsList = clients;
         this.registeredClients = registeredClients;
-        this.registeredClientsLock= clientsLock;
+        this.presence = presence;
+        this.groups = groups;
         connected = true;
     }
 
@@ -46,9 +85,11 @@ public class ClientHandler implements Runnable {
         try {
             //process(in, out);
             while (connected) {
-                Message message = (Message) in.readObject();
+                Message message = in.receive();
                 handleRequest(message);
             }
+        } catch (EOFException e) {
+            // The client closed the connection
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         } finally {
@@ -57,12 +98,17 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Handles the incoming message based on its type.
+     * Handles the incoming message based on its type. A message without a type, a message to relay without a recipient
+     * or a request without a body is answered with an error and otherwise ignored.
      *
      * @param message the message to be handled
      * @throws IOException if an I/O error occurs during message handling
      */
-    private void handleRequest(Message message) throws IOException {
+    void handleRequest(Message message) throws IOException {
+        if (!isValid(message)) {
+            out.send(new Message("Invalid message".getBytes(), message == null ? null : message.getSender(), "Server",MessageTypes.ERROR));
+            return;
+        }
         switch (message.getMessageType()){
             case LOGIN -> {
                 login(message);
@@ -73,41 +119,103 @@ public class ClientHandler implements Runnable {
             case REGISTER -> {
                 register(message);
             }
-            case USER_MESSAGE -> {
+            case USER_MESSAGE, SESSION_HANDSHAKE, SESSION_MESSAGE -> {
                 sendMessage(message);
             }
+            case SUBSCRIBE -> {
+                subscribe(message);
+            }
+            case GROUP_CREATE, GROUP_JOIN, GROUP_LEAVE -> {
+                updateGroup(message);
+            }
+        }
+    }
+
+    /**
+     * Checks that a decoded message has a type, a recipient if it is relayed to other clients, and a body if the
+     * server reads it.
+     *
+     * @param message the message to be checked
+     * @return true if the message can be dispatched
+     */
+    private static boolean isValid(Message message) {
+        if (message == null || message.getMessageType() == null) {
+            return false;
         }
+        return switch (message.getMessageType()) {
+            case USER_MESSAGE, SESSION_HANDSHAKE, SESSION_MESSAGE -> message.getRecipient() != null;
+            case LOGIN, LOGOUT, REGISTER, SUBSCRIBE, GROUP_CREATE, GROUP_JOIN, GROUP_LEAVE -> message.getMessage() != null;
+            default -> true;
+        };
     }
 
     /**
-     * Sends a message to the specified recipients.
+     * Sends a message to the specified recipients. The client uploads a message once with a comma-separated list of
+     * recipients, and the same message is fanned out to every recipient that is connected; recipients that are
+     * offline are skipped, and a recipient listed twice receives the message once. A recipient starting with
+     * {@code #} names a group channel the sender is a member of, and stands for every other member of the group,
+     * found with a single lookup in the {@link GroupDirectory}. Only a logged-in client may send, and only under
+     * its own name, so the sender seen by the recipients is the user who logged in on this connection.
      *
      * @param message the message to be sent
      * @throws IOException if an I/O error occurs while sending the message
      */
     private void sendMessage(Message message) throws IOException {
-        String[] recipients= message.getRecipient().split(", ");
+        if(user == null || !user.getName().equals(message.getSender())){
+            out.send(new Message("Not logged in as the sender".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+            return;
+        }
+        Set<String> recipients= new LinkedHashSet<>();
+        for(String recipient : message.getRecipient().split(", ")){
+            if(recipient.startsWith("#")){
+                Set<String> members= groups.members(recipient.substring(1));
+                if(members != null && members.contains(user.getName())){
+                    recipients.addAll(members);
+                    recipients.remove(user.getName());
+                }
+            }else{
+                recipients.add(recipient);
+            }
+        }
         for(String recipient : recipients){
-            User user= clientsList.get(recipient);
-            if(user.getOut()!=null){
-                user.getOut().writeObject(message);
+            User target= clientsList.get(recipient);
+            if(target != null && target.isReachable()){
+                target.send(message);
             }
         }
     }
 
     /**
-     * Sends a broadcast message of the specified type to all connected clients except the sender.
+     * Creates, joins or leaves the group channel named in the message on behalf of the logged-in client. Group
+     * membership belongs to the name rather than the session, so a member who logs in again is still in its groups.
      *
-     * @param message the message to be broadcasted
-     * @param type the type of the broadcast message
-     * @throws IOException if an I/O error occurs while sending the broadcast message
+     * @param message the message containing the name of the group, without the leading {@code #}
+     * @throws IOException if an I/O error occurs while answering the client
      */
-    private void sendBroadcast(Message message, MessageTypes type) throws IOException {
-        for(Map.Entry <String, User> entry : clientsList.entrySet()){
-            if(!entry.getKey().equals(message.getSender())){
-                User user= entry.getValue();
-                user.getOut().writeObject(new Message(message.getMessage(), message.getSender(), user.getName(),type));
-            }
+    private void updateGroup(Message message) throws IOException {
+        String group= new String(message.getMessage());
+        boolean updated= user != null && !group.isEmpty() && switch (message.getMessageType()){
+            case GROUP_CREATE -> groups.create(group, user.getName());
+            case GROUP_JOIN -> groups.join(group, user.getName());
+            default -> groups.leave(group, user.getName());
+        };
+        if(updated){
+            out.send(new Message("Sucess".getBytes(), message.getSender(), "Server",message.getMessageType()));
+        }else{
+            out.send(new Message("Failed".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+        }
+    }
+
+    /**
+     * Subscribes the logged-in client to the presence of the comma-separated list of users in the message, replacing
+     * any previous subscription.
+     *
+     * @param message the message containing the names of the contacts
+     */
+    private void subscribe(Message message) {
+        if (user != null) {
+            String names = new String(message.getMessage());
+            presence.subscribe(user, names.isEmpty() ? Set.of() : Arrays.asList(names.split(", ")));
         }
     }
 
@@ -119,19 +227,20 @@ public class ClientHandler implements Runnable {
      */
     private void register(Message message) throws IOException {
         String newName= new String(message.getMessage());
-        registeredClientsLock.lock();
-        if(!registeredClients.contains(newName)){
-            registeredClients.add(newName);
-            registeredClientsLock.unlock();
-            out.writeObject(new Message("Sucess".getBytes(), message.getSender(), "Server",MessageTypes.REGISTER));
+        if(registeredClients.register(newName)){
+            out.send(new Message("Sucess".getBytes(), message.getSender(), "Server",MessageTypes.REGISTER));
         }else{
-            registeredClientsLock.unlock();
-            out.writeObject(new Message("Failed".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+            out.send(new Message("Failed".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
         }
     }
 
     /**
-     * Logs in a client with the server using the provided certificate.
+     * Logs in a client with the server using the provided certificate. The client receives the roster of logged-in
+     * users, or only the changes since the version it already holds when it sends a {@link LoginMessage}; either
+     * way the entries come pre-encoded from the {@link PresenceRoster}. They leave out the client itself, since the
+     * {@link PresenceAggregator} sends the welcome before adding the client to the roster; the client and the other
+     * users learn of the login from the next announcement of the aggregator. The {@link Client} keeps its roster in
+     * memory only and so always logs in without a version; the delta serves clients that still hold a roster.
      *
      * @param message the message containing the encoded certificate for login
      * @throws IOException if an I/O error occurs during the login process
@@ -141,60 +250,65 @@ public class ClientHandler implements Runnable {
         try {
             Certificate certificate= new CertificateEncoder().decode(encodedCertificate);
 
-            registeredClientsLock.lock();
-            if(registeredClients.contains(certificate.getSubject()) && !clientsList.containsKey(certificate.getSubject())){
-                clientsList.put(certificate.getSubject(),new User(certificate.getSubject(),out,encodedCertificate));
-                registeredClientsLock.unlock();
-                out.writeObject(new Message("Sucess".getBytes(), message.getSender(), "Server",MessageTypes.LOGIN));
-                StringBuilder certificates= new StringBuilder();
-                for(User user : clientsList.values()){
-                    if (user.getName().equals(certificate.getSubject())){
-                     continue;
+            if(registeredClients.login(certificate.getSubject())){
+                user = new User(certificate.getSubject(),out,encodedCertificate);
+                presence.loggedIn(user, () -> {
+                    out.send(new Message("Sucess".getBytes(), message.getSender(), "Server",MessageTypes.LOGIN));
+                    PresenceRoster roster= presence.getRoster();
+                    PresenceRoster.Snapshot delta= message instanceof LoginMessage loginMessage ? roster.since(loginMessage.getKnownVersion()) : null;
+                    if(delta != null){
+                        out.send(new RosterMessage(delta.entries(), message.getSender(), "Server",MessageTypes.ROSTER_DELTA, delta.version()));
+                    }else{
+                        PresenceRoster.Snapshot snapshot= roster.snapshot();
+                        out.send(new RosterMessage(snapshot.entries(), message.getSender(), "Server",MessageTypes.LOGGED_USERS, snapshot.version()));
                     }
-                    certificates.append(user.getCertificate()).append(",");
-                }
-                out.writeObject(new Message(certificates.toString().getBytes(), message.getSender(), "Server",MessageTypes.LOGGED_USERS));
-
-                sendBroadcast(message,MessageTypes.USER_LOGIN);
+                });
             }else{
-                registeredClientsLock.unlock();
-                out.writeObject(new Message("Failed".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+                out.send(new Message("Failed".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
             }
 
-        } catch (ClassNotFoundException e) {
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
             System.out.println("Invalid certificate");
-            out.writeObject(new Message("Invalid Certificate".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+            out.send(new Message("Invalid Certificate".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
             return;
         }
     }
 
     /**
-     * Logs out a client from the server.
+     * Logs out the client logged in on this connection and removes its name from the registry. The request only ever
+     * acts on the user of this connection, whatever name its body holds; a connection that is not logged in is
+     * answered with an error.
      *
-     * @param message the message containing the client's name for logout
+     * @param message the logout request
      * @throws IOException if an I/O error occurs during the logout process
      */
     private void logout(Message message) throws IOException {
-        String content = new String(message.getMessage());
-        registeredClientsLock.lock();
-        registeredClients.remove(content);
-        registeredClientsLock.unlock();
-        clientsList.remove(content);
-        sendBroadcast(message,MessageTypes.USER_LOGOUT);
+        if (user == null) {
+            out.send(new Message("Not logged in".getBytes(), message.getSender(), "Server",MessageTypes.ERROR));
+            return;
+        }
+        if (presence.loggedOut(user)) {
+            registeredClients.unregister(user.getName());
+        }
+        user = null;
         closeConnection();
     }
 
     /**
-     * Closes the connection with the client and associated streams.
+     * Closes the connection with the client and associated streams. A client that disconnects without logging out,
+     * or that was disconnected for being too slow, is removed from the connected clients and announced as logged
+     * out to the others.
      *
      * @throws IOException If an I/O error occurs while closing the connection.
      */
-    private void closeConnection() {
+    void closeConnection() {
         try {
-            client.close();
-            out.close();
-            in.close();
             connected=false;
+            if (user != null && presence.loggedOut(user)) {
+                registeredClients.logout(user.getName());
+            }
+            user = null;
+            out.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
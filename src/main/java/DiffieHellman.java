@@ -1,24 +1,24 @@
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Random;
 
 public class DiffieHellman {
 
     private static final int NUM_BITS = 128;
     private static final BigInteger N = new BigInteger ( "1289971646" );
     private static final BigInteger G = new BigInteger ( "3" );
+    private static final SecureRandom RANDOM = new SecureRandom ( );
 
     /**
-     * Generates a private key to be used in the Diffie-Hellman key exchange.
+     * Generates a private key to be used in the Diffie-Hellman key exchange. The generator is shared, as seeding a
+     * new one for every key is far slower than drawing from it.
      *
      * @return the private key
      *
      * @throws NoSuchAlgorithmException when the algorithm used to generate the key is not available
      */
     public static BigInteger generatePrivateKey ( ) throws NoSuchAlgorithmException {
-        Random randomGenerator = SecureRandom.getInstance ( "SHA1PRNG" );
-        return new BigInteger ( NUM_BITS , randomGenerator );
+        return new BigInteger ( NUM_BITS , RANDOM );
     }
 
     /**
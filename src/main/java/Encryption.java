@@ -1,12 +1,25 @@
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.nio.*;
+import java.util.Arrays;
 
+/**
+ * Symmetric and asymmetric encryption of messages. The static methods are convenience wrappers over contexts kept
+ * per thread, so a thread that calls them repeatedly reuses its ciphers and only initialises them again when the
+ * key changes. Callers that encrypt many messages with one key can hold an {@link AesContext} or a
+ * {@link RsaContext} bound to that key instead.
+ */
 public class Encryption {
 
+    private static final String AES_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String RSA_TRANSFORMATION = "RSA";
+    private static final ThreadLocal<AesContext> AES_CONTEXTS = new ThreadLocal<> ( );
+    private static final ThreadLocal<RsaContext> RSA_CONTEXTS = new ThreadLocal<> ( );
+
     /**
      * @param message   the message to be decrypted
      * @param secretKey the secret key used to decrypt the message
@@ -16,11 +29,7 @@ public class Encryption {
      * @throws Exception when the encryption fails
      */
     public static byte[] encryptAES ( byte[] message , byte[] secretKey ) throws Exception {
-        byte[] secretKeyPadded = ByteBuffer.allocate ( 16 ).put ( secretKey ).array ( );
-        SecretKeySpec secreteKeySpec = new SecretKeySpec ( secretKeyPadded , "AES" );
-        Cipher cipher = Cipher.getInstance ( "AES/ECB/PKCS5Padding" );
-        cipher.init ( Cipher.ENCRYPT_MODE , secreteKeySpec );
-        return cipher.doFinal ( message );
+        return aesContext ( secretKey ).encrypt ( message );
     }
 
     /**
@@ -32,11 +41,7 @@ public class Encryption {
      * @throws Exception when the decryption fails
      */
     public static byte[] decryptAES ( byte[] message , byte[] secretKey ) throws Exception {
-        byte[] secretKeyPadded = ByteBuffer.allocate ( 16 ).put ( secretKey ).array ( );
-        SecretKeySpec secreteKeySpec = new SecretKeySpec ( secretKeyPadded , "AES" );
-        Cipher cipher = Cipher.getInstance ( "AES/ECB/PKCS5Padding" );
-        cipher.init ( Cipher.DECRYPT_MODE , secreteKeySpec );
-        return cipher.doFinal ( message );
+        return aesContext ( secretKey ).decrypt ( message );
     }
 
     /**
@@ -50,9 +55,7 @@ public class Encryption {
      * @throws Exception if any error occurs during the encryption process
      */
     public static byte[] encryptRSA ( byte[] message , Key publicKey ) throws Exception {
-        Cipher cipher = Cipher.getInstance ( "RSA" );
-        cipher.init ( Cipher.ENCRYPT_MODE , publicKey );
-        return cipher.doFinal ( message );
+        return rsaContext ( publicKey ).encrypt ( message );
     }
 
     /**
@@ -66,9 +69,185 @@ public class Encryption {
      * @throws Exception if any error occurs during the decryption process
      */
     public static byte[] decryptRSA ( byte[] message , Key privateKey ) throws Exception {
-        Cipher cipher = Cipher.getInstance ( "RSA" );
-        cipher.init ( Cipher.DECRYPT_MODE , privateKey );
-        return cipher.doFinal ( message );
+        return rsaContext ( privateKey ).decrypt ( message );
+    }
+
+    /**
+     * Gets the AES context of the current thread, bound to the given key.
+     */
+    private static AesContext aesContext ( byte[] secretKey ) throws GeneralSecurityException {
+        AesContext context = AES_CONTEXTS.get ( );
+        if ( context == null ) {
+            context = new AesContext ( secretKey );
+            AES_CONTEXTS.set ( context );
+        } else {
+            context.bind ( secretKey );
+        }
+        return context;
+    }
+
+    /**
+     * Gets the RSA context of the current thread, bound to the given key.
+     */
+    private static RsaContext rsaContext ( Key key ) throws GeneralSecurityException {
+        RsaContext context = RSA_CONTEXTS.get ( );
+        if ( context == null ) {
+            context = new RsaContext ( key );
+            RSA_CONTEXTS.set ( context );
+        } else {
+            context.bind ( key );
+        }
+        return context;
+    }
+
+    /**
+     * Creates an AES context bound to the given key.
+     *
+     * @param secretKey the secret key, padded with zeros to 16 bytes
+     *
+     * @return the context
+     *
+     * @throws GeneralSecurityException if AES is not available or the key is invalid
+     */
+    public static AesContext aes ( byte[] secretKey ) throws GeneralSecurityException {
+        return new AesContext ( secretKey );
+    }
+
+    /**
+     * Creates an RSA context bound to the given key.
+     *
+     * @param key the public or private key
+     *
+     * @return the context
+     *
+     * @throws GeneralSecurityException if RSA is not available or the key is invalid
+     */
+    public static RsaContext rsa ( Key key ) throws GeneralSecurityException {
+        return new RsaContext ( key );
+    }
+
+    /**
+     * An AES cipher for each direction, initialised once with the key. A context keeps the state of its ciphers
+     * between calls, so it must be confined to one thread.
+     */
+    public static final class AesContext {
+
+        private final Cipher encryptor;
+        private final Cipher decryptor;
+        private final byte[] key = new byte[ 16 ];
+        private boolean bound;
+
+        private AesContext ( byte[] secretKey ) throws GeneralSecurityException {
+            encryptor = Cipher.getInstance ( AES_TRANSFORMATION );
+            decryptor = Cipher.getInstance ( AES_TRANSFORMATION );
+            bind ( secretKey );
+        }
+
+        /**
+         * Initialises the ciphers with the given key, unless they already use it.
+         */
+        private void bind ( byte[] secretKey ) throws GeneralSecurityException {
+            byte[] secretKeyPadded = ByteBuffer.allocate ( 16 ).put ( secretKey ).array ( );
+            if ( bound && Arrays.equals ( key , secretKeyPadded ) ) {
+                return;
+            }
+            bound = false;
+            SecretKeySpec secretKeySpec = new SecretKeySpec ( secretKeyPadded , "AES" );
+            encryptor.init ( Cipher.ENCRYPT_MODE , secretKeySpec );
+            decryptor.init ( Cipher.DECRYPT_MODE , secretKeySpec );
+            System.arraycopy ( secretKeyPadded , 0 , key , 0 , key.length );
+            bound = true;
+        }
+
+        /**
+         * Encrypts a message.
+         *
+         * @param message the message to be encrypted
+         *
+         * @return the encrypted message
+         *
+         * @throws GeneralSecurityException when the encryption fails
+         */
+        public byte[] encrypt ( byte[] message ) throws GeneralSecurityException {
+            return encryptor.doFinal ( message );
+        }
+
+        /**
+         * Decrypts a message.
+         *
+         * @param message the message to be decrypted
+         *
+         * @return the decrypted message
+         *
+         * @throws GeneralSecurityException when the decryption fails
+         */
+        public byte[] decrypt ( byte[] message ) throws GeneralSecurityException {
+            return decryptor.doFinal ( message );
+        }
+    }
+
+    /**
+     * An RSA cipher for each direction, initialised with the key the first time it is used. A context must be
+     * confined to one thread.
+     */
+    public static final class RsaContext {
+
+        private final Cipher encryptor;
+        private final Cipher decryptor;
+        private Key key;
+        private boolean encryptorReady;
+        private boolean decryptorReady;
+
+        private RsaContext ( Key key ) throws GeneralSecurityException {
+            encryptor = Cipher.getInstance ( RSA_TRANSFORMATION );
+            decryptor = Cipher.getInstance ( RSA_TRANSFORMATION );
+            this.key = key;
+        }
+
+        /**
+         * Binds the context to the given key, unless it already uses it.
+         */
+        private void bind ( Key key ) {
+            if ( this.key != key && !this.key.equals ( key ) ) {
+                this.key = key;
+                encryptorReady = false;
+                decryptorReady = false;
+            }
+        }
+
+        /**
+         * Encrypts a message.
+         *
+         * @param message the message to be encrypted
+         *
+         * @return the encrypted message
+         *
+         * @throws GeneralSecurityException if any error occurs during the encryption process
+         */
+        public byte[] encrypt ( byte[] message ) throws GeneralSecurityException {
+            if ( !encryptorReady ) {
+                encryptor.init ( Cipher.ENCRYPT_MODE , key );
+                encryptorReady = true;
+            }
+            return encryptor.doFinal ( message );
+        }
+
+        /**
+         * Decrypts a message.
+         *
+         * @param message the message to be decrypted
+         *
+         * @return the decrypted message
+         *
+         * @throws GeneralSecurityException if any error occurs during the decryption process
+         */
+        public byte[] decrypt ( byte[] message ) throws GeneralSecurityException {
+            if ( !decryptorReady ) {
+                decryptor.init ( Cipher.DECRYPT_MODE , key );
+                decryptorReady = true;
+            }
+            return decryptor.doFinal ( message );
+        }
     }
 
     /**
@@ -0,0 +1,227 @@
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of keys generated ahead of time by a background thread, so a handshake takes its key in constant
+ * time instead of paying for the generation. Every key is handed out once and never returned to the pool.
+ * <p>
+ * The pool does not keep itself full: the background thread refills it up to a target that adapts to consumption.
+ * The target doubles, up to the capacity, whenever a caller finds the pool empty, and halves, down to the minimum,
+ * after a period in which no key was taken, so an idle client does not spend its CPU on keys nobody uses. A caller
+ * that finds the pool empty generates its key itself; such starvations are counted.
+ *
+ * @param <T> the type of the keys
+ */
+public class EphemeralKeyPool<T> implements Closeable {
+
+    private final Generator<T> generator;
+    private final Settings settings;
+    private final ArrayBlockingQueue<T> keys;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition belowTarget = lock.newCondition();
+    private final Thread refiller;
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder starved = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile int target;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a pool and starts the thread that fills it.
+     *
+     * @param name the name of the refill thread
+     * @param generator generates a key
+     * @param settings the capacity, the minimum target and the idle period of the pool
+     */
+    public EphemeralKeyPool(String name, Generator<T> generator, Settings settings) {
+        this.generator = generator;
+        this.settings = settings;
+        this.keys = new ArrayBlockingQueue<>(settings.capacity());
+        this.target = settings.minimum();
+        this.refiller = new Thread(this::refill, name);
+        refiller.setDaemon(true);
+        refiller.setPriority(Thread.MIN_PRIORITY);
+        refiller.start();
+    }
+
+    /**
+     * Takes a key out of the pool, or generates one on the calling thread if the pool is empty.
+     *
+     * @return a key that no other caller receives
+     * @throws GeneralSecurityException if the pool is empty and the key cannot be generated
+     */
+    public T take() throws GeneralSecurityException {
+        taken.increment();
+        T key = keys.poll();
+        if (key == null) {
+            starved.increment();
+            target = Math.min(settings.capacity(), Math.max(1, target) * 2);
+        }
+        if (key == null || keys.size() < target) {
+            lock.lock();
+            try {
+                belowTarget.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return key != null ? key : generator.generate();
+    }
+
+    /**
+     * Generates keys while the pool is below its target, and lowers the target when no key was taken for a while.
+     */
+    private void refill() {
+        long takenBefore = taken.sum();
+        while (!closed) {
+            lock.lock();
+            try {
+                while (!closed && keys.size() >= target) {
+                    if (!belowTarget.await(settings.idleMillis(), TimeUnit.MILLISECONDS)) {
+                        long takenNow = taken.sum();
+                        if (takenNow == takenBefore) {
+                            target = Math.max(settings.minimum(), target / 2);
+                        }
+                        takenBefore = takenNow;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                keys.offer(generator.generate());
+                generated.increment();
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Callers generate their own keys until the generator recovers
+                failures.increment();
+                try {
+                    Thread.sleep(settings.idleMillis());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of keys ready in the pool.
+     *
+     * @return the number of pooled keys
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Gets the number of keys the pool currently refills up to.
+     *
+     * @return the target size
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * Gets the number of keys taken from the pool, including those generated by the callers.
+     *
+     * @return the number of keys handed out
+     */
+    public long getTakeCount() {
+        return taken.sum();
+    }
+
+    /**
+     * Gets the number of callers that found the pool empty and generated their own key.
+     *
+     * @return the number of starvations
+     */
+    public long getStarvationCount() {
+        return starved.sum();
+    }
+
+    /**
+     * Gets the number of keys generated by the background thread.
+     *
+     * @return the number of pre-generated keys
+     */
+    public long getGeneratedCount() {
+        return generated.sum();
+    }
+
+    /**
+     * Gets the number of times the background thread failed to generate a key.
+     *
+     * @return the number of failures
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Stops the background thread and drops the pooled keys.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        refiller.interrupt();
+        keys.clear();
+    }
+
+    /**
+     * Generates a key.
+     *
+     * @param <T> the type of the keys
+     */
+    @FunctionalInterface
+    public interface Generator<T> {
+
+        /**
+         * Generates a fresh key.
+         *
+         * @return the key
+         * @throws GeneralSecurityException if the key cannot be generated
+         */
+        T generate() throws GeneralSecurityException;
+    }
+
+    /**
+     * The bounds of a pool.
+     *
+     * @param capacity the largest number of pooled keys
+     * @param minimum the number of keys kept ready when the pool is idle
+     * @param idleMillis the period without any key taken after which the target is halved
+     */
+    public record Settings(int capacity, int minimum, long idleMillis) {
+
+        /**
+         * Validates the bounds.
+         */
+        public Settings {
+            if (capacity < 1 || minimum < 0 || minimum > capacity || idleMillis < 1) {
+                throw new IllegalArgumentException("The bounds of a key pool are invalid.");
+            }
+        }
+
+        /**
+         * Reads the bounds from the {@code keyPool.capacity} (default 32), {@code keyPool.minimum} (default 2) and
+         * {@code keyPool.idleMillis} (default 30 seconds) system properties.
+         *
+         * @return the configured bounds
+         */
+        public static Settings fromProperties() {
+            return new Settings(Integer.getInteger("keyPool.capacity", 32), Integer.getInteger("keyPool.minimum", 2),
+                    Long.getLong("keyPool.idleMillis", 30_000));
+        }
+    }
+}
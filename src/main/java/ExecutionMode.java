@@ -0,0 +1,54 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enumerated type representing the ways a server can run the handler of each accepted connection.
+ */
+public enum ExecutionMode {
+    /**
+     * Runs each handler on a new platform thread.
+     */
+    THREADS,
+
+    /**
+     * Runs each handler on a new virtual thread, so idle connections do not hold an OS thread.
+     */
+    VIRTUAL,
+
+    /**
+     * Runs the handlers on a bounded pool of platform threads. Connections accepted while every thread is busy wait
+     * in a queue until a handler finishes.
+     */
+    POOL;
+
+    /**
+     * Creates an executor that runs handlers according to this mode.
+     *
+     * @param poolSize the number of threads of the pool, only used by {@link #POOL}
+     * @return the executor for the handlers
+     */
+    public ExecutorService newExecutor(int poolSize) {
+        return switch (this) {
+            case THREADS -> Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("handler-", 0).factory());
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("handler-", 0).factory());
+            case POOL -> new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    Thread.ofPlatform().name("handler-", 0).factory());
+        };
+    }
+
+    /**
+     * Reads the execution mode from a system property.
+     *
+     * @param property the name of the system property
+     * @param defaultMode the mode used when the property is not set
+     * @return the selected execution mode
+     * @throws IllegalArgumentException if the property does not name a mode
+     */
+    public static ExecutionMode fromProperty(String property, ExecutionMode defaultMode) {
+        String value = System.getProperty(property);
+        return value == null ? defaultMode : valueOf(value.toUpperCase());
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link MessageChannel} that exchanges length-prefixed frames. A framed connection starts with a preamble in each
+ * direction: the client proposes a codec and the server answers with the codec it accepted, falling back to
+ * {@link SerializedMessageCodec} when it does not know the proposed one. Every frame is then a 4-byte big-endian
+ * length followed by the payload produced by the negotiated {@link MessageCodec}. Writes are serialized with a
+ * {@link ReentrantLock}, so several threads may send through the same channel.
+ */
+public class FramedMessageChannel implements MessageChannel {
+
+    /** The magic bytes that open the preamble of a framed connection. */
+    public static final byte[] MAGIC = { 'P', 'S', 'C', 'F' };
+
+    /** The version of the framing protocol. */
+    public static final byte VERSION = 1;
+
+    /** The length of the preamble: magic, version and codec identifier. */
+    public static final int PREAMBLE_LENGTH = MAGIC.length + 2;
+
+    /** The largest frame payload accepted from a peer. */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final MessageCodec codec;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Connects a framed channel over the given socket, proposing the specified codec to the server.
+     *
+     * @param socket the connected socket
+     * @param codec the codec proposed to the server
+     * @throws IOException if an I/O error occurs or the server answers with an invalid preamble
+     */
+    public FramedMessageChannel(Socket socket, MessageCodec codec) throws IOException {
+        this(socket, new BufferedInputStream(socket.getInputStream()), codec);
+    }
+
+    private FramedMessageChannel(Socket socket, InputStream input, MessageCodec codec) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(TransportMetrics.counting(socket.getOutputStream())));
+        this.in = new DataInputStream(input);
+        out.write(preamble(codec.getId()));
+        out.flush();
+        byte[] answer = new byte[PREAMBLE_LENGTH];
+        in.readFully(answer);
+        this.codec = MessageCodec.forId(readPreamble(answer));
+        if (this.codec == null) {
+            throw new IOException("Server selected an unknown codec");
+        }
+    }
+
+    private FramedMessageChannel(Socket socket, DataInputStream in, DataOutputStream out, MessageCodec codec) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.codec = codec;
+    }
+
+    /**
+     * Accepts the channel of a client that has just connected to a server. The first bytes sent by the client
+     * tell which protocol it speaks: a framed client starts with the {@link #MAGIC} preamble and is answered with
+     * the negotiated codec, while any other client is served through an {@link ObjectMessageChannel}.
+     *
+     * @param socket the socket of the client
+     * @return the channel connected to the client
+     * @throws IOException if an I/O error occurs or the client sends an invalid preamble
+     */
+    public static MessageChannel accept(Socket socket) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        input.mark(MAGIC.length);
+        byte[] magic = input.readNBytes(MAGIC.length);
+        input.reset();
+        if (!Arrays.equals(magic, MAGIC)) {
+            return new ObjectMessageChannel(socket, input);
+        }
+        DataInputStream in = new DataInputStream(input);
+        byte[] preamble = new byte[PREAMBLE_LENGTH];
+        in.readFully(preamble);
+        MessageCodec codec = MessageCodec.forId(readPreamble(preamble));
+        if (codec == null) {
+            codec = SerializedMessageCodec.INSTANCE;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(TransportMetrics.counting(socket.getOutputStream())));
+        out.write(preamble(codec.getId()));
+        out.flush();
+        return new FramedMessageChannel(socket, in, out, codec);
+    }
+
+    /**
+     * Builds the preamble announcing the specified codec.
+     *
+     * @param codecId the identifier of the codec
+     * @return the preamble bytes
+     */
+    public static byte[] preamble(byte codecId) {
+        byte[] preamble = new byte[PREAMBLE_LENGTH];
+        System.arraycopy(MAGIC, 0, preamble, 0, MAGIC.length);
+        preamble[MAGIC.length] = VERSION;
+        preamble[MAGIC.length + 1] = codecId;
+        return preamble;
+    }
+
+    /**
+     * Validates a preamble and extracts the codec identifier it announces.
+     *
+     * @param preamble the preamble bytes
+     * @return the codec identifier
+     * @throws IOException if the magic bytes or the version are not supported
+     */
+    public static byte readPreamble(byte[] preamble) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (preamble[i] != MAGIC[i]) {
+                throw new IOException("Invalid preamble");
+            }
+        }
+        if (preamble[MAGIC.length] != VERSION) {
+            throw new IOException("Unsupported framing version " + preamble[MAGIC.length]);
+        }
+        return preamble[MAGIC.length + 1];
+    }
+
+    /**
+     * Gets the codec negotiated with the server.
+     *
+     * @return the negotiated codec
+     */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            write(message);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        writeLock.lock();
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+        } finally {
+            writeLock.unlock();
+        }
+        TransportMetrics.recordMessages(1);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Message receive() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(payload, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        out.close();
+        in.close();
+    }
+}
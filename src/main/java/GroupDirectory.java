@@ -0,0 +1,149 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The group channels of a server and their members. Groups are spread over a fixed number of shards by the hash of
+ * their name, each shard with its own lock, so joins and leaves of different groups rarely contend. The members of a
+ * group are kept as an immutable set that is replaced on every change, so fanning out a message to a group is one
+ * lock-free lookup of that set and never waits for a join or a leave, however many members the group has.
+ */
+public class GroupDirectory {
+
+    private final Shard[] shards;
+
+    /**
+     * Constructs an empty directory with the number of shards given by the {@code groups.shards} system property
+     * (default 16).
+     */
+    public GroupDirectory() {
+        this(Integer.getInteger("groups.shards", 16));
+    }
+
+    /**
+     * Constructs an empty directory with the given number of shards.
+     *
+     * @param shardCount the number of shards, rounded up to a power of two
+     */
+    public GroupDirectory(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("The number of shards must be positive.");
+        }
+        int count = 1;
+        while (count < shardCount) {
+            count <<= 1;
+        }
+        this.shards = new Shard[count];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private Shard shard(String group) {
+        int hash = group.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    /**
+     * Creates a group whose only member is its creator.
+     *
+     * @param group the name of the group
+     * @param creator the name of the creator
+     * @return true if the group was created, false if the name is taken
+     */
+    public boolean create(String group, String creator) {
+        Shard shard = shard(group);
+        shard.lock.lock();
+        try {
+            return shard.groups.putIfAbsent(group, Set.of(creator)) == null;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a member to a group.
+     *
+     * @param group the name of the group
+     * @param name the name of the new member
+     * @return true if the group exists, whether or not the user was already a member
+     */
+    public boolean join(String group, String name) {
+        Shard shard = shard(group);
+        shard.lock.lock();
+        try {
+            Set<String> members = shard.groups.get(group);
+            if (members == null) {
+                return false;
+            }
+            if (!members.contains(name)) {
+                Set<String> joined = new HashSet<>(members);
+                joined.add(name);
+                shard.groups.put(group, Set.copyOf(joined));
+            }
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a member from a group. A group left without members is deleted.
+     *
+     * @param group the name of the group
+     * @param name the name of the member
+     * @return true if the user was a member of the group
+     */
+    public boolean leave(String group, String name) {
+        Shard shard = shard(group);
+        shard.lock.lock();
+        try {
+            Set<String> members = shard.groups.get(group);
+            if (members == null || !members.contains(name)) {
+                return false;
+            }
+            if (members.size() == 1) {
+                shard.groups.remove(group);
+            } else {
+                Set<String> left = new HashSet<>(members);
+                left.remove(name);
+                shard.groups.put(group, Set.copyOf(left));
+            }
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the members of a group. The set is a snapshot that later changes do not affect.
+     *
+     * @param group the name of the group
+     * @return the members of the group, or null if there is no such group
+     */
+    public Set<String> members(String group) {
+        return shard(group).groups.get(group);
+    }
+
+    /**
+     * Gets the number of groups.
+     *
+     * @return the number of groups
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.groups.size();
+        }
+        return size;
+    }
+
+    /**
+     * The groups whose names hash to the same shard. Changes are made under the lock; reads need none.
+     */
+    private static final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ConcurrentHashMap<String, Set<String>> groups = new ConcurrentHashMap<>();
+    }
+}
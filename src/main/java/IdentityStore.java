@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * The identities of the clients of this machine: for each nickname, the RSA key pair, the certificate signed by the
+ * CA and the public key of that CA. A client that finds a valid identity for its nickname logs in with it straight
+ * away, without generating a key pair or asking the CA for a signature.
+ * <p>
+ * Each identity is a properties file named after the nickname, holding the keys and the certificate in Base64,
+ * written through {@link SecureFiles}.
+ */
+public class IdentityStore {
+
+    private final Path directory;
+    private final long maxAgeMillis;
+
+    /**
+     * Constructs a store in the given directory whose identities are valid for the number of milliseconds given by
+     * the {@code identity.maxAgeMillis} system property (default 30 days).
+     *
+     * @param directory the directory of the identity files, created on the first save
+     */
+    public IdentityStore(Path directory) {
+        this(directory, Long.getLong("identity.maxAgeMillis", 30L * 24 * 60 * 60 * 1000));
+    }
+
+    /**
+     * Constructs a store in the given directory.
+     *
+     * @param directory the directory of the identity files, created on the first save
+     * @param maxAgeMillis the age of a certificate after which its identity is signed again
+     */
+    public IdentityStore(Path directory, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Gets the file of a nickname. A nickname made of letters, digits, underscores and dashes is used as it is; any
+     * other is written in hexadecimal after a {@code %}, which no such nickname contains, so a nickname can neither
+     * leave the directory nor share its file with another nickname.
+     */
+    private Path file(String nickname) {
+        String name = nickname.matches("[\\w-]+") ? nickname
+                : "%" + HexFormat.of().formatHex(nickname.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(name + ".identity");
+    }
+
+    /**
+     * Loads the identity of a nickname, if it is still valid: its certificate names the nickname, holds the public
+     * key of the key pair, is signed by the stored CA key and is younger than the maximum age.
+     *
+     * @param nickname the nickname of the client
+     * @return the identity, or null if there is none or it is no longer valid
+     * @throws IOException if the identity file cannot be read
+     */
+    public Identity load(String nickname) throws IOException {
+        Path file = file(nickname);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = SecureFiles.read(file);
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            KeyPair keyPair = new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(decode(properties, "publicKey"))),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(decode(properties, "privateKey"))));
+            PublicKey caPublicKey = keyFactory.generatePublic(new X509EncodedKeySpec(decode(properties, "caPublicKey")));
+            String pemCertificate = new String(decode(properties, "certificate"), StandardCharsets.UTF_8);
+            Identity identity = new Identity(keyPair, pemCertificate, caPublicKey);
+            return isValid(nickname, identity) ? identity : null;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static byte[] decode(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("The identity has no " + name);
+        }
+        return Base64.getDecoder().decode(value);
+    }
+
+    private boolean isValid(String nickname, Identity identity) {
+        try {
+            Certificate certificate = new CertificateEncoder().decode(identity.certificate());
+            return nickname.equals(new CertificateCache().verify(identity.certificate(), identity.caPublicKey()))
+                    && certificate.getPublicRSAKey().equals(identity.keyPair().getPublic())
+                    && certificate.getEmissionDate() != null
+                    && System.currentTimeMillis() - certificate.getEmissionDate().getTime() < maxAgeMillis;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the identity of a nickname, replacing the previous one.
+     *
+     * @param nickname the nickname of the client
+     * @param identity the key pair, the signed certificate and the key of the CA
+     * @throws IOException if the identity file cannot be written
+     */
+    public void save(String nickname, Identity identity) throws IOException {
+        Path file = file(nickname);
+        Properties properties = new Properties();
+        Base64.Encoder encoder = Base64.getEncoder();
+        properties.setProperty("publicKey", encoder.encodeToString(identity.keyPair().getPublic().getEncoded()));
+        properties.setProperty("privateKey", encoder.encodeToString(identity.keyPair().getPrivate().getEncoded()));
+        properties.setProperty("caPublicKey", encoder.encodeToString(identity.caPublicKey().getEncoded()));
+        properties.setProperty("certificate", encoder.encodeToString(identity.certificate().getBytes(StandardCharsets.UTF_8)));
+        SecureFiles.write(file, properties, "Identity of " + nickname);
+    }
+
+    /**
+     * Deletes the identity of a nickname, so the next start generates a new one.
+     *
+     * @param nickname the nickname of the client
+     * @throws IOException if the identity file cannot be deleted
+     */
+    public void delete(String nickname) throws IOException {
+        Files.deleteIfExists(file(nickname));
+    }
+
+    /**
+     * The identity of a client.
+     *
+     * @param keyPair the RSA key pair of the client
+     * @param certificate the PEM encoded certificate signed by the CA
+     * @param caPublicKey the public key of the CA that signed the certificate
+     */
+    public record Identity(KeyPair keyPair, String certificate, PublicKey caPublicKey) {
+    }
+}
@@ -1,12 +1,15 @@
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 /**
- * This class implements the generation and verification of the message digest.
+ * This class implements the generation and verification of the message digest. Each thread reuses its own digest
+ * instance instead of looking the algorithm up for every message.
  */
 public class Integrity {
 
     private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<> ( );
 
     /**
      * Computes the message digest of the given message.
@@ -18,10 +21,39 @@ public class Integrity {
      * @throws Exception if the message digest algorithm is not available
      */
     public static byte[] generateDigest ( byte[] message ) throws Exception {
-        MessageDigest messageDigest = MessageDigest.getInstance ( DIGEST_ALGORITHM );
+        return digest ( ).digest ( message );
+    }
+
+    /**
+     * Computes the message digest of the concatenation of two messages, without concatenating them.
+     *
+     * @param prefix  the first part of the message
+     * @param message the second part of the message
+     *
+     * @return the message digest
+     *
+     * @throws Exception if the message digest algorithm is not available
+     */
+    public static byte[] generateDigest ( byte[] prefix , byte[] message ) throws Exception {
+        MessageDigest messageDigest = digest ( );
+        messageDigest.update ( prefix );
         return messageDigest.digest ( message );
     }
 
+    /**
+     * Gets the digest of the current thread, ready for a new message.
+     */
+    private static MessageDigest digest ( ) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = DIGESTS.get ( );
+        if ( messageDigest == null ) {
+            messageDigest = MessageDigest.getInstance ( DIGEST_ALGORITHM );
+            DIGESTS.set ( messageDigest );
+        } else {
+            messageDigest.reset ( );
+        }
+        return messageDigest;
+    }
+
     /**
      * Verifies the message digest of the given message.
      *
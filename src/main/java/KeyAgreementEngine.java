@@ -0,0 +1,72 @@
+import java.security.GeneralSecurityException;
+
+/**
+ * A key agreement scheme used by the handshakes of end-to-end sessions. Each side generates an
+ * {@link EphemeralKey}, sends its public value to the peer and combines its private value with the public value of
+ * the peer into a shared secret, which is then hashed into the session key. The engines are stateless and may be
+ * shared between threads.
+ */
+public interface KeyAgreementEngine {
+
+    /**
+     * Gets the name of the scheme, which both sides of a handshake must use.
+     *
+     * @return the name of the scheme
+     */
+    String getName();
+
+    /**
+     * Generates a fresh key for one handshake.
+     *
+     * @return the ephemeral key
+     * @throws GeneralSecurityException if the key cannot be generated
+     */
+    EphemeralKey generate() throws GeneralSecurityException;
+
+    /**
+     * Finds an engine by the name of its scheme: {@code X25519}, or {@code legacy} for the {@link DiffieHellman}
+     * class.
+     *
+     * @param name the name of the scheme
+     * @return the engine
+     * @throws IllegalArgumentException if there is no such scheme
+     */
+    static KeyAgreementEngine forName(String name) {
+        return switch (name) {
+            case X25519Engine.NAME -> new X25519Engine();
+            case LegacyDiffieHellmanEngine.NAME -> new LegacyDiffieHellmanEngine();
+            default -> throw new IllegalArgumentException("Unknown key agreement " + name);
+        };
+    }
+
+    /**
+     * Gets the engine given by the {@code session.keyAgreement} system property (default {@code X25519}).
+     *
+     * @return the configured engine
+     */
+    static KeyAgreementEngine fromProperties() {
+        return forName(System.getProperty("session.keyAgreement", X25519Engine.NAME));
+    }
+
+    /**
+     * The key of one side of one handshake. It is used for a single agreement and then dropped.
+     */
+    interface EphemeralKey {
+
+        /**
+         * Gets the public value to send to the peer.
+         *
+         * @return the encoded public value
+         */
+        byte[] getPublicKey();
+
+        /**
+         * Combines this key with the public value of the peer.
+         *
+         * @param peerPublicKey the encoded public value of the peer
+         * @return the shared secret
+         * @throws GeneralSecurityException if the public value of the peer is invalid
+         */
+        byte[] agree(byte[] peerPublicKey) throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,48 @@
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * Key agreement with the {@link DiffieHellman} class. Its modulus is far too small to protect anything, so this
+ * engine is only kept for compatibility and for comparison with {@link X25519Engine}. A public value is the
+ * two's-complement encoding of the {@link BigInteger}.
+ */
+public class LegacyDiffieHellmanEngine implements KeyAgreementEngine {
+
+    /** The name of the scheme. */
+    public static final String NAME = "legacy";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public KeyAgreementEngine.EphemeralKey generate() throws GeneralSecurityException {
+        BigInteger privateKey = DiffieHellman.generatePrivateKey();
+        return new EphemeralKey(privateKey, DiffieHellman.generatePublicKey(privateKey).toByteArray());
+    }
+
+    /**
+     * A private exponent with its encoded public value.
+     */
+    private record EphemeralKey(BigInteger privateKey, byte[] publicKey) implements KeyAgreementEngine.EphemeralKey {
+
+        @Override
+        public byte[] getPublicKey() {
+            return publicKey.clone();
+        }
+
+        @Override
+        public byte[] agree(byte[] peerPublicKey) throws GeneralSecurityException {
+            if (peerPublicKey.length == 0) {
+                throw new InvalidKeyException("The public key is empty.");
+            }
+            BigInteger peer = new BigInteger(peerPublicKey);
+            if (peer.signum() <= 0) {
+                throw new InvalidKeyException("The public key is not positive.");
+            }
+            return DiffieHellman.computeSecret(peer, privateKey).toByteArray();
+        }
+    }
+}
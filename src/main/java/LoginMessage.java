@@ -0,0 +1,34 @@
+/**
+ * The LoginMessage class represents a login request from a client that already holds a copy of the roster of
+ * logged-in users, so that the server can answer with the changes since that copy instead of the whole roster.
+ * It extends the Message class.
+ */
+public class LoginMessage extends Message {
+
+    /** The version of the roster held by a client that has none. */
+    public static final long NO_VERSION = -1;
+
+    private final long knownVersion;
+
+    /**
+     * Constructs a LoginMessage object with the specified certificate, recipient, sender, and known roster version.
+     *
+     * @param certificate the encoded certificate of the user
+     * @param recipient the recipient of the message
+     * @param sender the sender of the message
+     * @param knownVersion the version of the roster held by the client, or {@link #NO_VERSION}
+     */
+    public LoginMessage(byte[] certificate, String recipient, String sender, long knownVersion) {
+        super(certificate, recipient, sender, MessageTypes.LOGIN);
+        this.knownVersion = knownVersion;
+    }
+
+    /**
+     * Gets the version of the roster held by the client.
+     *
+     * @return the known roster version, or {@link #NO_VERSION}
+     */
+    public long getKnownVersion() {
+        return knownVersion;
+    }
+}
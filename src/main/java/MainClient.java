@@ -1,3 +1,4 @@
+import java.nio.file.Path;
 import java.util.Scanner;
 
 /**
@@ -5,12 +6,29 @@ import java.util.Scanner;
  */
 public class MainClient {
     /**
-     * The main method of the client.
+     * The main method of the client. The {@code client.transport} system property selects the wire format:
+     * {@code objects} (default) uses Object streams, {@code framed} length-prefixed frames holding serialized
+     * messages, and {@code binary} length-prefixed frames with the compact {@link BinaryMessageCodec}. The
+     * {@code nio} server mode requires one of the framed formats. The certificates the client verifies are kept in
+     * the file given by the {@code client.certificateCache} property (default {@code data/verified-certificates}),
+     * or only in memory when it is empty. The key pair and the signed certificate of each nickname are kept in the
+     * directory given by the {@code client.identities} property (default {@code data/identities}), so a later start
+     * with the same nickname skips the key generation and the CA; when it is empty, a new identity is generated on
+     * every start.
      *
      * @param args The command line arguments
      */
     public static void main ( String[] args ) throws Exception {
-        Client client = new Client ( 9000 , 8100 );
+        MessageCodec codec = switch ( System.getProperty ( "client.transport" , "objects" ) ) {
+            case "framed" -> SerializedMessageCodec.INSTANCE;
+            case "binary" -> BinaryMessageCodec.INSTANCE;
+            default -> null;
+        };
+        String cacheFile = System.getProperty ( "client.certificateCache" , "data/verified-certificates" );
+        CertificateCache cache = cacheFile.isEmpty ( ) ? new CertificateCache ( ) : new CertificateCache ( Path.of ( cacheFile ) );
+        String identities = System.getProperty ( "client.identities" , "data/identities" );
+        IdentityStore identityStore = identities.isEmpty ( ) ? null : new IdentityStore ( Path.of ( identities ) );
+        Client client = new Client ( 9000 , 8100 , codec , cache , identityStore );
         client.execute ( );
     }
 }
\ No newline at end of file
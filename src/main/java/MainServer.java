@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.nio.file.Path;
 
 // Javadoc: http://localhost:63342/pa-secure-chat-group-9/target/apidocs/package-summary.html
 
@@ -8,13 +9,28 @@ import java.io.IOException;
 public class MainServer {
 
     /**
-     * The main method to start the server on the specified port.
+     * The main method to start the server on the specified port. The {@code server.mode} system property selects
+     * the engine: {@code threads} (default) runs one platform thread per connection, {@code virtual} one virtual
+     * thread per connection, {@code pool} a pool of {@code server.poolSize} platform threads, and {@code nio}
+     * multiplexes the connections over {@code server.eventLoops} event-loop threads. The registered names are kept in
+     * a {@link RegistrationStore} under the {@code server.dataDir} directory (default {@code data/registrations}),
+     * so they survive a restart; setting it to an empty value keeps them only in memory.
      *
      * @param args The command-line arguments (not used).
      * @throws Exception If an error occurs while starting the server.
      */
     public static void main ( String[] args ) throws Exception {
-        Server server = new Server ( 9000 );
+        Runnable server;
+        int processors = Runtime.getRuntime ( ).availableProcessors ( );
+        String dataDir = System.getProperty ( "server.dataDir" , "data/registrations" );
+        UserRegistry registry = dataDir.isEmpty ( ) ? new UserRegistry ( )
+                : new UserRegistry ( new RegistrationStore ( Path.of ( dataDir ) , RegistrationStore.Options.fromProperties ( ) ) );
+        if ( "nio".equals ( System.getProperty ( "server.mode" ) ) ) {
+            server = new NioServer ( 9000 , Integer.getInteger ( "server.eventLoops" , processors ) , registry );
+        } else {
+            ExecutionMode mode = ExecutionMode.fromProperty ( "server.mode" , ExecutionMode.THREADS );
+            server = new Server ( 9000 , mode.newExecutor ( Integer.getInteger ( "server.poolSize" , processors * 64 ) ) , registry );
+        }
         Thread serverThread = new Thread ( server );
         serverThread.start ( );
     }
@@ -0,0 +1,172 @@
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Certificate signatures that cover a whole batch of certificates with one RSA operation. The digests of the
+ * certificates are the leaves of a Merkle tree, the CA encrypts the root with its private key, and the signature of
+ * each certificate carries the path from its leaf to the root, so it can be verified on its own.
+ * <p>
+ * A leaf is the SHA-256 of a zero byte followed by the digest of the certificate, and a node the SHA-256 of a one
+ * byte followed by its two children, so a leaf can never pass for a node. A node without a sibling moves up a level
+ * unchanged. A batch signature is the four bytes {@code MRKL}, the index of the leaf and the number of leaves as
+ * ints, the number of hashes in the path as a byte, the hashes of the path and the encrypted root. Any other
+ * signature is the plain signature of a single certificate, the digest of the certificate encrypted by the CA.
+ */
+public final class MerkleSignature {
+
+    private static final byte[] MAGIC = {'M', 'R', 'K', 'L'};
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH = MAGIC.length + 4 + 4 + 1;
+    private static final byte[] LEAF = {0};
+    private static final byte[] NODE = {1};
+
+    private MerkleSignature() {
+    }
+
+    /**
+     * Signs a batch of certificate digests with one RSA operation.
+     *
+     * @param digests the SHA-256 digests of the certificate data
+     * @param privateKey the private key of the CA
+     * @return the signature of each certificate, in the order of the digests
+     * @throws GeneralSecurityException if the root cannot be signed
+     */
+    public static byte[][] sign(List<byte[]> digests, PrivateKey privateKey) throws GeneralSecurityException {
+        if (digests.isEmpty()) {
+            throw new IllegalArgumentException("A batch needs at least one certificate.");
+        }
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = new byte[digests.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = hash(LEAF, digests.get(i));
+        }
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                parent[i] = 2 * i + 1 < level.length ? node(level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        byte[] rootSignature;
+        try {
+            rootSignature = Encryption.encryptRSA(level[0], privateKey);
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+        byte[][] signatures = new byte[digests.size()][];
+        List<byte[]> path = new ArrayList<>();
+        for (int leaf = 0; leaf < signatures.length; leaf++) {
+            path.clear();
+            int index = leaf;
+            for (int depth = 0; depth < levels.size() - 1; depth++) {
+                byte[][] nodes = levels.get(depth);
+                int sibling = index ^ 1;
+                if (sibling < nodes.length) {
+                    path.add(nodes[sibling]);
+                }
+                index >>= 1;
+            }
+            ByteBuffer signature = ByteBuffer.allocate(HEADER_LENGTH + path.size() * HASH_LENGTH + rootSignature.length);
+            signature.put(MAGIC).putInt(leaf).putInt(signatures.length).put((byte) path.size());
+            for (byte[] hash : path) {
+                signature.put(hash);
+            }
+            signatures[leaf] = signature.put(rootSignature).array();
+        }
+        return signatures;
+    }
+
+    /**
+     * Checks whether a signature covers a batch of certificates.
+     *
+     * @param signature the signature of a certificate
+     * @return true if the signature carries an inclusion path
+     */
+    public static boolean isBatched(byte[] signature) {
+        return signature != null && signature.length > HEADER_LENGTH
+                && Arrays.equals(signature, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Verifies the signature of a certificate, whether it was signed alone or in a batch.
+     *
+     * @param digest the SHA-256 digest of the certificate data
+     * @param signature the signature of the certificate
+     * @param caPublicKey the public key of the CA
+     * @return true if the CA signed the certificate
+     * @throws GeneralSecurityException if the signature cannot be checked
+     */
+    public static boolean verify(byte[] digest, byte[] signature, PublicKey caPublicKey) throws GeneralSecurityException {
+        if (signature == null) {
+            return false;
+        }
+        byte[] signed = digest;
+        byte[] rootSignature = signature;
+        if (isBatched(signature)) {
+            ByteBuffer buffer = ByteBuffer.wrap(signature, MAGIC.length, signature.length - MAGIC.length);
+            int index = buffer.getInt();
+            int count = buffer.getInt();
+            int pathLength = buffer.get() & 0xff;
+            if (index < 0 || index >= count || buffer.remaining() <= pathLength * HASH_LENGTH) {
+                return false;
+            }
+            byte[] hash = hash(LEAF, digest);
+            byte[] sibling = new byte[HASH_LENGTH];
+            int used = 0;
+            for (; count > 1; index >>= 1, count = (count + 1) / 2) {
+                int siblingIndex = index ^ 1;
+                if (siblingIndex >= count) {
+                    continue;
+                }
+                if (used++ == pathLength) {
+                    return false;
+                }
+                buffer.get(sibling);
+                hash = siblingIndex < index ? node(sibling, hash) : node(hash, sibling);
+            }
+            if (used != pathLength) {
+                return false;
+            }
+            signed = hash;
+            rootSignature = Arrays.copyOfRange(signature, buffer.position(), signature.length);
+        }
+        try {
+            return Arrays.equals(signed, Encryption.decryptRSA(rootSignature, caPublicKey));
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SignatureException(e);
+        }
+    }
+
+    private static byte[] node(byte[] left, byte[] right) throws GeneralSecurityException {
+        byte[] children = new byte[left.length + right.length];
+        System.arraycopy(left, 0, children, 0, left.length);
+        System.arraycopy(right, 0, children, left.length, right.length);
+        return hash(NODE, children);
+    }
+
+    private static byte[] hash(byte[] prefix, byte[] message) throws GeneralSecurityException {
+        try {
+            return Integrity.generateDigest(prefix, message);
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * A bidirectional, blocking connection that exchanges {@link Message} objects with a peer.
+ */
+public interface MessageChannel extends MessageSink {
+
+    /**
+     * Blocks until the next message is received from the peer.
+     *
+     * @return the received message
+     * @throws IOException if an I/O error occurs while reading the message
+     * @throws ClassNotFoundException if the class of a received object cannot be found
+     */
+    Message receive() throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,48 @@
+import java.io.IOException;
+
+/**
+ * Converts {@link Message} objects to and from the payload of a length-prefixed frame.
+ */
+public interface MessageCodec {
+
+    /**
+     * Gets the identifier of the codec, exchanged in the preamble of a framed connection.
+     *
+     * @return the codec identifier
+     */
+    byte getId();
+
+    /**
+     * Encodes a message into a frame payload.
+     *
+     * @param message the message to be encoded
+     * @return the encoded payload
+     * @throws IOException if the message cannot be encoded
+     */
+    byte[] encode(Message message) throws IOException;
+
+    /**
+     * Decodes a message from a frame payload.
+     *
+     * @param data the buffer holding the payload
+     * @param offset the offset of the payload in the buffer
+     * @param length the length of the payload
+     * @return the decoded message
+     * @throws IOException if the payload is not a valid message
+     */
+    Message decode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Gets the codec with the specified identifier.
+     *
+     * @param id the codec identifier
+     * @return the codec, or null if the identifier is unknown
+     */
+    static MessageCodec forId(byte id) {
+        return switch (id) {
+            case SerializedMessageCodec.ID -> SerializedMessageCodec.INSTANCE;
+            case BinaryMessageCodec.ID -> BinaryMessageCodec.INSTANCE;
+            default -> null;
+        };
+    }
+}
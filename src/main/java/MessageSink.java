@@ -0,0 +1,36 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination that {@link Message} objects can be written to, such as the connection of a logged-in user. Besides
+ * {@link #send(Message)}, which delivers a message right away, a sink may buffer messages written with
+ * {@link #write(Message)} until {@link #flush()} is called, so that several messages leave in one socket write.
+ */
+public interface MessageSink extends Closeable {
+
+    /**
+     * Sends a message through this sink.
+     *
+     * @param message the message to be sent
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    void send(Message message) throws IOException;
+
+    /**
+     * Writes a message that may stay buffered until the next {@link #flush()}.
+     *
+     * @param message the message to be written
+     * @throws IOException if an I/O error occurs while writing the message
+     */
+    default void write(Message message) throws IOException {
+        send(message);
+    }
+
+    /**
+     * Delivers the messages buffered by {@link #write(Message)}.
+     *
+     * @throws IOException if an I/O error occurs while flushing
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -56,4 +56,36 @@ public enum MessageTypes {
      * Represents a message containing a public key.
      */
     KEY_MESSAGE,
+    /**
+     * Represents the changes to the roster of logged-in users since a version known to the client.
+     */
+    ROSTER_DELTA,
+    /**
+     * Represents a subscription to the presence of a list of users.
+     */
+    SUBSCRIBE,
+    /**
+     * Represents the creation of a group channel.
+     */
+    GROUP_CREATE,
+    /**
+     * Represents joining a group channel.
+     */
+    GROUP_JOIN,
+    /**
+     * Represents leaving a group channel.
+     */
+    GROUP_LEAVE,
+    /**
+     * Represents a step of the handshake of an end-to-end session between two users.
+     */
+    SESSION_HANDSHAKE,
+    /**
+     * Represents a user message encrypted with end-to-end session keys.
+     */
+    SESSION_MESSAGE,
+    /**
+     * Represents a request to sign the certificate carried in the message, answered like {@link #SIGN_CERTIFICATE}.
+     */
+    CERTIFICATE_REQUEST,
 }
@@ -0,0 +1,423 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents a server that multiplexes every client connection over a small, fixed set of event-loop
+ * threads instead of running one thread per connection. Clients connect with a {@link FramedMessageChannel}, and
+ * each decoded request is handled by a {@link ClientHandler} with the same semantics as the thread-per-connection
+ * {@link Server}. Each connection queues its outbound frames until its event loop writes them; the queue is bounded
+ * by the same watermarks and {@link SlowConsumerPolicy} as the {@link OutboundQueue} of the blocking server.
+ */
+public class NioServer implements Runnable, Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHERED_FRAMES = 64;
+    private static final ThreadLocal<EncodedFrame> LAST_FRAME = new ThreadLocal<>();
+
+    private final ServerSocketChannel server;
+    private final EventLoop[] eventLoops;
+    private final ConcurrentHashMap<String, User> clients = new ConcurrentHashMap<>();
+    private final UserRegistry registeredNames;
+    private final PresenceAggregator presence = new PresenceAggregator(clients);
+    private final GroupDirectory groups = new GroupDirectory();
+    private final OutboundQueue.Limits limits = OutboundQueue.Limits.fromProperties();
+    private volatile boolean isConnected;
+
+    /**
+     * Constructs a NioServer listening on the specified port with the given number of event loops.
+     *
+     * @param port the port number
+     * @param eventLoops the number of event-loop threads that serve the connections
+     * @throws IOException if an I/O error occurs when opening the channel or the selectors
+     */
+    public NioServer(int port, int eventLoops) throws IOException {
+        this(port, eventLoops, new UserRegistry());
+    }
+
+    /**
+     * Constructs a NioServer listening on the specified port with the given number of event loops that keeps the
+     * registered names in the given registry, which may have been recovered from a {@link RegistrationStore}.
+     *
+     * @param port the port number
+     * @param eventLoops the number of event-loop threads that serve the connections
+     * @param registeredNames the registry of the registered names
+     * @throws IOException if an I/O error occurs when opening the channel or the selectors
+     */
+    public NioServer(int port, int eventLoops, UserRegistry registeredNames) throws IOException {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("At least one event loop is required.");
+        }
+        this.registeredNames = registeredNames;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        this.eventLoops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.eventLoops[i] = new EventLoop(i);
+        }
+        isConnected = true;
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return the local port of the server
+     * @throws IOException if the local address cannot be read
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Gets the number of messages waiting to be written to each connected user.
+     *
+     * @return the outbound queue depth of each connected user
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (User user : clients.values()) {
+            QueueMetrics metrics = user.getQueueMetrics();
+            depths.put(user.getName(), metrics == null ? 0 : metrics.getDepth());
+        }
+        return depths;
+    }
+
+    /**
+     * Starts the event loops and accepts connections, handing them to the event loops in round-robin order.
+     */
+    @Override
+    public void run() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.thread.start();
+        }
+        int next = 0;
+        try {
+            while (isConnected) {
+                SocketChannel client = server.accept();
+                eventLoops[next].register(client);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            if (isConnected) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes every connection served by the event loops.
+     *
+     * @throws IOException if an I/O error occurs while closing the server channel
+     */
+    @Override
+    public void close() throws IOException {
+        isConnected = false;
+        server.close();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Encodes a message into a frame. The last frame encoded by each thread is remembered, so a message fanned out
+     * to many recipients by one handler is encoded once and its frame is shared by all the recipients' queues.
+     */
+    private static byte[] encodeFrame(Message message, MessageCodec codec) throws IOException {
+        EncodedFrame last = LAST_FRAME.get();
+        if (last != null && last.message() == message && last.codecId() == codec.getId()) {
+            return last.frame();
+        }
+        byte[] payload = codec.encode(message);
+        byte[] frame = ByteBuffer.allocate(Integer.BYTES + payload.length).putInt(payload.length).put(payload).array();
+        LAST_FRAME.set(new EncodedFrame(message, codec.getId(), frame));
+        return frame;
+    }
+
+    private record EncodedFrame(Message message, byte codecId, byte[] frame) {
+    }
+
+    /**
+     * A thread that owns a selector and performs every read and write of the connections registered with it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-event-loop-" + index);
+        }
+
+        private void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        private void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isConnected) {
+                    selector.select();
+                    registerPending();
+                    flushPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.writePending();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A request the handler cannot process ends its own connection, not the event loop
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void flushPending() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.writePending();
+                } catch (IOException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A client connection served by an event loop. Messages sent to the connection from any thread are encoded into
+     * frames and queued; the event loop writes the queued frames with a single gathering write when the socket is
+     * writable.
+     */
+    private final class Connection implements MessageSink, QueueMetrics {
+
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final OutboundQueue.Backlog backlog = new OutboundQueue.Backlog(limits);
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+        private volatile MessageCodec codec;
+        private ClientHandler handler;
+        private volatile boolean closed;
+
+        private Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        public void send(Message message) throws IOException {
+            if (closed) {
+                return;
+            }
+            switch (backlog.offer()) {
+                case DROP -> {
+                    return;
+                }
+                case DISCONNECT -> {
+                    close();
+                    return;
+                }
+                default -> {
+                }
+            }
+            enqueue(ByteBuffer.wrap(encodeFrame(message, codec)));
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            writeQueue.add(buffer);
+            if (writeScheduled.compareAndSet(false, true)) {
+                eventLoop.scheduleWrite(this);
+            }
+        }
+
+        /**
+         * Reads the available bytes and handles every complete frame. Called only by the event loop.
+         */
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            int needed = 0;
+            try {
+                if (codec == null) {
+                    if (readBuffer.remaining() < FramedMessageChannel.PREAMBLE_LENGTH) {
+                        return;
+                    }
+                    byte[] preamble = new byte[FramedMessageChannel.PREAMBLE_LENGTH];
+                    readBuffer.get(preamble);
+                    MessageCodec proposed = MessageCodec.forId(FramedMessageChannel.readPreamble(preamble));
+                    codec = proposed != null ? proposed : SerializedMessageCodec.INSTANCE;
+                    backlog.offer();
+                    enqueue(ByteBuffer.wrap(FramedMessageChannel.preamble(codec.getId())));
+                    handler = new ClientHandler(this, clients, registeredNames, presence, groups);
+                }
+                while (!closed && readBuffer.remaining() >= Integer.BYTES) {
+                    int length = readBuffer.getInt(readBuffer.position());
+                    if (length < 0 || length > FramedMessageChannel.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    if (readBuffer.remaining() < Integer.BYTES + length) {
+                        needed = Integer.BYTES + length;
+                        break;
+                    }
+                    int offset = readBuffer.position() + Integer.BYTES;
+                    readBuffer.position(offset + length);
+                    handler.handleRequest(codec.decode(readBuffer.array(), offset, length));
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        /**
+         * Writes as many queued frames as the socket accepts. Called only by the event loop.
+         */
+        private void writePending() throws IOException {
+            writeScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            while (true) {
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    gathered[count++] = buffer;
+                    if (count == gathered.length) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                channel.write(gathered, 0, count);
+                TransportMetrics.recordSocketWrites(1);
+                boolean partial = gathered[count - 1].hasRemaining();
+                Arrays.fill(gathered, 0, count, null);
+                ByteBuffer head;
+                int written = 0;
+                while ((head = writeQueue.peek()) != null && !head.hasRemaining()) {
+                    writeQueue.poll();
+                    written++;
+                }
+                backlog.release(written);
+                TransportMetrics.recordMessages(written);
+                if (partial) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public int getDepth() {
+            return backlog.getDepth();
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return backlog.getMaxDepth();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return backlog.getDroppedCount();
+        }
+
+        /**
+         * Closes the connection and lets its handler clean up the user that was logged in through it.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (handler != null) {
+                handler.closeConnection();
+            }
+        }
+    }
+}
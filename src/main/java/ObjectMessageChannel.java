@@ -0,0 +1,205 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link MessageChannel} that exchanges messages through a pair of Object streams wrapped around a socket.
+ * This is the original wire format of the chat and is used by clients that do not negotiate a framed codec.
+ * Writes are serialized with a {@link ReentrantLock} rather than a monitor, so a virtual thread blocked on a slow
+ * socket while holding it does not pin its carrier thread. The object stream is buffered, so the messages written
+ * between two flushes leave in a single socket write.
+ * <p>
+ * An Object stream remembers every object it has written so it can refer back to it, and the peer's stream
+ * remembers every object it has read. The channel resets its output stream once the messages or bytes written since
+ * the last reset exceed its {@link ResetPolicy}; the reset marker tells the peer's input stream to forget its objects
+ * as well, so the memory held by a long-lived session stays bounded on both sides.
+ */
+public class ObjectMessageChannel implements MessageChannel {
+
+    private final Socket socket;
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ResetPolicy resetPolicy;
+    private long bytesWritten;
+    private long bytesAtReset;
+    private int retainedMessages;
+    private long resets;
+
+    /**
+     * Constructs an ObjectMessageChannel over the given socket. The output stream is created first so that its
+     * header is sent before waiting for the peer's header, which keeps both sides free of deadlocks.
+     *
+     * @param socket the connected socket
+     * @throws IOException if an I/O error occurs while creating the streams
+     */
+    public ObjectMessageChannel(Socket socket) throws IOException {
+        this(socket, socket.getInputStream());
+    }
+
+    /**
+     * Constructs an ObjectMessageChannel over the given socket that reads from the specified stream, which must
+     * deliver the bytes received by the socket. This allows a server to inspect the first bytes sent by a client
+     * before deciding which channel to use.
+     *
+     * @param socket the connected socket
+     * @param input the stream of bytes received from the socket
+     * @throws IOException if an I/O error occurs while creating the streams
+     */
+    public ObjectMessageChannel(Socket socket, InputStream input) throws IOException {
+        this(socket, input, ResetPolicy.fromProperties());
+    }
+
+    /**
+     * Constructs an ObjectMessageChannel over the given socket that reads from the specified stream and resets its
+     * output stream according to the given policy.
+     *
+     * @param socket the connected socket
+     * @param input the stream of bytes received from the socket
+     * @param resetPolicy when the output stream forgets the objects it has written
+     * @throws IOException if an I/O error occurs while creating the streams
+     */
+    public ObjectMessageChannel(Socket socket, InputStream input, ResetPolicy resetPolicy) throws IOException {
+        this.socket = socket;
+        this.resetPolicy = resetPolicy;
+        OutputStream socketOut = TransportMetrics.counting(socket.getOutputStream());
+        this.out = new ObjectOutputStream(new BufferedOutputStream(socketOut) {
+            @Override
+            public void write(int b) throws IOException {
+                bytesWritten++;
+                super.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                bytesWritten += len;
+                super.write(b, off, len);
+            }
+        });
+        this.out.flush();
+        this.in = new ObjectInputStream(input);
+    }
+
+    /**
+     * Gets the output stream used to write messages.
+     *
+     * @return the output stream of the channel
+     */
+    public ObjectOutputStream getOut() {
+        return out;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            write(message);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeObject(message);
+            TransportMetrics.recordMessages(1);
+            if (++retainedMessages >= resetPolicy.maxMessages()
+                    || bytesWritten - bytesAtReset >= resetPolicy.maxBytes()) {
+                out.reset();
+                retainedMessages = 0;
+                bytesAtReset = bytesWritten;
+                resets++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of messages written since the output stream was last reset. Each of them is still referenced
+     * by the handle tables of this stream and of the peer's input stream.
+     *
+     * @return the number of retained messages
+     */
+    public int getRetainedMessages() {
+        writeLock.lock();
+        try {
+            return retainedMessages;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of times the output stream was reset.
+     *
+     * @return the number of resets
+     */
+    public long getResetCount() {
+        writeLock.lock();
+        try {
+            return resets;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Message receive() throws IOException, ClassNotFoundException {
+        return (Message) in.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        out.close();
+        in.close();
+    }
+
+    /**
+     * The policy deciding when the output stream of a channel is reset.
+     *
+     * @param maxMessages the number of messages after which the stream is reset
+     * @param maxBytes the number of bytes after which the stream is reset, even if fewer messages were written
+     */
+    public record ResetPolicy(int maxMessages, long maxBytes) {
+
+        /**
+         * Validates the policy.
+         */
+        public ResetPolicy {
+            if (maxMessages < 1 || maxBytes < 1) {
+                throw new IllegalArgumentException("The message and byte limits must be positive.");
+            }
+        }
+
+        /**
+         * Reads the policy from the {@code stream.reset.maxMessages} and {@code stream.reset.maxBytes} system
+         * properties.
+         *
+         * @return the configured policy
+         */
+        public static ResetPolicy fromProperties() {
+            return new ResetPolicy(Integer.getInteger("stream.reset.maxMessages", 256),
+                    Long.getLong("stream.reset.maxBytes", 1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded mailbox holding the messages addressed to one recipient. Senders only enqueue, so they never block on
+ * the recipient's socket, and a single writer drains the mailbox into the recipient's {@link MessageSink}. When the
+ * mailbox reaches its high watermark, the {@link SlowConsumerPolicy} decides whether new messages are dropped until
+ * it drains below the low watermark or the recipient is disconnected.
+ * <p>
+ * The writer coalesces the messages it drains: it flushes the sink as soon as the mailbox is empty, so an idle
+ * recipient gets its message right away, while under load the messages pile up in the sink's buffer and leave
+ * together once the batch is full or the oldest unflushed message has waited for the maximum flush delay.
+ */
+public class OutboundQueue implements MessageSink, QueueMetrics {
+
+    /** The executor running the writers; a writer blocked on a slow socket only holds a virtual thread. */
+    private static final Executor WRITERS = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("writer-", 0).factory());
+
+    private final MessageSink sink;
+    private final Backlog backlog;
+    private final FlushPolicy flushPolicy;
+    private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /**
+     * Constructs an OutboundQueue that drains into the given sink.
+     *
+     * @param sink the sink of the recipient
+     * @param limits the watermarks and the slow-consumer policy of the queue
+     */
+    public OutboundQueue(MessageSink sink, Limits limits) {
+        this(sink, limits, FlushPolicy.fromProperties());
+    }
+
+    /**
+     * Constructs an OutboundQueue that drains into the given sink and flushes it according to the given policy.
+     *
+     * @param sink the sink of the recipient
+     * @param limits the watermarks and the slow-consumer policy of the queue
+     * @param flushPolicy when buffered messages are flushed to the recipient
+     */
+    public OutboundQueue(MessageSink sink, Limits limits, FlushPolicy flushPolicy) {
+        this.sink = sink;
+        this.backlog = new Backlog(limits);
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Enqueues a message for the recipient. The call never blocks; the message is discarded if the queue is closed
+     * or the recipient is too slow.
+     *
+     * @param message the message to be sent
+     */
+    @Override
+    public void send(Message message) {
+        if (closed) {
+            backlog.dropped.incrementAndGet();
+            return;
+        }
+        switch (backlog.offer()) {
+            case DROP -> {
+                return;
+            }
+            case DISCONNECT -> {
+                close();
+                return;
+            }
+            default -> {
+            }
+        }
+        messages.add(message);
+        if (draining.compareAndSet(false, true)) {
+            WRITERS.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Message message;
+            int batched = 0;
+            long batchStart = 0;
+            while ((message = messages.poll()) != null) {
+                try {
+                    sink.write(message);
+                    if (batched++ == 0) {
+                        batchStart = System.nanoTime();
+                    }
+                    if (messages.isEmpty() || batched >= flushPolicy.maxBatch()
+                            || System.nanoTime() - batchStart >= flushPolicy.maxDelayNanos()) {
+                        sink.flush();
+                        batched = 0;
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+                backlog.release(1);
+            }
+            draining.set(false);
+            if (messages.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getDepth() {
+        return backlog.depth.get();
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return backlog.maxDepth.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return backlog.dropped.get();
+    }
+
+    /**
+     * Closes the queue and the sink of the recipient, discarding the messages that were not written.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        int discarded = 0;
+        while (messages.poll() != null) {
+            discarded++;
+        }
+        backlog.release(discarded);
+        backlog.dropped.addAndGet(discarded);
+        try {
+            sink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The watermarks and the slow-consumer policy of an outbound queue.
+     *
+     * @param highWatermark the depth at which the recipient is considered too slow
+     * @param lowWatermark the depth below which a dropping queue accepts messages again
+     * @param policy what to do with a recipient that is too slow
+     */
+    public record Limits(int highWatermark, int lowWatermark, SlowConsumerPolicy policy) {
+
+        /**
+         * Validates the watermarks.
+         */
+        public Limits {
+            if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+                throw new IllegalArgumentException("The high watermark must be greater than the low watermark.");
+            }
+        }
+
+        /**
+         * Reads the limits from the {@code server.queue.high}, {@code server.queue.low} and
+         * {@code server.queue.policy} system properties.
+         *
+         * @return the configured limits
+         */
+        public static Limits fromProperties() {
+            return new Limits(Integer.getInteger("server.queue.high", 1024), Integer.getInteger("server.queue.low", 256),
+                    SlowConsumerPolicy.valueOf(System.getProperty("server.queue.policy", "DISCONNECT").toUpperCase()));
+        }
+    }
+
+    /**
+     * The policy deciding when the writer of an outbound queue flushes the messages it has written.
+     *
+     * @param maxBatch the number of messages after which the writer flushes, even if more are queued
+     * @param maxDelayNanos the time after which the oldest unflushed message is flushed, even if more are queued
+     */
+    public record FlushPolicy(int maxBatch, long maxDelayNanos) {
+
+        /** A policy that flushes after every message. */
+        public static final FlushPolicy IMMEDIATE = new FlushPolicy(1, 0);
+
+        /**
+         * Validates the policy.
+         */
+        public FlushPolicy {
+            if (maxBatch < 1 || maxDelayNanos < 0) {
+                throw new IllegalArgumentException("The batch size must be positive and the delay not negative.");
+            }
+        }
+
+        /**
+         * Reads the policy from the {@code server.flush.maxBatch} and {@code server.flush.maxDelayMicros} system
+         * properties.
+         *
+         * @return the configured policy
+         */
+        public static FlushPolicy fromProperties() {
+            return new FlushPolicy(Integer.getInteger("server.flush.maxBatch", 64),
+                    Long.getLong("server.flush.maxDelayMicros", 1000) * 1000);
+        }
+    }
+
+    /**
+     * Tracks the depth of a queue against its watermarks. It is shared with the connections of the
+     * {@link NioServer}, whose event loops are the writers of their own frame queues.
+     */
+    static final class Backlog {
+
+        /** The outcome of offering a message to a queue. */
+        enum Verdict { ACCEPT, DROP, DISCONNECT }
+
+        private final Limits limits;
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean overloaded;
+
+        Backlog(Limits limits) {
+            this.limits = limits;
+        }
+
+        /**
+         * Accounts for a new message, unless the policy rejects it.
+         */
+        Verdict offer() {
+            if (overloaded && limits.policy() == SlowConsumerPolicy.DROP) {
+                dropped.incrementAndGet();
+                return Verdict.DROP;
+            }
+            int current = depth.incrementAndGet();
+            maxDepth.accumulateAndGet(current, Math::max);
+            if (current >= limits.highWatermark()) {
+                overloaded = true;
+                if (limits.policy() == SlowConsumerPolicy.DISCONNECT) {
+                    depth.decrementAndGet();
+                    dropped.incrementAndGet();
+                    return Verdict.DISCONNECT;
+                }
+            }
+            return Verdict.ACCEPT;
+        }
+
+        /**
+         * Accounts for messages that left the queue.
+         */
+        void release(int count) {
+            if (count > 0 && depth.addAndGet(-count) <= limits.lowWatermark()) {
+                overloaded = false;
+            }
+        }
+
+        int getDepth() {
+            return depth.get();
+        }
+
+        int getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        long getDroppedCount() {
+            return dropped.get();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The messages of a client waiting for the end-to-end sessions with their recipients. Each recipient has its own
+ * queue, and a message to several recipients sits in the queue of each of them, so a recipient whose handshake
+ * never completes only holds back the messages addressed to it: a message is ready once it is at the head of the
+ * queue of every recipient and every recipient has a session, which keeps the messages to a recipient in order.
+ * <p>
+ * A message still waiting after the timeout expires: it is released to the recipients that have a session by then,
+ * and reported as undelivered to the others, after the older messages to the same recipients. The messages are handed
+ * to the sender one at a time, and the sessions are checked again before each, so a session that reaches its limits
+ * during a drain holds back the rest of the messages to its peer until the next session. The queue is not
+ * thread-safe; the client guards it with a lock.
+ */
+public class PendingMessageQueue {
+
+    private final long timeoutMillis;
+    private final Map<String, ArrayDeque<Entry>> queues = new LinkedHashMap<>();
+    private int size;
+
+    /**
+     * Constructs an empty queue.
+     *
+     * @param timeoutMillis the time a message may wait for its sessions
+     */
+    public PendingMessageQueue(long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("The timeout must be positive.");
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Queues a message behind the messages already waiting for its recipients.
+     *
+     * @param recipients the names of the recipients
+     * @param message the plaintext
+     * @param now the current time in milliseconds
+     */
+    public void add(List<String> recipients, byte[] message, long now) {
+        Entry entry = new Entry(List.copyOf(recipients), message, now);
+        for (String recipient : entry.recipients()) {
+            queues.computeIfAbsent(recipient, name -> new ArrayDeque<>()).addLast(entry);
+        }
+        size++;
+    }
+
+    /**
+     * Sends the messages that can be sealed now, in order for each recipient, and takes the ones that expired. A
+     * message the sender refuses stays queued, unless it expired, in which case it is reported as undelivered.
+     *
+     * @param ready tells whether a recipient has a session
+     * @param sender seals and sends a message to the recipients listed in it
+     * @param now the current time in milliseconds
+     * @return the expired messages, each listing the recipients it missed
+     * @throws IOException if a message cannot be sent, in which case it stays queued
+     * @throws GeneralSecurityException if a message cannot be sealed, in which case it stays queued
+     */
+    public List<Entry> drain(Predicate<String> ready, Sender sender, long now)
+            throws IOException, GeneralSecurityException {
+        List<Entry> expired = new ArrayList<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (ArrayDeque<Entry> queue : List.copyOf(queues.values())) {
+                Entry head = queue.peekFirst();
+                if (head == null || !isHeadEverywhere(head)) {
+                    continue;
+                }
+                if (now - head.queuedAt() >= timeoutMillis) {
+                    List<String> reached = new ArrayList<>();
+                    List<String> missed = new ArrayList<>();
+                    for (String recipient : head.recipients()) {
+                        (ready.test(recipient) ? reached : missed).add(recipient);
+                    }
+                    if (!reached.isEmpty() && !sender.send(new Entry(reached, head.message(), head.queuedAt()))) {
+                        missed.addAll(reached);
+                    }
+                    remove(head);
+                    expired.add(new Entry(missed, head.message(), head.queuedAt()));
+                    progress = true;
+                } else if (head.recipients().stream().allMatch(ready) && sender.send(head)) {
+                    remove(head);
+                    progress = true;
+                }
+            }
+        }
+        expired.removeIf(entry -> entry.recipients().isEmpty());
+        return expired;
+    }
+
+    private boolean isHeadEverywhere(Entry entry) {
+        for (String recipient : entry.recipients()) {
+            if (queues.get(recipient).peekFirst() != entry) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void remove(Entry entry) {
+        for (String recipient : entry.recipients()) {
+            ArrayDeque<Entry> queue = queues.get(recipient);
+            queue.removeFirstOccurrence(entry);
+            if (queue.isEmpty()) {
+                queues.remove(recipient);
+            }
+        }
+        size--;
+    }
+
+    /**
+     * Gets the recipients that messages are waiting for.
+     *
+     * @return the names of the recipients, in the order their first message was queued
+     */
+    public List<String> recipients() {
+        return List.copyOf(queues.keySet());
+    }
+
+    /**
+     * Gets the number of messages waiting.
+     *
+     * @return the number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A message waiting for the sessions with its recipients.
+     *
+     * @param recipients the names of the recipients
+     * @param message the plaintext
+     * @param queuedAt the time the message was queued
+     */
+    public record Entry(List<String> recipients, byte[] message, long queuedAt) {
+    }
+
+    /**
+     * Seals and sends the messages taken from the queue.
+     */
+    @FunctionalInterface
+    public interface Sender {
+
+        /**
+         * Seals and sends a message.
+         *
+         * @param entry the message and the recipients to send it to
+         * @return true if the message was sent, false if a session can no longer seal it
+         * @throws IOException if the message cannot be sent
+         * @throws GeneralSecurityException if the message cannot be sealed
+         */
+        boolean send(Entry entry) throws IOException, GeneralSecurityException;
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+
+/**
+ * A key agreement engine that hands out keys generated ahead of time by an {@link EphemeralKeyPool}, so the cost of
+ * a handshake is the agreement alone. The keys come from the wrapped engine and each is used once.
+ */
+public class PooledKeyAgreementEngine implements KeyAgreementEngine, Closeable {
+
+    private final KeyAgreementEngine engine;
+    private final EphemeralKeyPool<EphemeralKey> pool;
+
+    /**
+     * Constructs an engine over the given one, with a pool bounded by the given settings.
+     *
+     * @param engine the engine that generates the keys and names the scheme
+     * @param settings the bounds of the pool
+     */
+    public PooledKeyAgreementEngine(KeyAgreementEngine engine, EphemeralKeyPool.Settings settings) {
+        this.engine = engine;
+        this.pool = new EphemeralKeyPool<>(engine.getName() + "-key-pool", engine::generate, settings);
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName();
+    }
+
+    @Override
+    public EphemeralKey generate() throws GeneralSecurityException {
+        return pool.take();
+    }
+
+    /**
+     * Gets the pool of keys, for its metrics.
+     *
+     * @return the pool
+     */
+    public EphemeralKeyPool<EphemeralKey> getPool() {
+        return pool;
+    }
+
+    /**
+     * Stops refilling the pool.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
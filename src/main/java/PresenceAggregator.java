@@ -0,0 +1,370 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Announces logins and logouts to the connected users in batches. The changes made during a short window are
+ * collected and then sent to every connected user as a single {@link MessageTypes#ROSTER_DELTA} holding one entry
+ * per changed user, in the format of the {@link PresenceRoster}. A user who logs in and out within the same window
+ * is left out entirely, and a user who logs out and back in is announced once with its new certificate, so the
+ * presence traffic grows with the number of distinct changes per window rather than with every change times every
+ * user.
+ * <p>
+ * The aggregator also keeps the {@link PresenceRoster}, and updates it under the same lock as its pending changes,
+ * so the version carried by each batch covers exactly the changes sent so far. Batches are delivered one at a time,
+ * under a second lock also held by the welcome of a login and by a subscription, so the versions a user receives
+ * always increase, even when changes are announced at once from the threads of several connections.
+ * <p>
+ * A user may subscribe to the presence of a list of contacts. From then on it receives only the entries of its
+ * contacts, found through a reverse index from each user to its subscribers, so announcing a change costs one
+ * message per interested subscriber instead of one per connected user. Users that never subscribed keep receiving
+ * every change. A subscription ends when its user logs out.
+ * <p>
+ * A subscriber no longer follows the whole roster, so the messages it receives carry no roster version
+ * ({@link LoginMessage#NO_VERSION}): on subscribing it receives a {@link MessageTypes#LOGGED_USERS} snapshot of its
+ * contacts that are logged in, which replaces the users it knew, and then the filtered deltas. Its next login
+ * therefore asks for a whole roster instead of the changes since a version it only partly received.
+ */
+public class PresenceAggregator implements Closeable {
+
+    private final ConcurrentHashMap<String, User> clients;
+    /** A skip list rather than a hash map, so iterating it does not cost the capacity left over by subscribers. */
+    private final ConcurrentSkipListMap<String, User> unsubscribed = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> contacts = new ConcurrentHashMap<>();
+    private final PresenceRoster roster;
+    private final long windowMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Taken before {@link #lock}, and held while a batch or a snapshot is taken and sent. */
+    private final ReentrantLock deliveryLock = new ReentrantLock();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-aggregator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private Map<String, Change> pending = new LinkedHashMap<>();
+    private boolean scheduled;
+
+    /**
+     * Constructs a PresenceAggregator that announces changes to the given users after the window given by the
+     * {@code presence.windowMillis} system property (default 50).
+     *
+     * @param clients the connected users
+     */
+    public PresenceAggregator(ConcurrentHashMap<String, User> clients) {
+        this(clients, new PresenceRoster(), Long.getLong("presence.windowMillis", 50));
+    }
+
+    /**
+     * Constructs a PresenceAggregator that announces changes to the given users after the given window.
+     *
+     * @param clients the connected users
+     * @param roster the roster kept up to date with the changes
+     * @param windowMillis the time during which changes are collected, or 0 to announce each change at once
+     */
+    public PresenceAggregator(ConcurrentHashMap<String, User> clients, PresenceRoster roster, long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("The window must not be negative.");
+        }
+        this.clients = clients;
+        this.roster = roster;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Gets the roster of logged-in users.
+     *
+     * @return the roster
+     */
+    public PresenceRoster getRoster() {
+        return roster;
+    }
+
+    /**
+     * Records a user who logged in and adds it to the connected users. The welcome runs first, under the lock of the
+     * aggregator, so the messages it sends to the user, such as the roster, are queued before any announcement; and
+     * since no batch is taken between the welcome and the user becoming visible, every change the welcome misses is
+     * announced to the user later.
+     *
+     * @param user the user who logged in
+     * @param welcome sends the user its first messages
+     * @throws IOException if the welcome fails, in which case the user is not added
+     */
+    public void loggedIn(User user, Welcome welcome) throws IOException {
+        deliveryLock.lock();
+        lock.lock();
+        try {
+            welcome.send();
+            roster.add(user.getName(), user.getCertificate());
+            pending.computeIfAbsent(user.getName(), key -> new Change(false)).certificate = user.getCertificate();
+            clients.put(user.getName(), user);
+            unsubscribed.put(user.getName(), user);
+        } finally {
+            lock.unlock();
+            deliveryLock.unlock();
+        }
+        changed();
+    }
+
+    /**
+     * Removes a user who logged out from the connected users and records the change. The removal is made under the
+     * lock of the aggregator, like the addition in {@link #loggedIn(User, Welcome)}, and only if the user is still
+     * the one connected under its name, so a late logout of an earlier session never hides a newer login.
+     *
+     * @param user the user who logged out
+     * @return true if the user was connected, false if it had already been removed or replaced
+     */
+    public boolean loggedOut(User user) {
+        String name = user.getName();
+        lock.lock();
+        try {
+            if (!clients.remove(name, user)) {
+                return false;
+            }
+            roster.remove(name);
+            pending.computeIfAbsent(name, key -> new Change(true)).certificate = null;
+            unsubscribed.remove(name);
+            unsubscribe(name);
+        } finally {
+            lock.unlock();
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * Replaces the contacts whose presence a logged-in user is notified of, and sends the user a snapshot of the
+     * contacts that are logged in. The snapshot is sent under the lock, so it is queued before any delta taken after
+     * the subscription.
+     *
+     * @param user the subscribing user
+     * @param names the names of the contacts
+     */
+    public void subscribe(User user, Collection<String> names) {
+        deliveryLock.lock();
+        lock.lock();
+        try {
+            if (clients.get(user.getName()) != user) {
+                return;
+            }
+            unsubscribe(user.getName());
+            Set<String> subscribed = ConcurrentHashMap.newKeySet();
+            subscribed.addAll(names);
+            for (String name : subscribed) {
+                subscribers.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet()).add(user.getName());
+            }
+            contacts.put(user.getName(), subscribed);
+            unsubscribed.remove(user.getName());
+            StringBuilder entries = new StringBuilder();
+            for (String name : subscribed) {
+                User contact = clients.get(name);
+                if (contact != null) {
+                    entries.append(contact.getCertificate()).append(',');
+                }
+            }
+            send(user, new RosterMessage(entries.toString().getBytes(StandardCharsets.UTF_8), null, "Server",
+                    MessageTypes.LOGGED_USERS, LoginMessage.NO_VERSION));
+        } finally {
+            lock.unlock();
+            deliveryLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the subscription of a user from the reverse index. Called with the lock held.
+     */
+    private void unsubscribe(String subscriber) {
+        Set<String> previous = contacts.remove(subscriber);
+        if (previous == null) {
+            return;
+        }
+        for (String name : previous) {
+            Set<String> set = subscribers.get(name);
+            if (set != null) {
+                set.remove(subscriber);
+                if (set.isEmpty()) {
+                    subscribers.remove(name);
+                }
+            }
+        }
+    }
+
+    private void changed() {
+        changes.increment();
+        if (windowMillis == 0) {
+            flush();
+            return;
+        }
+        lock.lock();
+        try {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the pending changes as one message to every user without a subscription, and the changes of its
+     * contacts as one unversioned message to every subscriber. Only one batch is taken and sent at a time, so a
+     * batch never overtakes an older one.
+     */
+    void flush() {
+        deliveryLock.lock();
+        try {
+            deliver();
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the pending changes and sends them. Called with the delivery lock held.
+     */
+    private void deliver() {
+        Map<String, Change> batch;
+        long version;
+        lock.lock();
+        try {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+            version = roster.getVersion();
+        } finally {
+            lock.unlock();
+        }
+        StringBuilder entries = new StringBuilder();
+        Map<String, StringBuilder> subscribed = new HashMap<>();
+        for (Map.Entry<String, Change> entry : batch.entrySet()) {
+            Change change = entry.getValue();
+            String encoded;
+            if (change.certificate != null) {
+                encoded = change.certificate + ",";
+            } else if (change.wasPresent) {
+                encoded = "-" + entry.getKey() + ",";
+            } else {
+                cancelled.increment();
+                continue;
+            }
+            entries.append(encoded);
+            for (String subscriber : subscribers.getOrDefault(entry.getKey(), Set.of())) {
+                subscribed.computeIfAbsent(subscriber, key -> new StringBuilder()).append(encoded);
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        batches.increment();
+        Message message = new RosterMessage(entries.toString().getBytes(StandardCharsets.UTF_8), null, "Server",
+                MessageTypes.ROSTER_DELTA, version);
+        for (User user : unsubscribed.values()) {
+            send(user, message);
+        }
+        for (Map.Entry<String, StringBuilder> entry : subscribed.entrySet()) {
+            User user = clients.get(entry.getKey());
+            if (user != null && contacts.containsKey(entry.getKey())) {
+                send(user, new RosterMessage(entry.getValue().toString().getBytes(StandardCharsets.UTF_8), null,
+                        "Server", MessageTypes.ROSTER_DELTA, LoginMessage.NO_VERSION));
+            }
+        }
+    }
+
+    private void send(User user, Message message) {
+        try {
+            user.send(message);
+            messagesSent.increment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the number of logins and logouts recorded.
+     *
+     * @return the number of changes
+     */
+    public long getChangeCount() {
+        return changes.sum();
+    }
+
+    /**
+     * Gets the number of users who logged in and out within one window and were therefore never announced.
+     *
+     * @return the number of cancelled changes
+     */
+    public long getCancelledCount() {
+        return cancelled.sum();
+    }
+
+    /**
+     * Gets the number of batches announced.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Gets the number of presence messages sent to users.
+     *
+     * @return the number of messages sent
+     */
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    /**
+     * Announces the pending changes and stops the timer.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Sends a user who logged in its first messages.
+     */
+    @FunctionalInterface
+    public interface Welcome {
+
+        /**
+         * Sends the messages.
+         *
+         * @throws IOException if a message cannot be sent
+         */
+        void send() throws IOException;
+    }
+
+    /**
+     * The state of a user changed within the current window.
+     */
+    private static final class Change {
+        private final boolean wasPresent;
+        private String certificate;
+
+        private Change(boolean wasPresent) {
+            this.wasPresent = wasPresent;
+        }
+    }
+}
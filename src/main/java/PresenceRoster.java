@@ -0,0 +1,226 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The roster of logged-in users kept by a server, maintained incrementally as users log in and out. Every change
+ * increments the version of the roster and produces an entry: the PEM certificate of a user who logged in, or
+ * {@code -} followed by the name of a user who logged out, each terminated by a comma. Applying the entries in order
+ * rebuilds the roster; a PEM certificate always starts with {@link CertificateEncoder#HEADER}, so the two kinds of
+ * entries cannot be confused.
+ * <p>
+ * The entries are appended to a pre-encoded snapshot, so serving the whole roster is a copy of the snapshot rather
+ * than a walk over the users. A snapshot may therefore hold the entry of a user followed by its removal; once such
+ * pairs outnumber the users, the snapshot is rewritten with the live users only. The most recent entries are also
+ * kept in a ring, so a client that knows a recent version receives only the entries that followed it.
+ * <p>
+ * Versions start from the time the roster was created, so a client that held a roster from before a restart of the
+ * server never mistakes it for a recent one.
+ */
+public class PresenceRoster {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, byte[]> users = new LinkedHashMap<>();
+    private final long[] ringVersions;
+    private final byte[][] ringEntries;
+    private byte[] log = new byte[4096];
+    private int logLength;
+    private int removals;
+    private long version;
+    private Snapshot cached;
+
+    /**
+     * Constructs an empty roster that remembers the number of entries given by the {@code roster.deltaCapacity}
+     * system property (default 4096).
+     */
+    public PresenceRoster() {
+        this(Integer.getInteger("roster.deltaCapacity", 4096));
+    }
+
+    /**
+     * Constructs an empty roster that remembers the given number of recent entries.
+     *
+     * @param deltaCapacity the number of recent entries from which a delta can be served
+     */
+    public PresenceRoster(int deltaCapacity) {
+        if (deltaCapacity < 1) {
+            throw new IllegalArgumentException("The delta capacity must be positive.");
+        }
+        this.ringVersions = new long[deltaCapacity];
+        this.ringEntries = new byte[deltaCapacity][];
+        this.version = System.currentTimeMillis() << 20;
+    }
+
+    /**
+     * Adds a user who logged in. A user who is already in the roster is replaced.
+     *
+     * @param name the name of the user
+     * @param certificate the PEM certificate of the user
+     * @return the version of the roster after the change
+     */
+    public long add(String name, String certificate) {
+        byte[] entry = (certificate + ",").getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (users.containsKey(name)) {
+                removeLocked(name);
+            }
+            users.put(name, entry);
+            return record(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a user who logged out.
+     *
+     * @param name the name of the user
+     * @return the version of the roster after the change, which is unchanged if the user was not in the roster
+     */
+    public long remove(String name) {
+        lock.lock();
+        try {
+            if (users.containsKey(name)) {
+                removeLocked(name);
+            }
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeLocked(String name) {
+        users.remove(name);
+        removals++;
+        record(("-" + name + ",").getBytes(StandardCharsets.UTF_8));
+        if (removals > users.size() && removals > 64) {
+            compact();
+        }
+    }
+
+    /**
+     * Appends an entry to the snapshot and to the ring of recent entries.
+     */
+    private long record(byte[] entry) {
+        if (logLength + entry.length > log.length) {
+            log = Arrays.copyOf(log, Math.max(log.length * 2, logLength + entry.length));
+        }
+        System.arraycopy(entry, 0, log, logLength, entry.length);
+        logLength += entry.length;
+        version++;
+        int slot = (int) Math.floorMod(version, (long) ringVersions.length);
+        ringVersions[slot] = version;
+        ringEntries[slot] = entry;
+        return version;
+    }
+
+    /**
+     * Rewrites the snapshot with the entries of the users in the roster only.
+     */
+    private void compact() {
+        int length = 0;
+        for (byte[] entry : users.values()) {
+            length += entry.length;
+        }
+        byte[] compacted = new byte[Math.max(4096, length * 2)];
+        int position = 0;
+        for (byte[] entry : users.values()) {
+            System.arraycopy(entry, 0, compacted, position, entry.length);
+            position += entry.length;
+        }
+        log = compacted;
+        logLength = position;
+        removals = 0;
+    }
+
+    /**
+     * Gets the whole roster. The snapshot is copied once per version, however many clients ask for it.
+     *
+     * @return the entries that rebuild the roster and its version
+     */
+    public Snapshot snapshot() {
+        lock.lock();
+        try {
+            if (cached == null || cached.version() != version) {
+                cached = new Snapshot(version, Arrays.copyOf(log, logLength));
+            }
+            return cached;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the entries that followed the given version, if the roster still remembers all of them.
+     *
+     * @param knownVersion the version of the roster held by a client
+     * @return the entries since the known version and the current version, or null if the client needs the whole
+     *         roster
+     */
+    public Snapshot since(long knownVersion) {
+        lock.lock();
+        try {
+            if (knownVersion > version || version - knownVersion > ringVersions.length) {
+                return null;
+            }
+            int length = 0;
+            for (long v = knownVersion + 1; v <= version; v++) {
+                int slot = (int) Math.floorMod(v, (long) ringVersions.length);
+                if (ringVersions[slot] != v) {
+                    return null;
+                }
+                length += ringEntries[slot].length;
+            }
+            byte[] entries = new byte[length];
+            int position = 0;
+            for (long v = knownVersion + 1; v <= version; v++) {
+                byte[] entry = ringEntries[(int) Math.floorMod(v, (long) ringVersions.length)];
+                System.arraycopy(entry, 0, entries, position, entry.length);
+                position += entry.length;
+            }
+            return new Snapshot(version, entries);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the current version of the roster.
+     *
+     * @return the roster version
+     */
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of users in the roster.
+     *
+     * @return the number of logged-in users
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return users.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encoded roster entries and the version of the roster once they are applied.
+     *
+     * @param version the version of the roster
+     * @param entries the encoded entries
+     */
+    public record Snapshot(long version, byte[] entries) {
+    }
+}
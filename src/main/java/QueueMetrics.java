@@ -0,0 +1,26 @@
+/**
+ * Metrics of the queue holding the messages waiting to be written to a recipient.
+ */
+public interface QueueMetrics {
+
+    /**
+     * Gets the number of messages waiting to be written.
+     *
+     * @return the current depth of the queue
+     */
+    int getDepth();
+
+    /**
+     * Gets the largest depth the queue has reached.
+     *
+     * @return the maximum depth of the queue
+     */
+    int getMaxDepth();
+
+    /**
+     * Gets the number of messages discarded because the recipient was too slow or disconnected.
+     *
+     * @return the number of dropped messages
+     */
+    long getDroppedCount();
+}
@@ -0,0 +1,351 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A durable record of the registered names, so that a restarted server does not force every user to register again.
+ * Registrations and removals are appended to a memory-mapped log, which makes an append a copy into memory; a
+ * background thread forces the log to disk at a fixed interval, so many appends share one fsync. When a log segment
+ * is full, a new one is started, and once enough segments pile up the registered names are written to a compacted
+ * snapshot and the segments it covers are deleted.
+ * <p>
+ * The directory holds {@code snapshot}, which starts with the number of the first segment it does not cover, and the
+ * segments {@code log.<number>}. Recovery loads the snapshot and replays the later segments in order; replaying an
+ * operation that the snapshot already reflects has no effect, so a segment may be written while a snapshot is taken.
+ */
+public class RegistrationStore implements Closeable {
+
+    private static final int SNAPSHOT_MAGIC = 0x50534352;
+    private static final byte OP_END = 0;
+    private static final byte OP_REGISTER = 1;
+    private static final byte OP_UNREGISTER = 2;
+
+    private final Path directory;
+    private final Options options;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registration-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Supplier<? extends Iterable<String>> names;
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private volatile long firstSegment;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    /**
+     * Opens the store kept in the given directory, creating the directory if needed.
+     *
+     * @param directory the directory of the snapshot and the log segments
+     * @param options the size of the segments, the fsync interval and the compaction threshold
+     * @throws IOException if the directory cannot be created or read
+     */
+    public RegistrationStore(Path directory, Options options) throws IOException {
+        this.directory = directory;
+        this.options = options;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Replays the snapshot and the log segments, reporting every registration and removal in order, and then starts
+     * a new segment for the operations that follow. The store takes a snapshot of the names returned by the given
+     * supplier whenever it compacts its log.
+     *
+     * @param onRegister receives each registered name
+     * @param onUnregister receives each removed name
+     * @param names supplies the names registered at the time of a compaction
+     * @throws IOException if the store cannot be read or the new segment cannot be created
+     */
+    public void recover(Consumer<String> onRegister, Consumer<String> onUnregister, Supplier<? extends Iterable<String>> names) throws IOException {
+        this.names = names;
+        Path snapshot = directory.resolve("snapshot");
+        if (Files.exists(snapshot)) {
+            firstSegment = readSnapshot(snapshot, onRegister);
+        }
+        List<Long> segments = listSegments();
+        for (long number : segments) {
+            if (number >= firstSegment) {
+                replay(segmentPath(number), onRegister, onUnregister);
+            } else {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+        segmentNumber = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.get(segments.size() - 1) + 1);
+        segment = map(segmentNumber);
+        long interval = options.forceIntervalMillis();
+        background.scheduleWithFixedDelay(this::force, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the registration of a name.
+     *
+     * @param name the registered name
+     * @throws UncheckedIOException if a new log segment cannot be created
+     */
+    public void appendRegister(String name) {
+        append(OP_REGISTER, name);
+    }
+
+    /**
+     * Records the removal of a name.
+     *
+     * @param name the removed name
+     * @throws UncheckedIOException if a new log segment cannot be created
+     */
+    public void appendUnregister(String name) {
+        append(OP_UNREGISTER, name);
+    }
+
+    private void append(byte op, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int size = 1 + Integer.BYTES + bytes.length;
+        if (size + 1 > options.segmentSize()) {
+            throw new IllegalArgumentException("The name does not fit in a log segment.");
+        }
+        boolean compact;
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The registration store is closed.");
+            }
+            if (segment.remaining() < size + 1) {
+                segment.force();
+                segment = map(++segmentNumber);
+            }
+            segment.put(op).putInt(bytes.length).put(bytes);
+            dirty = true;
+            compact = segmentNumber - firstSegment >= options.segmentsBeforeCompaction();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            appendLock.unlock();
+        }
+        if (compact && compacting.compareAndSet(false, true)) {
+            background.execute(this::compact);
+        }
+    }
+
+    /**
+     * Forces the appended operations to disk if any were appended since the last call.
+     */
+    private void force() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        MappedByteBuffer current;
+        appendLock.lock();
+        try {
+            current = segment;
+        } finally {
+            appendLock.unlock();
+        }
+        current.force();
+    }
+
+    /**
+     * Writes the registered names to a new snapshot that covers every segment before the current one, and deletes
+     * those segments.
+     */
+    private void compact() {
+        try {
+            long covered;
+            appendLock.lock();
+            try {
+                segment.force();
+                segment = map(++segmentNumber);
+                covered = segmentNumber;
+            } finally {
+                appendLock.unlock();
+            }
+            writeSnapshot(covered);
+            long previous = firstSegment;
+            firstSegment = covered;
+            for (long number = previous; number < covered; number++) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void writeSnapshot(long firstSegment) throws IOException {
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(firstSegment);
+            for (String name : names.get()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < Integer.BYTES + bytes.length) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                    if (buffer.remaining() < Integer.BYTES + bytes.length) {
+                        buffer = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+                    }
+                }
+                buffer.putInt(bytes.length).put(bytes);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long readSnapshot(Path snapshot, Consumer<String> onRegister) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < Integer.BYTES + Long.BYTES || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Invalid registration snapshot " + snapshot);
+            }
+            long firstSegment = buffer.getLong();
+            byte[] bytes = new byte[256];
+            while (buffer.hasRemaining()) {
+                int length = buffer.getInt();
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                buffer.get(bytes, 0, length);
+                onRegister.accept(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+            return firstSegment;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated registration snapshot " + snapshot, e);
+        }
+    }
+
+    /**
+     * Replays a segment up to its end marker. A record cut short by a crash ends the segment.
+     */
+    private static void replay(Path path, Consumer<String> onRegister, Consumer<String> onUnregister) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] bytes = new byte[256];
+            while (buffer.remaining() > Integer.BYTES) {
+                byte op = buffer.get();
+                int length = buffer.getInt();
+                if (op == OP_END || length < 0 || length > buffer.remaining()) {
+                    return;
+                }
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                buffer.get(bytes, 0, length);
+                String name = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                if (op == OP_REGISTER) {
+                    onRegister.accept(name);
+                } else if (op == OP_UNREGISTER) {
+                    onUnregister.accept(name);
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (var paths = Files.list(directory)) {
+            paths.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("log\\.\\d+"))
+                    .forEach(name -> segments.add(Long.parseLong(name.substring(4))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve("log." + number);
+    }
+
+    private MappedByteBuffer map(long number) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, options.segmentSize());
+        }
+    }
+
+    /**
+     * Stops the background thread and forces the current segment to disk.
+     */
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * The tuning of a registration store.
+     *
+     * @param segmentSize the size in bytes of each memory-mapped log segment
+     * @param forceIntervalMillis the interval at which appended operations are forced to disk
+     * @param segmentsBeforeCompaction the number of full segments after which a snapshot is taken
+     */
+    public record Options(int segmentSize, long forceIntervalMillis, int segmentsBeforeCompaction) {
+
+        /**
+         * Validates the options.
+         */
+        public Options {
+            if (segmentSize < 64 || forceIntervalMillis < 1 || segmentsBeforeCompaction < 1) {
+                throw new IllegalArgumentException("The segment size, interval and threshold must be positive.");
+            }
+        }
+
+        /**
+         * Reads the options from the {@code store.segmentSize}, {@code store.forceIntervalMillis} and
+         * {@code store.segmentsBeforeCompaction} system properties.
+         *
+         * @return the configured options
+         */
+        public static Options fromProperties() {
+            return new Options(Integer.getInteger("store.segmentSize", 16 * 1024 * 1024),
+                    Long.getLong("store.forceIntervalMillis", 10), Integer.getInteger("store.segmentsBeforeCompaction", 4));
+        }
+    }
+}
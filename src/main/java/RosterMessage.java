@@ -0,0 +1,33 @@
+/**
+ * The RosterMessage class represents a message carrying roster entries of logged-in users, either the whole roster
+ * ({@link MessageTypes#LOGGED_USERS}) or the changes since a known version ({@link MessageTypes#ROSTER_DELTA}),
+ * together with the version of the roster they bring the client to. The entries are described by
+ * {@link PresenceRoster}. It extends the Message class.
+ */
+public class RosterMessage extends Message {
+
+    private final long version;
+
+    /**
+     * Constructs a RosterMessage object with the specified entries, recipient, sender, type, and version.
+     *
+     * @param entries the encoded roster entries
+     * @param recipient the recipient of the message
+     * @param sender the sender of the message
+     * @param type either {@link MessageTypes#LOGGED_USERS} or {@link MessageTypes#ROSTER_DELTA}
+     * @param version the version of the roster after the entries are applied
+     */
+    public RosterMessage(byte[] entries, String recipient, String sender, MessageTypes type, long version) {
+        super(entries, recipient, sender, type);
+        this.version = version;
+    }
+
+    /**
+     * Gets the version of the roster after the entries are applied.
+     *
+     * @return the roster version
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+/**
+ * Reads and writes the properties files that hold private keys. A file is written to a temporary file in the same
+ * directory, readable by its owner only where the file system supports it, which then replaces the previous file,
+ * so a crash never leaves a half-written key behind.
+ */
+final class SecureFiles {
+
+    private SecureFiles() {
+    }
+
+    /**
+     * Reads a properties file.
+     *
+     * @param file the file to read
+     * @return the properties of the file
+     * @throws IOException if the file cannot be read
+     */
+    static Properties read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a properties file, creating its directory if needed and replacing the previous file.
+     *
+     * @param file the file to write
+     * @param properties the properties to write
+     * @param comment the comment at the top of the file
+     * @throws IOException if the file cannot be written
+     */
+    static void write(Path file, Properties properties, String comment) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "secure", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // The file system has no POSIX permissions
+            }
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                properties.store(writer, comment);
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
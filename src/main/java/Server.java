@@ -6,24 +6,27 @@ import java.net.Socket;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
 
 /**
- * This class represents a server that receives a message from the client. The server is implemented as a thread.
+ * This class represents a server that receives a message from the client. The server is implemented as a thread, and
+ * the handler of each accepted connection runs on an executor chosen through an {@link ExecutionMode}.
  */
 public class Server implements Runnable {
 
     private final ServerSocket server;
     private ConcurrentHashMap<String, User> clients = new ConcurrentHashMap<>();
     private boolean isConnected = false;
-    private ArrayList<String > registeredNames= new ArrayList<>();
+    private final UserRegistry registeredNames;
+    private final PresenceAggregator presence = new PresenceAggregator ( clients );
+    private final GroupDirectory groups = new GroupDirectory ( );
     private Socket client;
-    private ReentrantLock clientsLock = new ReentrantLock();
+    private final ExecutorService handlers;
 
     /**
      * Constructs a Receiver object by specifying the port number. The server will be then created on the specified
@@ -34,19 +37,77 @@ public class Server implements Runnable {
      * @throws IOException if an I/O error occurs when opening the socket
      */
     public Server ( int port ) throws Exception {
+        this ( port , ExecutionMode.THREADS.newExecutor ( 0 ) );
+    }
+
+    /**
+     * Constructs a Server on the specified port that runs the handler of each connection on the given executor.
+     *
+     * @param port the port number
+     * @param handlers the executor that runs the client handlers
+     *
+     * @throws IOException if an I/O error occurs when opening the socket
+     */
+    public Server ( int port , ExecutorService handlers ) throws Exception {
+        this ( port , handlers , new UserRegistry ( ) );
+    }
+
+    /**
+     * Constructs a Server on the specified port that runs the handler of each connection on the given executor and
+     * keeps the registered names in the given registry, which may have been recovered from a
+     * {@link RegistrationStore}.
+     *
+     * @param port the port number
+     * @param handlers the executor that runs the client handlers
+     * @param registeredNames the registry of the registered names
+     *
+     * @throws IOException if an I/O error occurs when opening the socket
+     */
+    public Server ( int port , ExecutorService handlers , UserRegistry registeredNames ) throws Exception {
         server = new ServerSocket ( port );
+        this.handlers = handlers;
+        this.registeredNames = registeredNames;
         isConnected = true;
     }
 
 
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return the local port of the server
+     */
+    public int getPort ( ) {
+        return server.getLocalPort ( );
+    }
+
+    /**
+     * Gets the number of messages waiting to be written to each connected user.
+     *
+     * @return the outbound queue depth of each connected user
+     */
+    public Map<String, Integer> getQueueDepths ( ) {
+        Map<String, Integer> depths = new HashMap<>( );
+        for ( User user : clients.values ( ) ) {
+            QueueMetrics metrics = user.getQueueMetrics ( );
+            depths.put ( user.getName ( ) , metrics == null ? 0 : metrics.getDepth ( ) );
+        }
+        return depths;
+    }
+
     @Override
     public void run ( ) {
         try {
             while ( isConnected ) {
                 client = server.accept ( );
-                // Process the request
-                Thread clientThread = new Thread(new ClientHandler(client, clients, registeredNames,clientsLock));
-                clientThread.start();
+                // Process the request; the streams are opened by the handler so a slow client cannot stall accept
+                Socket socket = client;
+                handlers.execute ( ( ) -> {
+                    try {
+                        new ClientHandler ( socket , clients , registeredNames , presence , groups ).run ( );
+                    } catch ( IOException e ) {
+                        e.printStackTrace ( );
+                    }
+                } );
             }
         } catch ( Exception e ) {
             throw new RuntimeException ( e );
@@ -0,0 +1,510 @@
+import javax.crypto.AEADBadTagException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * End-to-end sessions between a client and its peers. The first message to a peer starts a handshake: both sides send a
+ * {@link MessageTypes#SESSION_HANDSHAKE} holding a fresh public key of a {@link KeyAgreementEngine}, X25519 unless
+ * configured otherwise, signed with the RSA key of their certificate, so the server that relays the handshake can
+ * neither read nor replace it. The agreed secret is hashed with the session id and both names into an AES-256 key, and
+ * every later message to the peer is a {@link MessageTypes#SESSION_MESSAGE} encrypted with an {@link AesGcmEngine}, so
+ * no message needs RSA.
+ * <p>
+ * A message to several peers is uploaded once: its body is encrypted with a random content key, and the content key is
+ * wrapped for each recipient with the session key of that recipient, together with a digest of the sender, the
+ * recipients and the encrypted body. Since each wrap is authenticated with a key only the sender and that recipient
+ * hold, a recipient cannot pass off a body of its own, encrypted under the same content key, as coming from the sender.
+ * A session is replaced by a new handshake once it has encrypted the number of messages or reached the age given by its
+ * {@link Limits}; the previous sessions of a peer are kept for a while, so the messages already in flight can still be
+ * read.
+ * <p>
+ * The handshake payload is a phase (0 to start, 1 to reply), the session id, the name of the key agreement, the public
+ * key and the signature. A sealed payload is the number of recipients, then for each the name, the session id and the
+ * wrapped content key and digest, empty when the body is encrypted with the session key of a single recipient, and
+ * finally the body.
+ */
+public class SessionManager {
+
+    private static final byte PHASE_START = 0;
+    private static final byte PHASE_REPLY = 1;
+    private static final int RETAINED_SESSIONS = 3;
+    /** The time after which a handshake left unanswered may be started again. */
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final int CONTENT_KEY_LENGTH = 16;
+    private static final int DIGEST_LENGTH = 32;
+
+    private final String self;
+    private final PrivateKey signingKey;
+    private final PeerKeys peerKeys;
+    private final Limits limits;
+    private final KeyAgreementEngine engine;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Handshake> handshakes = new HashMap<>();
+    private final Map<String, PeerSessions> peers = new HashMap<>();
+    private long handshakeCount;
+    private long rotationCount;
+
+    /**
+     * Constructs a session manager for the given client, agreeing on keys with the engine given by the
+     * {@code session.keyAgreement} system property.
+     *
+     * @param self the name of the client
+     * @param signingKey the private RSA key of the certificate of the client
+     * @param peerKeys finds the public RSA key of the certificate of a peer
+     * @param limits the number of messages and the age after which a session is replaced
+     */
+    public SessionManager(String self, PrivateKey signingKey, PeerKeys peerKeys, Limits limits) {
+        this(self, signingKey, peerKeys, limits, KeyAgreementEngine.fromProperties());
+    }
+
+    /**
+     * Constructs a session manager for the given client that agrees on keys with the given engine. Both sides of a
+     * handshake must use the same scheme.
+     *
+     * @param self the name of the client
+     * @param signingKey the private RSA key of the certificate of the client
+     * @param peerKeys finds the public RSA key of the certificate of a peer
+     * @param limits the number of messages and the age after which a session is replaced
+     * @param engine the key agreement of the handshakes
+     */
+    public SessionManager(String self, PrivateKey signingKey, PeerKeys peerKeys, Limits limits, KeyAgreementEngine engine) {
+        this.self = self;
+        this.signingKey = signingKey;
+        this.peerKeys = peerKeys;
+        this.limits = limits;
+        this.engine = engine;
+    }
+
+    /**
+     * Checks whether messages to a peer can be sealed without a handshake.
+     *
+     * @param peer the name of the peer
+     * @return true if the peer has a session within the limits
+     */
+    public boolean isReady(String peer) {
+        lock.lock();
+        try {
+            PeerSessions sessions = peers.get(peer);
+            return sessions != null && sessions.current != null && sessions.current.isUsable(limits);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a handshake with a peer, unless one is already waiting for the reply of the peer.
+     *
+     * @param peer the name of the peer
+     * @return the handshake to send to the peer, or null if a handshake is in progress
+     * @throws GeneralSecurityException if the key pair cannot be generated or signed
+     */
+    public Message initiate(String peer) throws GeneralSecurityException {
+        lock.lock();
+        try {
+            Handshake pending = handshakes.get(peer);
+            if (pending != null && System.currentTimeMillis() - pending.startedAt < HANDSHAKE_TIMEOUT_MILLIS) {
+                return null;
+            }
+            PeerSessions sessions = peers.get(peer);
+            if (sessions != null && sessions.current != null) {
+                rotationCount++;
+            }
+            KeyAgreementEngine.EphemeralKey key = engine.generate();
+            Handshake handshake = new Handshake(random.nextLong(), key, System.currentTimeMillis());
+            handshakes.put(peer, handshake);
+            byte[] publicKey = key.getPublicKey();
+            byte[] signature = sign(transcript(PHASE_START, handshake.id, self, peer, publicKey, null));
+            return new Message(encodeHandshake(PHASE_START, handshake.id, publicKey, signature), peer, self,
+                    MessageTypes.SESSION_HANDSHAKE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles a handshake received from a peer. A handshake that starts a session is answered, and a reply
+     * completes the handshake started by this client; either way the session becomes the one used for the peer.
+     *
+     * @param message the {@link MessageTypes#SESSION_HANDSHAKE} message
+     * @return the reply to send to the peer, or null if nothing has to be sent
+     * @throws SignatureException if the handshake is not signed by the certificate of the peer
+     * @throws GeneralSecurityException if the key agreement fails or the peer is unknown
+     * @throws IOException if the handshake is malformed
+     */
+    public Message accept(Message message) throws GeneralSecurityException, IOException {
+        String peer = message.getSender();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.getMessage()));
+        byte phase = in.readByte();
+        long id = in.readLong();
+        String scheme = in.readUTF();
+        byte[] peerPublic = readField(in);
+        byte[] signature = readField(in);
+        if (!scheme.equals(engine.getName())) {
+            throw new GeneralSecurityException("Unsupported key agreement " + scheme);
+        }
+        PublicKey peerKey = peerKeys.lookup(peer);
+        if (peerKey == null) {
+            throw new GeneralSecurityException("Unknown peer " + peer);
+        }
+        lock.lock();
+        try {
+            if (phase == PHASE_START) {
+                verify(peerKey, transcript(PHASE_START, id, peer, self, peerPublic, null), signature);
+                KeyAgreementEngine.EphemeralKey key = engine.generate();
+                byte[] publicKey = key.getPublicKey();
+                establish(peer, id, false, key.agree(peerPublic), peer, self);
+                byte[] reply = sign(transcript(PHASE_REPLY, id, self, peer, publicKey, peerPublic));
+                return new Message(encodeHandshake(PHASE_REPLY, id, publicKey, reply), peer, self,
+                        MessageTypes.SESSION_HANDSHAKE);
+            }
+            Handshake handshake = handshakes.get(peer);
+            if (handshake == null || handshake.id != id) {
+                return null;
+            }
+            byte[] ownPublic = handshake.key.getPublicKey();
+            verify(peerKey, transcript(PHASE_REPLY, id, peer, self, peerPublic, ownPublic), signature);
+            handshakes.remove(peer);
+            establish(peer, id, true, handshake.key.agree(peerPublic), self, peer);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts a message for the given recipients, each of which must be ready.
+     *
+     * @param message the plaintext
+     * @param recipients the names of the recipients
+     * @return the {@link MessageTypes#SESSION_MESSAGE} to send once for all the recipients
+     * @throws IllegalStateException if a recipient has no usable session
+     * @throws GeneralSecurityException if the encryption fails
+     */
+    public Message seal(byte[] message, List<String> recipients) throws GeneralSecurityException {
+        if (recipients.isEmpty()) {
+            throw new IllegalArgumentException("A message needs at least one recipient.");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length + 64 * recipients.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        lock.lock();
+        try {
+            Session[] sessions = new Session[recipients.size()];
+            for (int i = 0; i < sessions.length; i++) {
+                PeerSessions peer = peers.get(recipients.get(i));
+                if (peer == null || peer.current == null || !peer.current.isUsable(limits)) {
+                    throw new IllegalStateException("No session with " + recipients.get(i));
+                }
+                sessions[i] = peer.current;
+            }
+            byte[] body;
+            byte[] grant = null;
+            if (sessions.length == 1) {
+                body = sessions[0].sender.encrypt(message);
+            } else {
+                byte[] contentKey = new byte[CONTENT_KEY_LENGTH];
+                random.nextBytes(contentKey);
+                body = new AesGcmEngine(contentKey, 0).encrypt(message);
+                grant = Arrays.copyOf(contentKey, CONTENT_KEY_LENGTH + DIGEST_LENGTH);
+                System.arraycopy(bodyDigest(self, recipients, body), 0, grant, CONTENT_KEY_LENGTH, DIGEST_LENGTH);
+            }
+            out.writeInt(recipients.size());
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].messages++;
+                out.writeUTF(recipients.get(i));
+                out.writeLong(sessions[i].id);
+                writeField(out, grant == null ? new byte[0] : sessions[i].sender.encrypt(grant));
+            }
+            writeField(out, body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+        return new Message(bytes.toByteArray(), String.join(", ", recipients), self, MessageTypes.SESSION_MESSAGE);
+    }
+
+    /**
+     * Decrypts a message sealed by a peer.
+     *
+     * @param message the {@link MessageTypes#SESSION_MESSAGE} message
+     * @return the plaintext
+     * @throws GeneralSecurityException if the message is not addressed to this client, its session is unknown or
+     *         it was altered, including a body replaced by another recipient
+     * @throws IOException if the message is malformed
+     */
+    public byte[] open(Message message) throws GeneralSecurityException, IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.getMessage()));
+        int count = in.readInt();
+        if (count < 1 || count > in.available()) {
+            throw new IOException("Invalid number of recipients " + count);
+        }
+        List<String> recipients = new ArrayList<>(count);
+        long id = 0;
+        byte[] wrapped = null;
+        for (int i = 0; i < count; i++) {
+            String recipient = in.readUTF();
+            long sessionId = in.readLong();
+            byte[] key = readField(in);
+            recipients.add(recipient);
+            if (recipient.equals(self)) {
+                id = sessionId;
+                wrapped = key;
+            }
+        }
+        byte[] body = readField(in);
+        if (wrapped == null) {
+            throw new GeneralSecurityException("The message is not addressed to " + self);
+        }
+        lock.lock();
+        try {
+            PeerSessions sessions = peers.get(message.getSender());
+            Session session = sessions == null ? null : sessions.byId.get(id);
+            if (session == null) {
+                throw new GeneralSecurityException("Unknown session with " + message.getSender());
+            }
+            if (wrapped.length == 0) {
+                return session.receiver.decrypt(body);
+            }
+            byte[] grant = session.receiver.decrypt(wrapped);
+            if (grant.length != CONTENT_KEY_LENGTH + DIGEST_LENGTH || !MessageDigest.isEqual(
+                    Arrays.copyOfRange(grant, CONTENT_KEY_LENGTH, grant.length), bodyDigest(message.getSender(), recipients, body))) {
+                throw new AEADBadTagException("The body was not sealed by " + message.getSender());
+            }
+            return new AesGcmEngine(Arrays.copyOf(grant, CONTENT_KEY_LENGTH), 0).decrypt(body);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of sessions established, whether started by this client or by its peers.
+     *
+     * @return the number of completed handshakes
+     */
+    public long getHandshakeCount() {
+        lock.lock();
+        try {
+            return handshakeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of handshakes started to replace an existing session.
+     *
+     * @return the number of rotations
+     */
+    public long getRotationCount() {
+        lock.lock();
+        try {
+            return rotationCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Derives the key of a session and makes it the current session of the peer. Called with the lock held.
+     */
+    private void establish(String peer, long id, boolean initiator, byte[] secret, String initiatorName, String responderName)
+            throws GeneralSecurityException {
+        byte[] context = (id + "\n" + initiatorName + "\n" + responderName).getBytes(StandardCharsets.UTF_8);
+        byte[] key;
+        try {
+            key = Integrity.generateDigest(secret, context);
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+        Session session = new Session(id, new AesGcmEngine(key, initiator ? 1 : 2),
+                AesGcmEngine.forReceiving(key, initiator ? 2 : 1));
+        PeerSessions sessions = peers.computeIfAbsent(peer, name -> new PeerSessions());
+        sessions.byId.put(id, session);
+        sessions.current = session;
+        handshakeCount++;
+    }
+
+    /**
+     * The digest that authenticates the body of a message to several recipients: the name of the sender, the names
+     * of the recipients in order and the encrypted body.
+     */
+    private static byte[] bodyDigest(String sender, List<String> recipients, byte[] body) throws GeneralSecurityException {
+        byte[] header = (sender + "\n" + String.join("\n", recipients)).getBytes(StandardCharsets.UTF_8);
+        try {
+            return Integrity.generateDigest(header, body);
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    private byte[] sign(byte[] transcript) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(signingKey);
+        signature.update(transcript);
+        return signature.sign();
+    }
+
+    private static void verify(PublicKey key, byte[] transcript, byte[] signed) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(key);
+        signature.update(transcript);
+        if (!signature.verify(signed)) {
+            throw new SignatureException("The handshake is not signed by the certificate of the peer.");
+        }
+    }
+
+    /**
+     * The bytes signed by each side: the phase, the session id, the key agreement, both names, the public key of the
+     * signer and, in a reply, the public key of the initiator, which binds the reply to the handshake it answers.
+     */
+    private byte[] transcript(byte phase, long id, String sender, String recipient, byte[] publicKey, byte[] initiatorPublic) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(phase);
+            out.writeLong(id);
+            out.writeUTF(engine.getName());
+            out.writeUTF(sender);
+            out.writeUTF(recipient);
+            writeField(out, publicKey);
+            writeField(out, initiatorPublic == null ? new byte[0] : initiatorPublic);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeHandshake(byte phase, long id, byte[] publicKey, byte[] signature) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(phase);
+            out.writeLong(id);
+            out.writeUTF(engine.getName());
+            writeField(out, publicKey);
+            writeField(out, signature);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+        out.writeInt(field.length);
+        out.write(field);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid field length " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+
+    /**
+     * Finds the public RSA key of the certificate of a peer.
+     */
+    @FunctionalInterface
+    public interface PeerKeys {
+
+        /**
+         * Finds the key of a peer.
+         *
+         * @param peer the name of the peer
+         * @return the public key of the peer, or null if the peer is unknown
+         * @throws GeneralSecurityException if the certificate of the peer cannot be read
+         */
+        PublicKey lookup(String peer) throws GeneralSecurityException;
+    }
+
+    /**
+     * The budget of a session.
+     *
+     * @param maxMessages the number of messages after which a session is replaced
+     * @param maxAgeMillis the age after which a session is replaced
+     */
+    public record Limits(long maxMessages, long maxAgeMillis) {
+
+        /**
+         * Validates the limits.
+         */
+        public Limits {
+            if (maxMessages < 1 || maxAgeMillis < 1) {
+                throw new IllegalArgumentException("The limits of a session must be positive.");
+            }
+        }
+
+        /**
+         * Reads the limits from the {@code session.maxMessages} (default 100000) and {@code session.maxAgeMillis}
+         * (default one hour) system properties.
+         *
+         * @return the configured limits
+         */
+        public static Limits fromProperties() {
+            return new Limits(Long.getLong("session.maxMessages", 100_000), Long.getLong("session.maxAgeMillis", 3_600_000));
+        }
+    }
+
+    /**
+     * A handshake started by this client and waiting for the reply of the peer.
+     */
+    private record Handshake(long id, KeyAgreementEngine.EphemeralKey key, long startedAt) {
+    }
+
+    /**
+     * The key of a session: one engine encrypts with the salt of this side, the other decrypts what the peer sent,
+     * each message at most once.
+     */
+    private static final class Session {
+        private final long id;
+        private final AesGcmEngine sender;
+        private final AesGcmEngine receiver;
+        private final long createdAt = System.currentTimeMillis();
+        private long messages;
+
+        private Session(long id, AesGcmEngine sender, AesGcmEngine receiver) {
+            this.id = id;
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+
+        private boolean isUsable(Limits limits) {
+            return messages < limits.maxMessages() && System.currentTimeMillis() - createdAt < limits.maxAgeMillis();
+        }
+    }
+
+    /**
+     * The sessions with one peer: the current one, used to send, and the most recent ones, kept to receive.
+     */
+    private static final class PeerSessions {
+        private Session current;
+        private final Map<Long, Session> byId = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Session> eldest) {
+                return size() > RETAINED_SESSIONS;
+            }
+        };
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the signatures of a CA on a fixed pool of workers, sized to the cores by default, instead of on the threads of
+ * the connections, so the number of signatures made at once no longer grows with the number of connected clients.
+ * Requests wait in one bounded queue and are signed in the order they arrived, whichever connection sent them. A
+ * request that finds the queue full is rejected at once and a request not signed within the timeout is abandoned,
+ * so under overload the CA turns clients away early instead of letting every signature slow down.
+ * <p>
+ * The service counts its signatures, timeouts and rejections and keeps a histogram of the latency of the signatures,
+ * measured from the submission of a request to its signature, queueing included (see {@link #snapshot()}).
+ */
+public class SigningService implements Closeable {
+
+    /** The number of buckets of the latency histogram; bucket {@code i} holds latencies below 2^i microseconds. */
+    public static final int BUCKETS = 25;
+
+    private final Signer signer;
+    private final Settings settings;
+    private final ThreadPoolExecutor workers;
+    private final LongAdder[] latencies = new LongAdder[BUCKETS];
+    private final LongAdder signed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastSnapshotSigned;
+
+    /**
+     * Constructs a service making plain RSA signatures with the given key.
+     *
+     * @param privateKey the private key of the CA
+     * @param settings the workers, the queue and the timeout of the service
+     */
+    public SigningService(PrivateKey privateKey, Settings settings) {
+        this(digest -> {
+            try {
+                return Encryption.encryptRSA(digest, privateKey);
+            } catch (GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new GeneralSecurityException(e);
+            }
+        }, settings);
+    }
+
+    /**
+     * Constructs a service whose workers sign with the given signer, such as a {@link BatchSigner}, which then
+     * batches at most as many certificates as there are workers.
+     *
+     * @param signer the signer of the digests
+     * @param settings the workers, the queue and the timeout of the service
+     */
+    public SigningService(Signer signer, Settings settings) {
+        this.signer = signer;
+        this.settings = settings;
+        this.workers = new ThreadPoolExecutor(settings.threads(), settings.threads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(settings.queueCapacity(), true), Thread.ofPlatform().name("signer-", 0).daemon().factory());
+        for (int i = 0; i < BUCKETS; i++) {
+            latencies[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Signs the digest of a certificate on a worker, waiting for the signature at most the timeout of the service.
+     *
+     * @param digest the SHA-256 digest of the certificate data
+     * @return the signature of the certificate
+     * @throws RejectedExecutionException if the queue is full or the service is closed
+     * @throws TimeoutException if the digest was not signed within the timeout
+     * @throws GeneralSecurityException if the digest cannot be signed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public byte[] sign(byte[] digest) throws GeneralSecurityException, TimeoutException, InterruptedException {
+        long submitted = System.nanoTime();
+        Future<byte[]> signature;
+        try {
+            signature = workers.submit(() -> {
+                byte[] result = signer.sign(digest);
+                record(System.nanoTime() - submitted);
+                return result;
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        try {
+            return signature.get(settings.timeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // A request still in the queue is skipped by the worker that takes it
+            signature.cancel(false);
+            timedOut.increment();
+            throw e;
+        } catch (InterruptedException e) {
+            signature.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException cause) {
+                throw cause;
+            }
+            throw new GeneralSecurityException(e.getCause());
+        }
+    }
+
+    private void record(long latencyNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        latencies[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        signed.increment();
+    }
+
+    /**
+     * Gets the upper bound of a bucket of the latency histogram.
+     *
+     * @param bucket the index of the bucket
+     * @return the latency below which the signatures of the bucket were made, in microseconds, or
+     *         {@link Long#MAX_VALUE} for the last bucket, which holds every longer latency
+     */
+    public static long getBucketBoundMicros(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Gets the number of requests waiting for a worker.
+     *
+     * @return the depth of the queue
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Takes a snapshot of the metrics of the service. The rate of signatures is measured since the previous snapshot,
+     * or since the service started for the first one.
+     *
+     * @return the metrics of the service
+     */
+    public Metrics snapshot() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = latencies[i].sum();
+        }
+        long total = signed.sum();
+        double signaturesPerSecond;
+        snapshotLock.lock();
+        try {
+            long now = System.nanoTime();
+            signaturesPerSecond = now == lastSnapshotNanos ? 0 : (total - lastSnapshotSigned) * 1e9 / (now - lastSnapshotNanos);
+            lastSnapshotNanos = now;
+            lastSnapshotSigned = total;
+        } finally {
+            snapshotLock.unlock();
+        }
+        return new Metrics(getQueueDepth(), workers.getActiveCount(), total, timedOut.sum(), rejected.sum(), histogram, signaturesPerSecond);
+    }
+
+    /**
+     * Stops the workers, letting the queued requests finish for a short while.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Signs the digest of a certificate.
+     */
+    @FunctionalInterface
+    public interface Signer {
+
+        /**
+         * Signs a digest.
+         *
+         * @param digest the SHA-256 digest of the certificate data
+         * @return the signature of the certificate
+         * @throws GeneralSecurityException if the digest cannot be signed
+         * @throws InterruptedException if the thread is interrupted while signing
+         */
+        byte[] sign(byte[] digest) throws GeneralSecurityException, InterruptedException;
+    }
+
+    /**
+     * The metrics of a signing service at one moment.
+     *
+     * @param queueDepth the number of requests waiting for a worker
+     * @param activeWorkers the number of workers signing
+     * @param signed the number of signatures made
+     * @param timedOut the number of requests abandoned after the timeout
+     * @param rejected the number of requests turned away because the queue was full
+     * @param latencyHistogram the number of signatures in each latency bucket (see {@link #getBucketBoundMicros(int)})
+     * @param signaturesPerSecond the rate of signatures since the previous snapshot
+     */
+    public record Metrics(int queueDepth, int activeWorkers, long signed, long timedOut, long rejected,
+                          long[] latencyHistogram, double signaturesPerSecond) {
+
+        /**
+         * Gets the latency under which the given share of the signatures were made, rounded up to a bucket bound.
+         *
+         * @param percentile the share of the signatures, between 0 and 100
+         * @return the latency in microseconds, or 0 if nothing was signed
+         */
+        public long getLatencyPercentileMicros(double percentile) {
+            long count = 0;
+            for (long bucket : latencyHistogram) {
+                count += bucket;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < latencyHistogram.length && count > 0; i++) {
+                seen += latencyHistogram[i];
+                if (seen >= Math.max(1, rank)) {
+                    return getBucketBoundMicros(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Formats the metrics on one line.
+         *
+         * @return the depth of the queue, the counters, the rate and the median and 99th percentile latencies
+         */
+        @Override
+        public String toString() {
+            return String.format("queue=%d active=%d signed=%d timedOut=%d rejected=%d rate=%.1f/s p50<%dus p99<%dus",
+                    queueDepth, activeWorkers, signed, timedOut, rejected, signaturesPerSecond,
+                    getLatencyPercentileMicros(50), getLatencyPercentileMicros(99));
+        }
+    }
+
+    /**
+     * The workers, the queue and the timeout of a signing service.
+     *
+     * @param threads the number of workers
+     * @param queueCapacity the number of requests that may wait for a worker
+     * @param timeoutMillis the time a request may take, queueing included, before it is abandoned
+     */
+    public record Settings(int threads, int queueCapacity, long timeoutMillis) {
+
+        /**
+         * Validates the settings.
+         */
+        public Settings {
+            if (threads < 1 || queueCapacity < 1 || timeoutMillis < 1) {
+                throw new IllegalArgumentException("The settings of a signing service are invalid.");
+            }
+        }
+
+        /**
+         * Reads the settings from the {@code ca.signingThreads} (default the number of processors),
+         * {@code ca.signingQueue} (default 256) and {@code ca.signingTimeoutMillis} (default 5000) system properties.
+         *
+         * @return the configured settings
+         */
+        public static Settings fromProperties() {
+            return new Settings(Integer.getInteger("ca.signingThreads", Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("ca.signingQueue", 256), Long.getLong("ca.signingTimeoutMillis", 5000));
+        }
+    }
+}
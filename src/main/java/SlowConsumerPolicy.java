@@ -0,0 +1,15 @@
+/**
+ * Enumerated type representing what an outbound queue does when its recipient cannot keep up with the messages
+ * sent to it.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discards new messages once the queue reaches its high watermark, until it drains below its low watermark.
+     */
+    DROP,
+
+    /**
+     * Closes the connection of the recipient once the queue reaches its high watermark.
+     */
+    DISCONNECT,
+}
@@ -0,0 +1,92 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of the writes issued to sockets, used to measure how well outbound messages are coalesced.
+ */
+public final class TransportMetrics {
+
+    private static final LongAdder SOCKET_WRITES = new LongAdder();
+    private static final LongAdder MESSAGES_WRITTEN = new LongAdder();
+
+    private TransportMetrics() {
+    }
+
+    /**
+     * Records write system calls issued to a socket.
+     *
+     * @param count the number of writes
+     */
+    public static void recordSocketWrites(long count) {
+        SOCKET_WRITES.add(count);
+    }
+
+    /**
+     * Records messages written to a socket.
+     *
+     * @param count the number of messages
+     */
+    public static void recordMessages(long count) {
+        MESSAGES_WRITTEN.add(count);
+    }
+
+    /**
+     * Gets the number of writes issued to sockets.
+     *
+     * @return the number of socket writes
+     */
+    public static long getSocketWrites() {
+        return SOCKET_WRITES.sum();
+    }
+
+    /**
+     * Gets the number of messages written to sockets.
+     *
+     * @return the number of messages
+     */
+    public static long getMessagesWritten() {
+        return MESSAGES_WRITTEN.sum();
+    }
+
+    /**
+     * Gets the average number of socket writes per message.
+     *
+     * @return the number of system calls per message, or 0 if no message was written
+     */
+    public static double getSyscallsPerMessage() {
+        long messages = getMessagesWritten();
+        return messages == 0 ? 0 : getSocketWrites() / (double) messages;
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public static void reset() {
+        SOCKET_WRITES.reset();
+        MESSAGES_WRITTEN.reset();
+    }
+
+    /**
+     * Wraps the output stream of a socket so that every write reaching it is counted.
+     *
+     * @param out the output stream of the socket
+     * @return the counting stream
+     */
+    public static OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                SOCKET_WRITES.increment();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                SOCKET_WRITES.increment();
+                out.write(b, off, len);
+            }
+        };
+    }
+}
@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 
 public class User {
@@ -7,6 +8,9 @@ public class User {
     /** The output stream for communicating with the user. */
     private ObjectOutputStream out;
 
+    /** The sink for communicating with the user when it is not reached through an Object stream. */
+    private MessageSink sink;
+
     /** The certificate associated with the user. */
     private String certificate;
 
@@ -23,6 +27,30 @@ public class User {
         this.certificate = certificate;
     }
 
+    /**
+     * Constructs a User object with the specified name, message sink, and certificate.
+     *
+     * @param name the name of the user
+     * @param sink the sink for communicating with the user
+     * @param certificate the certificate associated with the user
+     */
+    public User(String name, MessageSink sink, String certificate) {
+        this.name = name;
+        this.sink = sink;
+        this.certificate = certificate;
+    }
+
+    /**
+     * Constructs a User object that is known only by its name and certificate, such as a peer seen by a client.
+     *
+     * @param name the name of the user
+     * @param certificate the certificate associated with the user
+     */
+    public User(String name, String certificate) {
+        this.name = name;
+        this.certificate = certificate;
+    }
+
     /**
      * Gets the name of the user.
      *
@@ -35,12 +63,46 @@ public class User {
     /**
      * Gets the output stream for communicating with the user.
      *
-     * @return the output stream for communicating with the user
+     * @return the output stream for communicating with the user, or null if the user is reached through a sink
      */
     public ObjectOutputStream getOut() {
         return out;
     }
 
+    /**
+     * Checks whether the user can be sent messages.
+     *
+     * @return true if the user has an output stream or a sink, false otherwise
+     */
+    public boolean isReachable() {
+        return sink != null || out != null;
+    }
+
+    /**
+     * Gets the metrics of the queue holding the messages waiting to be written to the user.
+     *
+     * @return the queue metrics, or null if messages to the user are not queued
+     */
+    public QueueMetrics getQueueMetrics() {
+        return sink instanceof QueueMetrics metrics ? metrics : null;
+    }
+
+    /**
+     * Sends a message to the user through its sink or, if it has none, through its output stream. The output stream
+     * is reset after every message, so it does not retain the messages sent over a long-lived connection.
+     *
+     * @param message the message to be sent
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    public void send(Message message) throws IOException {
+        if (sink != null) {
+            sink.send(message);
+        } else if (out != null) {
+            out.writeObject(message);
+            out.reset();
+        }
+    }
+
     /**
      * Gets the certificate associated with the user.
      *
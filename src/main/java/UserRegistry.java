@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The names registered with a server and whether each of them is logged in. Every operation is a single atomic
+ * update of a {@link ConcurrentHashMap}, so registrations and logins of different names never contend on a global
+ * lock and take constant time however many names are registered. A registry backed by a {@link RegistrationStore}
+ * recovers the names registered before a restart and records every registration and removal; the login state is
+ * never stored, since no session survives a restart.
+ */
+public class UserRegistry {
+
+    /** The state of a registered name. */
+    private enum State { REGISTERED, LOGGED_IN }
+
+    private final ConcurrentHashMap<String, State> names = new ConcurrentHashMap<>();
+    private final RegistrationStore store;
+
+    /**
+     * Constructs an empty registry that is kept only in memory.
+     */
+    public UserRegistry() {
+        this.store = null;
+    }
+
+    /**
+     * Constructs a registry holding the names recovered from the given store, which records every later change.
+     *
+     * @param store the store of the registered names
+     * @throws IOException if the store cannot be recovered
+     */
+    public UserRegistry(RegistrationStore store) throws IOException {
+        this.store = store;
+        store.recover(name -> names.put(name, State.REGISTERED), names::remove, names::keySet);
+    }
+
+    /**
+     * Registers a name unless it is already registered.
+     *
+     * @param name the name to register
+     * @return true if the name was registered, false if it was taken
+     */
+    public boolean register(String name) {
+        if (names.putIfAbsent(name, State.REGISTERED) != null) {
+            return false;
+        }
+        if (store != null) {
+            store.appendRegister(name);
+        }
+        return true;
+    }
+
+    /**
+     * Logs in a name, provided it is registered and not logged in already. The check and the update are atomic, so
+     * two sessions racing to log in the same name cannot both succeed.
+     *
+     * @param name the name to log in
+     * @return true if the name was logged in, false if it is not registered or already logged in
+     */
+    public boolean login(String name) {
+        return names.replace(name, State.REGISTERED, State.LOGGED_IN);
+    }
+
+    /**
+     * Marks a logged in name as registered again, so that it can log in from a new session.
+     *
+     * @param name the name to log out
+     * @return true if the name was logged in
+     */
+    public boolean logout(String name) {
+        return names.replace(name, State.LOGGED_IN, State.REGISTERED);
+    }
+
+    /**
+     * Removes a name from the registry, whether it is logged in or not.
+     *
+     * @param name the name to remove
+     * @return true if the name was registered
+     */
+    public boolean unregister(String name) {
+        if (names.remove(name) == null) {
+            return false;
+        }
+        if (store != null) {
+            store.appendUnregister(name);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a name is registered.
+     *
+     * @param name the name to check
+     * @return true if the name is registered
+     */
+    public boolean isRegistered(String name) {
+        return names.containsKey(name);
+    }
+
+    /**
+     * Checks whether a name is logged in.
+     *
+     * @param name the name to check
+     * @return true if the name is logged in
+     */
+    public boolean isLoggedIn(String name) {
+        return names.get(name) == State.LOGGED_IN;
+    }
+
+    /**
+     * Gets the number of registered names.
+     *
+     * @return the number of registered names
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,102 @@
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+/**
+ * Key agreement over Curve25519 with the XDH implementation of the JDK. A public value is the 32-byte little-endian
+ * u-coordinate of RFC 7748 rather than an X.509 encoding, which keeps handshake frames small. The generator, the key
+ * factory and the key agreement are kept per thread.
+ */
+public class X25519Engine implements KeyAgreementEngine {
+
+    /** The name of the scheme. */
+    public static final String NAME = "X25519";
+    /** The length of a public value in bytes. */
+    public static final int KEY_LENGTH = 32;
+
+    private static final ThreadLocal<Context> CONTEXTS = ThreadLocal.withInitial(() -> {
+        try {
+            return new Context();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("X25519 is not available", e);
+        }
+    });
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public KeyAgreementEngine.EphemeralKey generate() {
+        KeyPair keyPair = CONTEXTS.get().generator.generateKeyPair();
+        return new EphemeralKey(keyPair.getPrivate(), encode(((XECPublicKey) keyPair.getPublic()).getU()));
+    }
+
+    /**
+     * Encodes a u-coordinate as 32 little-endian bytes.
+     */
+    private static byte[] encode(BigInteger u) {
+        byte[] bigEndian = u.toByteArray();
+        byte[] encoded = new byte[KEY_LENGTH];
+        for (int i = 0; i < Math.min(bigEndian.length, KEY_LENGTH); i++) {
+            encoded[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes 32 little-endian bytes into a u-coordinate, ignoring the most significant bit as RFC 7748 requires.
+     */
+    private static BigInteger decode(byte[] encoded) throws InvalidKeyException {
+        if (encoded.length != KEY_LENGTH) {
+            throw new InvalidKeyException("An X25519 public key has " + KEY_LENGTH + " bytes.");
+        }
+        byte[] bigEndian = new byte[KEY_LENGTH];
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            bigEndian[i] = encoded[KEY_LENGTH - 1 - i];
+        }
+        bigEndian[0] &= 0x7f;
+        return new BigInteger(1, bigEndian);
+    }
+
+    /**
+     * The generator, the key factory and the key agreement of one thread.
+     */
+    private static final class Context {
+        private final KeyPairGenerator generator = KeyPairGenerator.getInstance(NAME);
+        private final KeyFactory keyFactory = KeyFactory.getInstance("XDH");
+        private final KeyAgreement agreement = KeyAgreement.getInstance(NAME);
+
+        private Context() throws GeneralSecurityException {
+        }
+    }
+
+    /**
+     * An X25519 key pair with its encoded public value.
+     */
+    private record EphemeralKey(PrivateKey privateKey, byte[] publicKey) implements KeyAgreementEngine.EphemeralKey {
+
+        @Override
+        public byte[] getPublicKey() {
+            return publicKey.clone();
+        }
+
+        @Override
+        public byte[] agree(byte[] peerPublicKey) throws GeneralSecurityException {
+            Context context = CONTEXTS.get();
+            XECPublicKeySpec spec = new XECPublicKeySpec(NamedParameterSpec.X25519, decode(peerPublicKey));
+            context.agreement.init(privateKey);
+            context.agreement.doPhase(context.keyFactory.generatePublic(spec), true);
+            return context.agreement.generateSecret();
+        }
+    }
+}
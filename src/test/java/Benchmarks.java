@@ -0,0 +1,1577 @@
+// *------------------------*
+// *    Benchmarks.java     *
+// *------------------------*
+
+// Benchmarks are skipped by the regular build. Run them with: mvn test -Dbenchmark=true -Dtest=Benchmarks
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class Benchmarks
+{
+
+    /**
+     * Reads the resident set size of the JVM, falling back to the used heap where /proc is not available.
+     */
+    static long residentMemory() throws IOException {
+        System.gc();
+        Path status = Path.of("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void report(String benchmark, String metric, double value) {
+        System.out.printf("[benchmark] %-40s %-28s %,.2f%n", benchmark, metric, value);
+    }
+
+    /**
+     * Reads the number of bytes allocated so far by the current thread.
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+
+    /**
+     * Registers and logs in a user through the given channel, discarding the replies.
+     */
+    static void login(MessageChannel channel, String name, KeyPair keyPair) throws Exception {
+        channel.send(new Message(name.getBytes(), "Server", "new user", MessageTypes.REGISTER));
+        channel.receive();
+        String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), name));
+        channel.send(new Message(certificate.getBytes(), "Server", name, MessageTypes.LOGIN));
+        channel.receive();
+        channel.receive();
+    }
+
+
+    @Nested
+    @DisplayName("Benchmark: NioServer.java vs Server.java")
+    class NioServerBenchmark {
+
+        private final int connections = Integer.getInteger("benchmark.connections", 1000);
+        private final int clients = Integer.getInteger("benchmark.clients", 32);
+        private final int messages = Integer.getInteger("benchmark.messages", 2000);
+
+        interface Connector {
+            MessageChannel connect(int port) throws IOException;
+        }
+
+        private final Connector objectStreams = port -> new ObjectMessageChannel(new Socket("localhost", port));
+        private final Connector frames = port -> new FramedMessageChannel(new Socket("localhost", port), SerializedMessageCodec.INSTANCE);
+
+        private double connectionsPerGigabyte(int port, Connector connector) throws Exception {
+            List<MessageChannel> channels = new ArrayList<>();
+            long before = residentMemory();
+            for (int i = 0; i < connections; i++) {
+                channels.add(connector.connect(port));
+            }
+            Thread.sleep(500);
+            long after = residentMemory();
+            for (MessageChannel channel : channels) {
+                channel.close();
+            }
+            return connections / (Math.max(after - before, 1) / (double) (1L << 30));
+        }
+
+        private double messagesPerSecond(int port, Connector connector, String prefix) throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            List<MessageChannel> channels = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                MessageChannel channel = connector.connect(port);
+                login(channel, prefix + i, keyPair);
+                channels.add(channel);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(clients * 2);
+            CountDownLatch done = new CountDownLatch(clients);
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                MessageChannel channel = channels.get(i);
+                String name = prefix + i;
+                executor.submit(() -> {
+                    for (int m = 0; m < messages; m++) {
+                        channel.send(new Message("benchmark message".getBytes(), name, name, MessageTypes.USER_MESSAGE));
+                    }
+                    return null;
+                });
+                executor.submit(() -> {
+                    int received = 0;
+                    while (received < messages) {
+                        if (channel.receive().getMessageType() == MessageTypes.USER_MESSAGE) {
+                            received++;
+                        }
+                    }
+                    done.countDown();
+                    return null;
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.MINUTES));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdownNow();
+            for (MessageChannel channel : channels) {
+                channel.close();
+            }
+            return clients * (double) messages / seconds;
+        }
+
+        @Test
+        @DisplayName("Idle connections per GB of resident memory")
+        public void testConnectionsPerGigabyte() throws Exception {
+            Server threads = new Server(0);
+            new Thread(threads).start();
+            report("thread-per-connection", "connections/GB", connectionsPerGigabyte(threads.getPort(), objectStreams));
+
+            try (NioServer nio = new NioServer(0, Runtime.getRuntime().availableProcessors())) {
+                new Thread(nio).start();
+                report("nio", "connections/GB", connectionsPerGigabyte(nio.getPort(), frames));
+            }
+        }
+
+        @Test
+        @DisplayName("Messages per second through the server")
+        public void testMessagesPerSecond() throws Exception {
+            Server threads = new Server(0);
+            new Thread(threads).start();
+            report("thread-per-connection", "messages/s", messagesPerSecond(threads.getPort(), objectStreams, "t"));
+
+            try (NioServer nio = new NioServer(0, Runtime.getRuntime().availableProcessors())) {
+                new Thread(nio).start();
+                report("nio", "messages/s", messagesPerSecond(nio.getPort(), frames, "n"));
+            }
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Soak: idle sessions per ExecutionMode")
+    class ExecutionModeSoak {
+
+        private final int sessions = Integer.getInteger("benchmark.sessions", 2000);
+        private final long idleMillis = Long.getLong("benchmark.idleMillis", 5000);
+
+        private List<Thread> carriers() {
+            List<Thread> carriers = new ArrayList<>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getClass().getName().equals("jdk.internal.misc.CarrierThread")) {
+                    carriers.add(thread);
+                }
+            }
+            return carriers;
+        }
+
+        private long cpuTime(ThreadMXBean threads, List<Thread> carriers) {
+            long total = 0;
+            for (Thread carrier : carriers) {
+                total += Math.max(threads.getThreadCpuTime(carrier.threadId()), 0);
+            }
+            return total;
+        }
+
+        private void soak(ExecutionMode mode) throws Exception {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Server server = new Server(0, mode.newExecutor(sessions));
+            new Thread(server).start();
+            int threadsBefore = threads.getThreadCount();
+            long before = residentMemory();
+            List<MessageChannel> channels = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                MessageChannel channel = new ObjectMessageChannel(new Socket("localhost", server.getPort()));
+                channel.send(new Message(("soak" + mode + i).getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                channel.receive();
+                channels.add(channel);
+            }
+            List<Thread> carriers = carriers();
+            long cpuBefore = cpuTime(threads, carriers);
+            Thread.sleep(idleMillis);
+            double utilisation = (cpuTime(threads, carriers) - cpuBefore) / (idleMillis * 1e6 * Math.max(carriers.size(), 1));
+            long after = residentMemory();
+
+            report("soak " + mode, "idle sessions", sessions);
+            report("soak " + mode, "platform threads added", threads.getThreadCount() - threadsBefore);
+            report("soak " + mode, "carrier threads", carriers.size());
+            report("soak " + mode, "carrier utilisation %", utilisation * 100);
+            report("soak " + mode, "RSS bytes/idle session", (after - before) / (double) sessions);
+            for (MessageChannel channel : channels) {
+                channel.close();
+            }
+        }
+
+        @Test
+        @DisplayName("Idle sessions on platform threads")
+        public void testPlatformThreads() throws Exception {
+            soak(ExecutionMode.THREADS);
+        }
+
+        @Test
+        @DisplayName("Idle sessions on virtual threads")
+        public void testVirtualThreads() throws Exception {
+            soak(ExecutionMode.VIRTUAL);
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Benchmark: BinaryMessageCodec.java vs Java serialization")
+    class CodecBenchmark {
+
+        private final int iterations = Integer.getInteger("benchmark.iterations", 200_000);
+
+        private Message[] messages(Message template) {
+            Message[] messages = new Message[iterations];
+            for (int i = 0; i < iterations; i++) {
+                messages[i] = new Message(template.getMessage().clone(), new String(template.getRecipient()),
+                        new String(template.getSender()), template.getMessageType());
+            }
+            return messages;
+        }
+
+        private void objectStream(String name, Message template) throws Exception {
+            Message[] messages = messages(template);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            for (int i = 0; i < 1000; i++) {
+                out.writeObject(messages[i]);
+            }
+            out.flush();
+            int warm = bytes.size();
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 1000; i < iterations; i++) {
+                out.writeObject(messages[i]);
+            }
+            out.flush();
+            long encodeNanos = System.nanoTime() - start;
+            long encodeAllocated = allocatedBytes() - allocated;
+            int frames = iterations - 1000;
+
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            for (int i = 0; i < 1000; i++) {
+                in.readObject();
+            }
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 1000; i < iterations; i++) {
+                in.readObject();
+            }
+            long decodeNanos = System.nanoTime() - start;
+            long decodeAllocated = allocatedBytes() - allocated;
+
+            report("object stream " + name, "bytes/frame", (bytes.size() - warm) / (double) frames);
+            report("object stream " + name, "encode alloc bytes/frame", encodeAllocated / (double) frames);
+            report("object stream " + name, "decode alloc bytes/frame", decodeAllocated / (double) frames);
+            report("object stream " + name, "encode ns/frame", encodeNanos / (double) frames);
+            report("object stream " + name, "decode ns/frame", decodeNanos / (double) frames);
+        }
+
+        private void codec(String name, MessageCodec codec, Message template) throws Exception {
+            Message[] messages = messages(template);
+            byte[][] frames = new byte[iterations][];
+            for (int i = 0; i < 1000; i++) {
+                byte[] frame = codec.encode(messages[i]);
+                codec.decode(frame, 0, frame.length);
+            }
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                frames[i] = codec.encode(messages[i]);
+            }
+            long encodeNanos = System.nanoTime() - start;
+            long encodeAllocated = allocatedBytes() - allocated;
+            long size = 0;
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (byte[] frame : frames) {
+                codec.decode(frame, 0, frame.length);
+                size += frame.length + Integer.BYTES;
+            }
+            long decodeNanos = System.nanoTime() - start;
+            long decodeAllocated = allocatedBytes() - allocated;
+
+            report(name, "bytes/frame", size / (double) iterations);
+            report(name, "encode alloc bytes/frame", encodeAllocated / (double) iterations);
+            report(name, "decode alloc bytes/frame", decodeAllocated / (double) iterations);
+            report(name, "encode ns/frame", encodeNanos / (double) iterations);
+            report(name, "decode ns/frame", decodeNanos / (double) iterations);
+        }
+
+        private void compare(String name, Message template) throws Exception {
+            objectStream(name, template);
+            codec("serialized frame " + name, SerializedMessageCodec.INSTANCE, template);
+            codec("binary frame " + name, BinaryMessageCodec.INSTANCE, template);
+        }
+
+        @Test
+        @DisplayName("Encoding of a 64-byte chat message")
+        public void testChatMessage() throws Exception {
+            compare("chat", new Message(new byte[64], "recipient", "sender", MessageTypes.USER_MESSAGE));
+        }
+
+        @Test
+        @DisplayName("Encoding of a login carrying a certificate")
+        public void testLoginMessage() throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), "sender"));
+            compare("login", new Message(certificate.getBytes(), "Server", "sender", MessageTypes.LOGIN));
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Benchmark: write coalescing and presence batching under a login storm")
+    class CoalescingBenchmark {
+
+        private final int users = Integer.getInteger("benchmark.users", 200);
+
+        private void storm(String name, String maxBatch, String maxDelayMicros, String presenceWindowMillis) throws Exception {
+            System.setProperty("server.flush.maxBatch", maxBatch);
+            System.setProperty("server.flush.maxDelayMicros", maxDelayMicros);
+            System.setProperty("server.queue.high", String.valueOf(users * 4));
+            System.setProperty("presence.windowMillis", presenceWindowMillis);
+            KeyPair keyPair = Encryption.generateKeyPair();
+            Server server = new Server(0, ExecutionMode.VIRTUAL.newExecutor(0));
+            new Thread(server).start();
+            CountDownLatch complete = new CountDownLatch(users);
+            LongAdder presenceFrames = new LongAdder();
+            List<MessageChannel> channels = new ArrayList<>();
+            ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+            com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            for (int i = 0; i < users; i++) {
+                MessageChannel channel = new ObjectMessageChannel(new Socket("localhost", server.getPort()));
+                channel.send(new Message((name + i).getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                channel.receive();
+                channels.add(channel);
+            }
+            CountDownLatch go = new CountDownLatch(1);
+            for (int i = 0; i < users; i++) {
+                MessageChannel channel = channels.get(i);
+                String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), name + i));
+                readers.submit(() -> {
+                    go.await();
+                    channel.send(new Message(certificate.getBytes(), "Server", "user", MessageTypes.LOGIN));
+                    Set<String> seen = new HashSet<>();
+                    while (true) {
+                        Message message = channel.receive();
+                        if (message.getMessageType() == MessageTypes.ROSTER_DELTA) {
+                            presenceFrames.increment();
+                        }
+                        if (message instanceof RosterMessage) {
+                            for (String entry : new String(message.getMessage()).split(",")) {
+                                if (entry.startsWith(CertificateEncoder.HEADER) && seen.add(entry) && seen.size() == users) {
+                                    complete.countDown();
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            TransportMetrics.reset();
+            long cpuBefore = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            go.countDown();
+            assertTrue(complete.await(5, TimeUnit.MINUTES));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report("login storm " + name, "syscalls/message", TransportMetrics.getSyscallsPerMessage());
+            report("login storm " + name, "presence frames/client", presenceFrames.sum() / (double) users);
+            report("login storm " + name, "time to full roster ms", seconds * 1000);
+            report("login storm " + name, "CPU ms", (os.getProcessCpuTime() - cpuBefore) / 1e6);
+            readers.shutdownNow();
+            for (MessageChannel channel : channels) {
+                channel.close();
+            }
+            System.clearProperty("server.flush.maxBatch");
+            System.clearProperty("server.flush.maxDelayMicros");
+            System.clearProperty("server.queue.high");
+            System.clearProperty("presence.windowMillis");
+        }
+
+        @Test
+        @DisplayName("Flush after every message")
+        public void testImmediateFlush() throws Exception {
+            storm("immediate", "1", "0", "0");
+        }
+
+        @Test
+        @DisplayName("Adaptive flush batching")
+        public void testAdaptiveFlush() throws Exception {
+            storm("adaptive", "64", "1000", "0");
+        }
+
+        @Test
+        @DisplayName("Adaptive flush batching and presence batching")
+        public void testPresenceBatching() throws Exception {
+            storm("presence batching", "64", "1000", "50");
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: heap of a long-lived Object stream session")
+    class StreamResetSoak {
+
+        private final int messages = Integer.getInteger("benchmark.messages", 1_000_000);
+
+        private long usedHeap() {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        /**
+         * Pushes messages through one connection and samples the heap at every tenth of the run.
+         */
+        private long[] soak(String name, ObjectMessageChannel.ResetPolicy policy, int count) throws Exception {
+            long[] samples = new long[11];
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                ExecutorService executor = Executors.newSingleThreadExecutor();
+                Future<ObjectMessageChannel> accepted = executor.submit(() -> new ObjectMessageChannel(serverSocket.accept()));
+                Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+                try (ObjectMessageChannel sender = new ObjectMessageChannel(socket, socket.getInputStream(), policy);
+                     ObjectMessageChannel receiver = accepted.get(5, TimeUnit.SECONDS)) {
+                    Future<Integer> reader = executor.submit(() -> {
+                        for (int i = 0; i < count; i++) {
+                            receiver.receive();
+                        }
+                        return count;
+                    });
+                    samples[0] = usedHeap();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        sender.write(new Message(new byte[64], "recipient", "sender" + (i & 1023), MessageTypes.USER_MESSAGE));
+                        if (i % 64 == 63) {
+                            sender.flush();
+                        }
+                        if ((i + 1) % (count / 10) == 0) {
+                            samples[(i + 1) / (count / 10)] = usedHeap();
+                        }
+                    }
+                    sender.flush();
+                    assertEquals(count, reader.get(5, TimeUnit.MINUTES));
+                    report("stream soak " + name, "messages/s", count / ((System.nanoTime() - start) / 1e9));
+                    report("stream soak " + name, "retained messages", sender.getRetainedMessages());
+                    report("stream soak " + name, "heap growth MB", (samples[10] - samples[1]) / 1e6);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+            return samples;
+        }
+
+        @Test
+        @DisplayName("A million messages with periodic resets keep the heap flat")
+        public void testWithResets() throws Exception {
+            long[] samples = soak("with resets", ObjectMessageChannel.ResetPolicy.fromProperties(), messages);
+            assertTrue(samples[10] - samples[1] < 16 * 1024 * 1024, "heap grew by " + (samples[10] - samples[1]) + " bytes");
+        }
+
+        @Test
+        @DisplayName("Without resets the heap grows with the traffic")
+        public void testWithoutResets() throws Exception {
+            soak("without resets", new ObjectMessageChannel.ResetPolicy(Integer.MAX_VALUE, Long.MAX_VALUE), messages / 10);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: UserRegistry.java vs a locked ArrayList")
+    class RegistryBenchmark {
+
+        private final int threads = Integer.getInteger("benchmark.threads", 8);
+
+        /**
+         * Runs register-then-login operations for fresh names on several threads and reports their throughput.
+         */
+        private void measure(String name, int operations, Consumer<String> operation) throws Exception {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> workers = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                int first = t * (operations / threads);
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = first; i < first + operations / threads; i++) {
+                        operation.accept("new" + i);
+                    }
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            report(name, "register+login ops/s", operations / ((System.nanoTime() - begin) / 1e9));
+            executor.shutdown();
+        }
+
+        private void compare(int registered) throws Exception {
+            UserRegistry registry = new UserRegistry();
+            for (int i = 0; i < registered; i++) {
+                registry.register("user" + i);
+            }
+            measure("registry with " + registered + " names", 400_000, name -> {
+                if (registry.register(name)) {
+                    registry.login(name);
+                }
+            });
+
+            ArrayList<String> names = new ArrayList<>();
+            for (int i = 0; i < registered; i++) {
+                names.add("user" + i);
+            }
+            ReentrantLock lock = new ReentrantLock();
+            Set<String> loggedIn = ConcurrentHashMap.newKeySet();
+            measure("locked list with " + registered + " names", Math.max(threads, 20_000_000 / registered), name -> {
+                lock.lock();
+                try {
+                    if (!names.contains(name)) {
+                        names.add(name);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                lock.lock();
+                try {
+                    if (names.contains(name) && !loggedIn.contains(name)) {
+                        loggedIn.add(name);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+
+        @Test
+        @DisplayName("10k registered names")
+        public void test10k() throws Exception {
+            compare(10_000);
+        }
+
+        @Test
+        @DisplayName("100k registered names")
+        public void test100k() throws Exception {
+            compare(100_000);
+        }
+
+        @Test
+        @DisplayName("1M registered names")
+        public void test1M() throws Exception {
+            compare(1_000_000);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: RegistrationStore.java recovery and append latency")
+    class RegistrationStoreBenchmark {
+
+        private final int names = Integer.getInteger("benchmark.names", 2_000_000);
+
+        private double recover(Path directory) throws Exception {
+            long start = System.nanoTime();
+            RegistrationStore store = new RegistrationStore(directory, RegistrationStore.Options.fromProperties());
+            UserRegistry registry = new UserRegistry(store);
+            double millis = (System.nanoTime() - start) / 1e6;
+            assertEquals(names, registry.size());
+            store.close();
+            return millis;
+        }
+
+        @Test
+        @DisplayName("Recovery of millions of names from the log and from a snapshot")
+        public void testRecovery() throws Exception {
+            Path directory = Files.createTempDirectory("registrations");
+            RegistrationStore store = new RegistrationStore(directory, new RegistrationStore.Options(64 * 1024 * 1024, 10, 1000));
+            UserRegistry registry = new UserRegistry(store);
+            long start = System.nanoTime();
+            for (int i = 0; i < names; i++) {
+                registry.register("user" + i);
+            }
+            report("registration store", "register ns/op", (System.nanoTime() - start) / (double) names);
+            store.close();
+            report("registration store", "recover from log ms", recover(directory));
+
+            store = new RegistrationStore(directory, new RegistrationStore.Options(64, 10, 1));
+            registry = new UserRegistry(store);
+            registry.register("trigger");
+            registry.unregister("trigger");
+            store.close();
+            report("registration store", "recover from snapshot ms", recover(directory));
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: PresenceRoster.java vs building the roster on every login")
+    class RosterBenchmark {
+
+        private final int users = Integer.getInteger("benchmark.users", 2000);
+
+        @Test
+        @DisplayName("A login wave and a reconnect with a known version")
+        public void testLoginWave() throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            String[] certificates = new String[users];
+            for (int i = 0; i < users; i++) {
+                certificates[i] = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), "user" + i));
+            }
+
+            ConcurrentHashMap<String, String> clients = new ConcurrentHashMap<>();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < users; i++) {
+                clients.put("user" + i, certificates[i]);
+                StringBuilder list = new StringBuilder();
+                for (Map.Entry<String, String> entry : clients.entrySet()) {
+                    if (!entry.getKey().equals("user" + i)) {
+                        list.append(entry.getValue()).append(",");
+                    }
+                }
+                bytes += list.toString().getBytes().length;
+            }
+            report("roster wave rebuilt per login", "us/login", (System.nanoTime() - start) / 1e3 / users);
+            report("roster wave rebuilt per login", "MB sent", bytes / 1e6);
+
+            PresenceRoster roster = new PresenceRoster();
+            bytes = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < users; i++) {
+                roster.add("user" + i, certificates[i]);
+                bytes += roster.snapshot().entries().length;
+            }
+            report("roster wave with PresenceRoster", "us/login", (System.nanoTime() - start) / 1e3 / users);
+            report("roster wave with PresenceRoster", "MB sent", bytes / 1e6);
+
+            long known = roster.getVersion();
+            roster.remove("user0");
+            roster.add("user" + users, certificates[0]);
+            report("reconnect after 2 changes", "snapshot bytes", roster.snapshot().entries().length);
+            report("reconnect after 2 changes", "delta bytes", roster.since(known).entries().length);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: presence subscriptions vs global broadcast")
+    class SubscriptionBenchmark {
+
+        private final int users = Integer.getInteger("benchmark.users", 50_000);
+        private final int contactsPerUser = Integer.getInteger("benchmark.contacts", 50);
+        private final int changes = Integer.getInteger("benchmark.changes", 1000);
+
+        private void measure(String name, boolean subscribe) throws Exception {
+            ConcurrentHashMap<String, User> clients = new ConcurrentHashMap<>();
+            PresenceAggregator presence = new PresenceAggregator(clients, new PresenceRoster(), 60_000);
+            LongAdder delivered = new LongAdder();
+            MessageSink sink = new MessageSink() {
+                @Override
+                public void send(Message message) {
+                    delivered.increment();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            String certificate = new CertificateEncoder().encode(new Certificate(Encryption.generateKeyPair().getPublic(), "user"));
+            Random random = new Random(42);
+            for (int i = 0; i < users; i++) {
+                presence.loggedIn(new User("user" + i, sink, certificate), () -> {});
+            }
+            presence.flush();
+            if (subscribe) {
+                for (User user : clients.values()) {
+                    List<String> contacts = new ArrayList<>();
+                    for (int c = 0; c < contactsPerUser; c++) {
+                        contacts.add("user" + random.nextInt(users));
+                    }
+                    presence.subscribe(user, contacts);
+                }
+            }
+            delivered.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < changes; i++) {
+                User user = clients.get("user" + random.nextInt(users));
+                if (user != null) {
+                    presence.loggedOut(user);
+                }
+                presence.flush();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report("presence " + name, "deliveries/event", delivered.sum() / (double) changes);
+            report("presence " + name, "events/s", changes / seconds);
+        }
+
+        @Test
+        @DisplayName("50k users, global broadcast")
+        public void testGlobal() throws Exception {
+            measure("global broadcast", false);
+        }
+
+        @Test
+        @DisplayName("50k users with contact lists")
+        public void testSubscribed() throws Exception {
+            measure("subscriptions", true);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: group channel fan-out vs explicit recipient list")
+    class GroupFanoutBenchmark {
+
+        private final int members = Integer.getInteger("benchmark.members", 5000);
+        private final int messages = Integer.getInteger("benchmark.messages", 1000);
+
+        private void measure(String name, boolean group) throws Exception {
+            ConcurrentHashMap<String, User> clients = new ConcurrentHashMap<>();
+            PresenceAggregator presence = new PresenceAggregator(clients, new PresenceRoster(), 60_000);
+            GroupDirectory groups = new GroupDirectory();
+            UserRegistry registry = new UserRegistry();
+            LongAdder delivered = new LongAdder();
+            MessageSink sink = new MessageSink() {
+                @Override
+                public void send(Message message) {
+                    delivered.increment();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            KeyPair keyPair = Encryption.generateKeyPair();
+            String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), "sender"));
+            ClientHandler sender = new ClientHandler(sink, clients, registry, presence, groups);
+            sender.handleRequest(new Message("sender".getBytes(), "Server", "sender", MessageTypes.REGISTER));
+            sender.handleRequest(new Message(certificate.getBytes(), "Server", "sender", MessageTypes.LOGIN));
+            sender.handleRequest(new Message("big".getBytes(), "Server", "sender", MessageTypes.GROUP_CREATE));
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < members; i++) {
+                String member = "user" + i;
+                clients.put(member, new User(member, sink, certificate));
+                groups.join("big", member);
+                names.add(member);
+            }
+            String recipient = group ? "#big" : String.join(", ", names);
+            Message message = new Message(new byte[256], recipient, "sender", MessageTypes.USER_MESSAGE);
+            int upload = BinaryMessageCodec.INSTANCE.encode(message).length;
+
+            delivered.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sender.handleRequest(message);
+            }
+            double micros = (System.nanoTime() - start) / 1e3 / messages;
+            assertEquals((long) members * messages, delivered.sum());
+            report("fan-out " + name, "upload bytes/message", upload);
+            report("fan-out " + name, "us/message", micros);
+            report("fan-out " + name, "deliveries/message", delivered.sum() / (double) messages);
+            presence.close();
+        }
+
+        @Test
+        @DisplayName("5000 members addressed by name")
+        public void testRecipientList() throws Exception {
+            measure("recipient list", false);
+        }
+
+        @Test
+        @DisplayName("5000 members addressed as a group")
+        public void testGroup() throws Exception {
+            measure("group", true);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: CertificateCache.java vs verifying every roster entry")
+    class CertificateCacheBenchmark {
+
+        private final int users = Integer.getInteger("benchmark.users", 10_000);
+
+        @Test
+        @DisplayName("Login with a 10k-user roster: uncached, cold cache, cache reloaded from disk")
+        public void testRosterVerification(@TempDir Path directory) throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            KeyPair user = Encryption.generateKeyPair();
+            CertificateEncoder encoder = new CertificateEncoder();
+            String[] roster = new String[users];
+            for (int i = 0; i < users; i++) {
+                Certificate certificate = new Certificate(user.getPublic(), "user" + i);
+                certificate.setIssuer("CA");
+                certificate.setEmissionDate(new Date());
+                certificate.setSignature(Encryption.encryptRSA(Integrity.generateDigest(certificate.getCertificateData()), ca.getPrivate()));
+                roster[i] = encoder.encode(certificate);
+            }
+
+            long start = System.nanoTime();
+            for (String entry : roster) {
+                encoder.decode(entry).getSubject();
+                Certificate certificate = encoder.decode(entry);
+                byte[] digest = Integrity.generateDigest(certificate.getCertificateData());
+                assertArrayEquals(digest, Encryption.decryptRSA(certificate.getSignature(), ca.getPublic()));
+            }
+            report("roster verified entry by entry", "ms/login", (System.nanoTime() - start) / 1e6);
+
+            Path file = directory.resolve("verified");
+            try (CertificateCache cache = new CertificateCache(file)) {
+                start = System.nanoTime();
+                for (String entry : roster) {
+                    assertNotNull(cache.verify(entry, ca.getPublic()));
+                }
+                cache.flush();
+                report("roster with cold cache", "ms/login", (System.nanoTime() - start) / 1e6);
+            }
+
+            start = System.nanoTime();
+            try (CertificateCache cache = new CertificateCache(file)) {
+                for (String entry : roster) {
+                    assertNotNull(cache.verify(entry, ca.getPublic()));
+                }
+                report("roster with cache reloaded", "ms/login", (System.nanoTime() - start) / 1e6);
+                report("roster with cache reloaded", "hits", cache.getHitCount());
+                report("roster with cache reloaded", "misses", cache.getMissCount());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: CertificateVerifier.java time-to-interactive at login")
+    class VerifierBenchmark {
+
+        private final int users = Integer.getInteger("benchmark.users", 10_000);
+
+        @Test
+        @DisplayName("Login with a 10k-user roster: verified on the receive thread vs handed to the verifier")
+        public void testTimeToInteractive() throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            KeyPair user = Encryption.generateKeyPair();
+            CertificateEncoder encoder = new CertificateEncoder();
+            String[] roster = new String[users];
+            for (int i = 0; i < users; i++) {
+                Certificate certificate = new Certificate(user.getPublic(), "user" + i);
+                certificate.setIssuer("CA");
+                certificate.setEmissionDate(new Date());
+                certificate.setSignature(Encryption.encryptRSA(Integrity.generateDigest(certificate.getCertificateData()), ca.getPrivate()));
+                roster[i] = encoder.encode(certificate);
+            }
+
+            CertificateCache inline = new CertificateCache();
+            long start = System.nanoTime();
+            for (String entry : roster) {
+                assertNotNull(inline.verify(entry, ca.getPublic()));
+            }
+            double interactive = (System.nanoTime() - start) / 1e6;
+            report("roster on the receive thread", "ms to interactive", interactive);
+            report("roster on the receive thread", "ms to all peers", interactive);
+
+            try (CertificateVerifier verifier = new CertificateVerifier(new CertificateCache())) {
+                List<CompletableFuture<String>> peers = new ArrayList<>(users);
+                start = System.nanoTime();
+                for (String entry : roster) {
+                    peers.add(verifier.verify(entry, ca.getPublic()));
+                }
+                report("roster on the verifier", "ms to interactive", (System.nanoTime() - start) / 1e6);
+                CompletableFuture.anyOf(peers.toArray(new CompletableFuture<?>[0])).get();
+                report("roster on the verifier", "ms to first peer", (System.nanoTime() - start) / 1e6);
+                CompletableFuture.allOf(peers.toArray(new CompletableFuture<?>[0])).get();
+                report("roster on the verifier", "ms to all peers", (System.nanoTime() - start) / 1e6);
+                report("roster on the verifier", "threads", Runtime.getRuntime().availableProcessors());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: reusable crypto contexts vs getInstance per call")
+    class CryptoContextBenchmark {
+
+        private final int iterations = Integer.getInteger("benchmark.iterations", 200_000);
+
+        /**
+         * An operation on a message, measured in a warm-up round and then a timed round.
+         */
+        interface Operation {
+            byte[] apply(byte[] message) throws Exception;
+        }
+
+        private void measure(String name, int size, int iterations, Operation operation) throws Exception {
+            byte[] message = new byte[size];
+            new Random(42).nextBytes(message);
+            long sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                sink += operation.apply(message).length;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += operation.apply(message).length;
+            }
+            report(name + " " + size + " B", "ns/op", (System.nanoTime() - start) / (double) iterations);
+            assertTrue(sink > 0);
+        }
+
+        @Test
+        @DisplayName("AES and SHA-256 at 64 B and 4 KB, RSA at 64 B")
+        public void testContexts() throws Exception {
+            byte[] key = "mySecretKey".getBytes();
+            KeyPair keyPair = Encryption.generateKeyPair();
+            Encryption.AesContext aes = Encryption.aes(key);
+            Encryption.RsaContext rsa = Encryption.rsa(keyPair.getPublic());
+            for (int size : new int[]{64, 4096}) {
+                measure("AES getInstance per call", size, iterations, message -> {
+                    SecretKeySpec spec = new SecretKeySpec(ByteBuffer.allocate(16).put(key).array(), "AES");
+                    Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+                    cipher.init(Cipher.ENCRYPT_MODE, spec);
+                    return cipher.doFinal(message);
+                });
+                measure("AES static wrapper", size, iterations, message -> Encryption.encryptAES(message, key));
+                measure("AES bound context", size, iterations, aes::encrypt);
+                measure("SHA-256 getInstance per call", size, iterations, message -> MessageDigest.getInstance("SHA-256").digest(message));
+                measure("SHA-256 static wrapper", size, iterations, Integrity::generateDigest);
+            }
+            int rsaIterations = iterations / 10;
+            measure("RSA getInstance per call", 64, rsaIterations, message -> {
+                Cipher cipher = Cipher.getInstance("RSA");
+                cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+                return cipher.doFinal(message);
+            });
+            measure("RSA static wrapper", 64, rsaIterations, message -> Encryption.encryptRSA(message, keyPair.getPublic()));
+            measure("RSA bound context", 64, rsaIterations, rsa::encrypt);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: AesGcmEngine.java in place vs ECB on arrays")
+    class AesGcmBenchmark {
+
+        private final long bytesPerRun = Long.getLong("benchmark.bytes", 1L << 30);
+
+        private void measure(String name, int size, CryptoContextBenchmark.Operation operation) throws Exception {
+            byte[] message = new byte[size];
+            int iterations = (int) Math.max(1000, bytesPerRun / size);
+            for (int i = 0; i < iterations / 4; i++) {
+                operation.apply(message);
+            }
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.apply(message);
+            }
+            long nanos = System.nanoTime() - start;
+            report(name + " " + size + " B", "GB/s", (double) size * iterations / nanos);
+            report(name + " " + size + " B", "alloc bytes/op", (allocatedBytes() - allocated) / (double) iterations);
+        }
+
+        @Test
+        @DisplayName("Encryption throughput at 64 B, 4 KB and 64 KB")
+        public void testThroughput() throws Exception {
+            byte[] key = new byte[16];
+            AesGcmEngine engine = new AesGcmEngine(key, 1);
+            for (int size : new int[]{64, 4096, 65536}) {
+                ByteBuffer frame = ByteBuffer.allocateDirect(AesGcmEngine.encryptedSize(size));
+                measure("ECB byte[]", size, message -> Encryption.encryptAES(message, key));
+                measure("GCM byte[]", size, engine::encrypt);
+                measure("GCM direct in place", size, message -> {
+                    frame.clear().position(AesGcmEngine.NONCE_LENGTH).limit(AesGcmEngine.NONCE_LENGTH + size);
+                    ByteBuffer out = frame.duplicate().clear();
+                    engine.encrypt(frame, out);
+                    return message;
+                });
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: SessionManager.java handshake and sealed messages vs RSA per message")
+    class SessionBenchmark {
+
+        private final int iterations = Integer.getInteger("benchmark.iterations", 20_000);
+
+        @Test
+        @DisplayName("Handshake latency, then the cost of a 64 B message with a session and with RSA")
+        public void testSessions() throws Exception {
+            KeyPair aliceKeys = Encryption.generateKeyPair();
+            KeyPair bobKeys = Encryption.generateKeyPair();
+            SessionManager.PeerKeys keys = peer -> peer.equals("alice") ? aliceKeys.getPublic() : bobKeys.getPublic();
+            SessionManager.Limits limits = new SessionManager.Limits(Long.MAX_VALUE, Long.MAX_VALUE);
+            SessionManager alice = new SessionManager("alice", aliceKeys.getPrivate(), keys, limits);
+            SessionManager bob = new SessionManager("bob", bobKeys.getPrivate(), keys, limits);
+            int handshakes = 20;
+            long start = 0;
+            for (int i = 0; i < handshakes * 2; i++) {
+                if (i == handshakes) {
+                    start = System.nanoTime();
+                }
+                alice.accept(bob.accept(alice.initiate("bob")));
+            }
+            report("session handshake", "ms/handshake", (System.nanoTime() - start) / 1e6 / handshakes);
+
+            byte[] message = new byte[64];
+            new Random(42).nextBytes(message);
+            List<String> recipients = List.of("bob");
+            long sink = 0;
+            for (int round = 0; round < 2; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += bob.open(alice.seal(message, recipients)).length;
+                }
+            }
+            report("session seal + open 64 B", "us/message", (System.nanoTime() - start) / 1e3 / iterations);
+
+            int rsaIterations = Math.max(100, iterations / 20);
+            for (int round = 0; round < 2; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < rsaIterations; i++) {
+                    sink += Encryption.decryptRSA(Encryption.encryptRSA(message, bobKeys.getPublic()), bobKeys.getPrivate()).length;
+                }
+            }
+            report("RSA encrypt + decrypt 64 B", "us/message", (System.nanoTime() - start) / 1e3 / rsaIterations);
+            assertTrue(sink > 0);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: KeyAgreementEngine.java X25519 vs legacy and 2048-bit Diffie-Hellman")
+    class KeyAgreementBenchmark {
+
+        private final int iterations = Integer.getInteger("benchmark.iterations", 2_000);
+
+        /**
+         * A step of a key agreement, measured in a warm-up round and then a timed round.
+         */
+        interface Step {
+            void run() throws Exception;
+        }
+
+        private void measure(String name, String metric, int iterations, Step step) throws Exception {
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    step.run();
+                }
+                if (round == 1) {
+                    report(name, metric, iterations / ((System.nanoTime() - start) / 1e9));
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Key generation and agreement per second, and the size of a public key")
+        public void testEngines() throws Exception {
+            for (KeyAgreementEngine engine : List.of(new LegacyDiffieHellmanEngine(), new X25519Engine())) {
+                KeyAgreementEngine.EphemeralKey own = engine.generate();
+                byte[] peer = engine.generate().getPublicKey();
+                measure(engine.getName() + " keygen", "ops/s", iterations, engine::generate);
+                measure(engine.getName() + " agree", "ops/s", iterations, () -> own.agree(peer));
+                report(engine.getName() + " public key", "bytes", peer.length);
+            }
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+            generator.initialize(2048);
+            KeyPair own = generator.generateKeyPair();
+            KeyPair peer = generator.generateKeyPair();
+            int dhIterations = Math.max(10, iterations / 20);
+            measure("DH 2048 keygen", "ops/s", dhIterations, generator::generateKeyPair);
+            measure("DH 2048 agree", "ops/s", dhIterations, () -> {
+                KeyAgreement agreement = KeyAgreement.getInstance("DH");
+                agreement.init(own.getPrivate());
+                agreement.doPhase(peer.getPublic(), true);
+                agreement.generateSecret();
+            });
+            report("DH 2048 public key", "bytes", peer.getPublic().getEncoded().length);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: EphemeralKeyPool.java handshake latency with and without pre-generated keys")
+    class KeyPoolBenchmark {
+
+        private final int handshakes = Integer.getInteger("benchmark.handshakes", 500);
+        private final long pauseMillis = Long.getLong("benchmark.pauseMillis", 2);
+
+        /**
+         * Runs a step between pauses that leave the pool time to refill, and reports the p50 and p99 latencies.
+         */
+        private void measure(String name, KeyAgreementBenchmark.Step step) throws Exception {
+            long[] latencies = new long[handshakes];
+            for (int i = 0; i < handshakes / 4; i++) {
+                step.run();
+            }
+            for (int i = 0; i < handshakes; i++) {
+                Thread.sleep(pauseMillis);
+                long start = System.nanoTime();
+                step.run();
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            report(name, "p50 us", latencies[handshakes / 2] / 1e3);
+            report(name, "p99 us", latencies[handshakes * 99 / 100] / 1e3);
+        }
+
+        @Test
+        @DisplayName("Key generation and agreement of one side, and a full session handshake")
+        public void testPool() throws Exception {
+            KeyAgreementEngine engine = new X25519Engine();
+            byte[] peer = engine.generate().getPublicKey();
+            KeyAgreementEngine.EphemeralKey own = engine.generate();
+            measure("agreement alone", () -> own.agree(peer));
+            measure("keygen + agreement", () -> engine.generate().agree(peer));
+            try (PooledKeyAgreementEngine pooled = new PooledKeyAgreementEngine(engine, new EphemeralKeyPool.Settings(32, 4, 30_000))) {
+                measure("pooled keygen + agreement", () -> pooled.generate().agree(peer));
+                report("pooled keygen + agreement", "starvations", pooled.getPool().getStarvationCount());
+            }
+
+            KeyPair aliceKeys = Encryption.generateKeyPair();
+            KeyPair bobKeys = Encryption.generateKeyPair();
+            SessionManager.PeerKeys keys = name -> name.equals("alice") ? aliceKeys.getPublic() : bobKeys.getPublic();
+            SessionManager.Limits limits = new SessionManager.Limits(Long.MAX_VALUE, Long.MAX_VALUE);
+            SessionManager alice = new SessionManager("alice", aliceKeys.getPrivate(), keys, limits, engine);
+            SessionManager bob = new SessionManager("bob", bobKeys.getPrivate(), keys, limits, engine);
+            measure("session handshake", () -> alice.accept(bob.accept(alice.initiate("bob"))));
+            try (PooledKeyAgreementEngine alicePool = new PooledKeyAgreementEngine(engine, new EphemeralKeyPool.Settings(32, 4, 30_000));
+                 PooledKeyAgreementEngine bobPool = new PooledKeyAgreementEngine(engine, new EphemeralKeyPool.Settings(32, 4, 30_000))) {
+                SessionManager pooledAlice = new SessionManager("alice", aliceKeys.getPrivate(), keys, limits, alicePool);
+                SessionManager pooledBob = new SessionManager("bob", bobKeys.getPrivate(), keys, limits, bobPool);
+                measure("pooled session handshake", () -> pooledAlice.accept(pooledBob.accept(pooledAlice.initiate("bob"))));
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: IdentityStore.java cold vs warm client start")
+    class IdentityBenchmark {
+
+        private final int starts = Integer.getInteger("benchmark.starts", 20);
+
+        /**
+         * Obtains an identity the way a client without a stored one does: generates a key pair, has the CA sign its
+         * certificate and saves the result.
+         */
+        private IdentityStore.Identity coldStart(String nickname, int caPort, IdentityStore store) throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            try (FramedMessageChannel ca = new FramedMessageChannel(new Socket("localhost", caPort), BinaryMessageCodec.INSTANCE)) {
+                ca.send(new Message(new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), nickname)).getBytes(), "CA", nickname, MessageTypes.CERTIFICATE_REQUEST));
+                String certificate = new String(ca.receive().getMessage());
+                PublicKey caPublicKey = ((KeyMessage) ca.receive()).getPublicKey();
+                IdentityStore.Identity identity = new IdentityStore.Identity(keyPair, certificate, caPublicKey);
+                store.save(nickname, identity);
+                return identity;
+            }
+        }
+
+        @Test
+        @DisplayName("Time to an identity with and without a stored one")
+        public void testStartup(@TempDir Path directory) throws Exception {
+            KeyPair caKeys = Encryption.generateKeyPair();
+            ExecutorService handlers = Executors.newCachedThreadPool();
+            try (ServerSocket caSocket = new ServerSocket(0)) {
+                handlers.execute(() -> {
+                    try {
+                        while (!caSocket.isClosed()) {
+                            Socket client = caSocket.accept();
+                            handlers.execute(() -> new CertificateHandler(client, caKeys).run());
+                        }
+                    } catch (IOException e) {
+                        // The benchmark is over
+                    }
+                });
+                IdentityStore store = new IdentityStore(directory);
+                long[] cold = new long[starts];
+                long[] warm = new long[starts];
+                for (int i = 0; i < starts; i++) {
+                    long start = System.nanoTime();
+                    coldStart("user" + i, caSocket.getLocalPort(), store);
+                    cold[i] = System.nanoTime() - start;
+                }
+                for (int i = 0; i < starts; i++) {
+                    long start = System.nanoTime();
+                    assertNotNull(new IdentityStore(directory).load("user" + i));
+                    warm[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(cold);
+                Arrays.sort(warm);
+                report("cold start", "p50 ms", cold[starts / 2] / 1e6);
+                report("cold start", "max ms", cold[starts - 1] / 1e6);
+                report("warm start", "p50 ms", warm[starts / 2] / 1e6);
+                report("warm start", "max ms", warm[starts - 1] / 1e6);
+            } finally {
+                handlers.shutdownNow();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: CertificateServer.java restart with a persistent key")
+    class CaRestartBenchmark {
+
+        private final int clients = Integer.getInteger("benchmark.clients", 20);
+        private final int restarts = Integer.getInteger("benchmark.restarts", 3);
+
+        /**
+         * Starts a CA in its own JVM, so every start pays for the loading of the classes and the key.
+         */
+        private Process startCa(int port, String keyFile, int warmupSignatures) throws IOException {
+            return new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "-Dca.port=" + port, "-Dca.keyFile=" + keyFile,
+                    "-Dca.warmupSignatures=" + warmupSignatures, "CertificateServer")
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        }
+
+        /**
+         * Connects to the CA, retrying until it listens.
+         */
+        private FramedMessageChannel connect(int port) throws Exception {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (true) {
+                try {
+                    return new FramedMessageChannel(new Socket("localhost", port), BinaryMessageCodec.INSTANCE);
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(5);
+                }
+            }
+        }
+
+        /**
+         * Has the CA sign a certificate.
+         *
+         * @return the key of the CA that signed the certificate
+         */
+        private PublicKey sign(FramedMessageChannel ca, String nickname, KeyPair keyPair) throws Exception {
+            ca.send(new Message(new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), nickname)).getBytes(), "CA", nickname, MessageTypes.CERTIFICATE_REQUEST));
+            ca.receive();
+            return ((KeyMessage) ca.receive()).getPublicKey();
+        }
+
+        /**
+         * Has the CA sign a certificate on a connection of its own.
+         */
+        private PublicKey sign(int port, String nickname, KeyPair keyPair) throws Exception {
+            try (FramedMessageChannel ca = connect(port)) {
+                return sign(ca, nickname, keyPair);
+            }
+        }
+
+        /**
+         * Starts a CA and measures the time until it listens and the latency of its first signature.
+         */
+        private void timeToFirstSignature(String name, String keyFile, int warmupSignatures, KeyPair keyPair) throws Exception {
+            long[] ready = new long[restarts];
+            long[] first = new long[restarts];
+            for (int i = 0; i < restarts; i++) {
+                int port;
+                try (ServerSocket free = new ServerSocket(0)) {
+                    port = free.getLocalPort();
+                }
+                long start = System.nanoTime();
+                Process ca = startCa(port, keyFile, warmupSignatures);
+                try (FramedMessageChannel channel = connect(port)) {
+                    long listening = System.nanoTime();
+                    sign(channel, "first", keyPair);
+                    first[i] = System.nanoTime() - listening;
+                    ready[i] = System.nanoTime() - start;
+                } finally {
+                    ca.destroy();
+                    ca.waitFor();
+                }
+            }
+            Arrays.sort(ready);
+            Arrays.sort(first);
+            report(name, "ms to first signature", ready[restarts / 2] / 1e6);
+            report(name, "ms first signing request", first[restarts / 2] / 1e6);
+        }
+
+        /**
+         * Issues certificates to the clients, restarts the CA and counts the certificates it no longer accepts.
+         */
+        private void restartLoad(String name, String keyFile, List<KeyPair> keyPairs) throws Exception {
+            int port;
+            try (ServerSocket free = new ServerSocket(0)) {
+                port = free.getLocalPort();
+            }
+            List<PublicKey> issuers = new ArrayList<>();
+            Process ca = startCa(port, keyFile, 4);
+            try {
+                for (int i = 0; i < keyPairs.size(); i++) {
+                    issuers.add(sign(port, "user" + i, keyPairs.get(i)));
+                }
+            } finally {
+                ca.destroy();
+                ca.waitFor();
+            }
+            ca = startCa(port, keyFile, 4);
+            try {
+                PublicKey restarted = sign(port, "probe", keyPairs.get(0));
+                List<Integer> stale = new ArrayList<>();
+                for (int i = 0; i < issuers.size(); i++) {
+                    if (!issuers.get(i).equals(restarted)) {
+                        stale.add(i);
+                    }
+                }
+                long start = System.nanoTime();
+                for (int i : stale) {
+                    sign(port, "user" + i, keyPairs.get(i));
+                }
+                report(name, "re-signings after restart", stale.size());
+                report(name, "CA ms spent re-signing", (System.nanoTime() - start) / 1e6);
+            } finally {
+                ca.destroy();
+                ca.waitFor();
+            }
+        }
+
+        @Test
+        @DisplayName("Time to first signature and re-signing load after a restart, with a new or a persistent key")
+        public void testRestart(@TempDir Path directory) throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            String keyFile = directory.resolve("ca.key").toString();
+            timeToFirstSignature("new key per start", "", 4, keyPair);
+            timeToFirstSignature("persistent key, cold JVM no warm-up", keyFile, 0, keyPair);
+            timeToFirstSignature("persistent key, warmed", keyFile, Integer.getInteger("benchmark.warmup", 4), keyPair);
+
+            List<KeyPair> keyPairs = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                keyPairs.add(Encryption.generateKeyPair());
+            }
+            restartLoad("new key per start", "", keyPairs);
+            restartLoad("persistent key", directory.resolve("restart.key").toString(), keyPairs);
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: CertificateHandler.java signing from a shared file vs an in-band request")
+    class CertificateRequestBenchmark {
+
+        private final int signatures = Integer.getInteger("benchmark.signatures", 500);
+
+        /**
+         * Signs certificates one after the other on one connection, once to warm up and once timed.
+         *
+         * @return the seconds taken by the timed round
+         */
+        private double measure(FramedMessageChannel ca, List<String> requests, boolean inBand) throws Exception {
+            long start = 0;
+            for (int round = 0; round < 2; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < requests.size(); i++) {
+                    String nickname = "user" + i;
+                    if (inBand) {
+                        ca.send(new Message(requests.get(i).getBytes(), "CA", nickname, MessageTypes.CERTIFICATE_REQUEST));
+                    } else {
+                        Files.writeString(Path.of("src/SignCertificates", nickname + ".pem"), requests.get(i));
+                        ca.send(new Message((nickname + ".pem").getBytes(), "CA", nickname, MessageTypes.SIGN_CERTIFICATE));
+                    }
+                    ca.receive();
+                    ca.receive();
+                }
+            }
+            return (System.nanoTime() - start) / 1e9;
+        }
+
+        @Test
+        @DisplayName("Signing throughput on one connection")
+        public void testSigning() throws Exception {
+            KeyPair caKeys = Encryption.generateKeyPair();
+            Files.createDirectories(Path.of("src/SignCertificates"));
+            List<String> requests = new ArrayList<>();
+            PublicKey key = Encryption.generateKeyPair().getPublic();
+            for (int i = 0; i < signatures; i++) {
+                requests.add(new CertificateEncoder().encode(new Certificate(key, "user" + i)));
+            }
+            PrintStream console = System.out;
+            try (ServerSocket caSocket = new ServerSocket(0)) {
+                Thread handler = new Thread(() -> {
+                    try {
+                        new CertificateHandler(caSocket.accept(), caKeys).run();
+                    } catch (IOException e) {
+                        // The benchmark is over
+                    }
+                });
+                handler.start();
+                try (FramedMessageChannel ca = new FramedMessageChannel(new Socket("localhost", caSocket.getLocalPort()), BinaryMessageCodec.INSTANCE)) {
+                    // The handler prints every serial number
+                    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                    double file;
+                    double inBand;
+                    try {
+                        file = measure(ca, requests, false);
+                        inBand = measure(ca, requests, true);
+                    } finally {
+                        System.setOut(console);
+                    }
+                    report("shared file", "signatures/s", signatures / file);
+                    report("shared file", "us/signature", file * 1e6 / signatures);
+                    report("in-band request", "signatures/s", signatures / inBand);
+                    report("in-band request", "us/signature", inBand * 1e6 / signatures);
+                }
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: BatchSigner.java certificates signed per second by batch size")
+    class BatchSigningBenchmark {
+
+        private final int certificates = Integer.getInteger("benchmark.certificates", 2048);
+        private final int threads = Integer.getInteger("benchmark.threads", 64);
+
+        /**
+         * Signs the digests from many threads at once, the way concurrent handlers do, and reports the throughput.
+         */
+        private void measure(String name, List<byte[]> digests, CryptoContextBenchmark.Operation sign) throws Exception {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int round = 0; round < 2; round++) {
+                    List<Future<byte[]>> signatures = new ArrayList<>();
+                    long start = System.nanoTime();
+                    for (byte[] digest : digests) {
+                        signatures.add(executor.submit(() -> sign.apply(digest)));
+                    }
+                    for (Future<byte[]> signature : signatures) {
+                        signature.get();
+                    }
+                    if (round == 1) {
+                        report(name, "certificates/s", digests.size() / ((System.nanoTime() - start) / 1e9));
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("Signing throughput alone and in batches of 4 to 256, and the cost of verifying")
+        public void testBatchSizes() throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            List<byte[]> digests = new ArrayList<>();
+            for (int i = 0; i < certificates; i++) {
+                digests.add(Integrity.generateDigest(("certificate " + i).getBytes()));
+            }
+            measure("one RSA signature each", digests, digest -> Encryption.encryptRSA(digest, ca.getPrivate()));
+            for (int batchSize : new int[]{4, 16, 64, 256}) {
+                try (BatchSigner signer = new BatchSigner(ca.getPrivate(), new BatchSigner.Settings(batchSize, 2))) {
+                    measure("batches of " + batchSize, digests, signer::sign);
+                    report("batches of " + batchSize, "mean batch", signer.getCertificateCount() / (double) signer.getBatchCount());
+                }
+            }
+
+            byte[] plain = Encryption.encryptRSA(digests.get(0), ca.getPrivate());
+            byte[] batched = MerkleSignature.sign(digests.subList(0, 256), ca.getPrivate())[0];
+            int verifications = 2000;
+            for (byte[] signature : List.of(plain, batched)) {
+                String name = MerkleSignature.isBatched(signature) ? "verify batched of 256" : "verify single";
+                for (int round = 0; round < 2; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < verifications; i++) {
+                        assertTrue(MerkleSignature.verify(digests.get(0), signature, ca.getPublic()));
+                    }
+                    if (round == 1) {
+                        report(name, "us/verification", (System.nanoTime() - start) / 1e3 / verifications);
+                        report(name, "signature bytes", signature.length);
+                    }
+                }
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Benchmark: SigningService.java signing on the connection threads against a bounded worker pool")
+    class SigningServiceBenchmark {
+
+        private final int clients = Integer.getInteger("benchmark.clients", 128);
+        private final int requestsPerClient = Integer.getInteger("benchmark.requests", 8);
+
+        /**
+         * Lets every client sign its requests one after the other, all clients at once, and reports the throughput
+         * and the latency of the requests.
+         */
+        private void measure(String name, CryptoContextBenchmark.Operation sign) throws Exception {
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            try {
+                for (int round = 0; round < 2; round++) {
+                    long[] latencies = new long[clients * requestsPerClient];
+                    AtomicInteger failures = new AtomicInteger();
+                    CountDownLatch done = new CountDownLatch(clients);
+                    long start = System.nanoTime();
+                    for (int c = 0; c < clients; c++) {
+                        int client = c;
+                        executor.execute(() -> {
+                            for (int r = 0; r < requestsPerClient; r++) {
+                                long submitted = System.nanoTime();
+                                try {
+                                    sign.apply(Integrity.generateDigest(new byte[]{(byte) client, (byte) r}));
+                                } catch (Exception e) {
+                                    failures.incrementAndGet();
+                                }
+                                latencies[client * requestsPerClient + r] = System.nanoTime() - submitted;
+                            }
+                            done.countDown();
+                        });
+                    }
+                    done.await();
+                    if (round == 1) {
+                        Arrays.sort(latencies);
+                        report(name, "signatures/s", latencies.length / ((System.nanoTime() - start) / 1e9));
+                        report(name, "p50 ms", latencies[latencies.length / 2] / 1e6);
+                        report(name, "p99 ms", latencies[latencies.length * 99 / 100] / 1e6);
+                        report(name, "failures", failures.get());
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("Throughput and latency of many clients signing at once")
+        public void testOverload() throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            measure("connection threads", digest -> Encryption.encryptRSA(digest, ca.getPrivate()));
+            int threads = Runtime.getRuntime().availableProcessors();
+            try (SigningService service = new SigningService(ca.getPrivate(), new SigningService.Settings(threads, clients, 5000))) {
+                measure("worker pool of " + threads, service::sign);
+                System.out.println("[benchmark] " + service.snapshot());
+            }
+        }
+    }
+}
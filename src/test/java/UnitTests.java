@@ -5,16 +5,29 @@
 
 // Include necessary imports
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.crypto.AEADBadTagException;
 import java.io.*;
 import java.math.BigInteger;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import java.security.SecureRandom;
 
 // Includes all type of Asserts
@@ -23,6 +36,24 @@ import static org.junit.jupiter.api.Assertions.*;
 public class UnitTests
 {
 
+    /**
+     * Creates a PEM encoded certificate for the given subject, signed the way the CA signs it.
+     */
+    static String signedCertificate(String subject, KeyPair signer) throws Exception {
+        return signedCertificate(subject, Encryption.generateKeyPair().getPublic(), signer, new Date());
+    }
+
+    /**
+     * Creates a PEM encoded certificate of the given key, emitted at the given date and signed the way the CA signs it.
+     */
+    static String signedCertificate(String subject, PublicKey key, KeyPair signer, Date emissionDate) throws Exception {
+        Certificate certificate = new Certificate(key, subject);
+        certificate.setIssuer("CA");
+        certificate.setEmissionDate(emissionDate);
+        certificate.setSignature(Encryption.encryptRSA(Integrity.generateDigest(certificate.getCertificateData()), signer.getPrivate()));
+        return new CertificateEncoder().encode(certificate);
+    }
+
     @Nested
     @DisplayName("Test: MainServer.java ")
     class testMainServer {
@@ -300,6 +331,23 @@ public class UnitTests
 
         }
 
+        @Test
+        @DisplayName("Testing that a certificate request carried in the message is signed by the CA")
+        public void testCertificateRequest() throws Exception {
+            KeyPair user = Encryption.generateKeyPair();
+            String request = new CertificateEncoder().encode(new Certificate(user.getPublic(), "alice"));
+            out.writeObject(new Message(request.getBytes(), "CA", "alice", MessageTypes.CERTIFICATE_REQUEST));
+            out.flush();
+            Message signed = (Message) in.readObject();
+            KeyMessage caKey = (KeyMessage) in.readObject();
+
+            assertAll(
+                    () -> assertEquals(MessageTypes.SIGN_CERTIFICATE, signed.getMessageType()),
+                    () -> assertEquals(keyPair.getPublic(), caKey.getPublicKey()),
+                    () -> assertEquals("alice", new CertificateCache().verify(new String(signed.getMessage()), caKey.getPublicKey()))
+            );
+        }
+
         @Test
         @DisplayName("Testing the validateCertificate method")
         public void testValidateCertificate() throws Exception {
@@ -325,6 +373,91 @@ public class UnitTests
     }
 
 
+    @Nested
+    @DisplayName("Test: BinaryMessageCodec.java")
+    class testBinaryMessageCodec {
+
+        private Message roundTrip(Message message) throws IOException {
+            byte[] payload = BinaryMessageCodec.INSTANCE.encode(message);
+            return BinaryMessageCodec.INSTANCE.decode(payload, 0, payload.length);
+        }
+
+        @Test
+        @DisplayName("Testing the encoding and decoding of a Message")
+        public void testMessageRoundTrip() throws Exception {
+            Message message = new Message("Olá".getBytes(), "recipient", "sender", MessageTypes.USER_MESSAGE);
+            Message decoded = roundTrip(message);
+
+            assertAll(
+                    () -> assertEquals(message.getMessageType(), decoded.getMessageType()),
+                    () -> assertEquals(message.getRecipient(), decoded.getRecipient()),
+                    () -> assertEquals(message.getSender(), decoded.getSender()),
+                    () -> assertArrayEquals(message.getMessage(), decoded.getMessage()),
+                    () -> assertNull(roundTrip(new Message(null, null, null, MessageTypes.ERROR)).getSender())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing the encoding and decoding of a KeyMessage")
+        public void testKeyMessageRoundTrip() throws Exception {
+            PublicKey publicKey = Encryption.generateKeyPair().getPublic();
+            Message decoded = roundTrip(new KeyMessage(publicKey, "recipient", "sender"));
+
+            assertAll(
+                    () -> assertInstanceOf(KeyMessage.class, decoded),
+                    () -> assertEquals(publicKey, ((KeyMessage) decoded).getPublicKey())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing the encoding and decoding of the roster versions")
+        public void testRosterVersionRoundTrip() throws Exception {
+            Message login = roundTrip(new LoginMessage("certificate".getBytes(), "Server", "sender", 42L << 40));
+            Message delta = roundTrip(new RosterMessage("-bob,".getBytes(), "sender", "Server", MessageTypes.ROSTER_DELTA, -7));
+
+            assertAll(
+                    () -> assertEquals(42L << 40, ((LoginMessage) login).getKnownVersion()),
+                    () -> assertEquals(MessageTypes.LOGIN, login.getMessageType()),
+                    () -> assertEquals(-7, ((RosterMessage) delta).getVersion()),
+                    () -> assertEquals(MessageTypes.ROSTER_DELTA, delta.getMessageType())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that truncated payloads are rejected")
+        public void testTruncatedPayload() throws Exception {
+            byte[] payload = BinaryMessageCodec.INSTANCE.encode(new Message("Test".getBytes(), "recipient", "sender", MessageTypes.USER_MESSAGE));
+
+            assertThrows(IOException.class, () -> BinaryMessageCodec.INSTANCE.decode(payload, 0, payload.length - 1));
+        }
+
+        @Test
+        @DisplayName("Testing the negotiation of the binary codec with a CertificateHandler")
+        public void testNegotiation() throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                Thread handler = new Thread(() -> {
+                    try {
+                        new CertificateHandler(serverSocket.accept(), keyPair).run();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                handler.start();
+                try (FramedMessageChannel channel = new FramedMessageChannel(new Socket("localhost", serverSocket.getLocalPort()), BinaryMessageCodec.INSTANCE)) {
+                    channel.send(new Message("Test".getBytes(), "recipient", "sender", MessageTypes.USER_MESSAGE));
+                    Message received = channel.receive();
+
+                    assertAll(
+                            () -> assertEquals(BinaryMessageCodec.ID, channel.getCodec().getId()),
+                            () -> assertArrayEquals("Test".getBytes(), received.getMessage())
+                    );
+                }
+            }
+        }
+    }
+
+
     @Nested
     @DisplayName("Test: CertificateServer.java ")
     class CertificateServerTest {
@@ -353,6 +486,30 @@ public class UnitTests
             client.close();
             serverSocket.close();
         }
+
+        @Test
+        @DisplayName("Testing that the key of the CA is created once and loaded on every later start")
+        public void testLoadKeyPair(@TempDir Path directory) throws Exception {
+            Path file = directory.resolve("ca").resolve("ca.key");
+            KeyPair created = CertificateServer.loadKeyPair(file);
+            KeyPair loaded = CertificateServer.loadKeyPair(file);
+            CertificateServer.warmUp(loaded, 2);
+            Files.writeString(directory.resolve("broken.key"), "publicKey=AAAA");
+
+            assertAll(
+                    () -> assertEquals(created.getPublic(), loaded.getPublic()),
+                    () -> assertEquals(created.getPrivate(), loaded.getPrivate()),
+                    () -> assertThrows(InvalidKeyException.class, () -> CertificateServer.loadKeyPair(directory.resolve("broken.key")))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that the warm-up rejects a private key that does not match the public key")
+        public void testWarmUpMismatch() throws Exception {
+            KeyPair mismatched = new KeyPair(Encryption.generateKeyPair().getPublic(), Encryption.generateKeyPair().getPrivate());
+
+            assertThrows(GeneralSecurityException.class, () -> CertificateServer.warmUp(mismatched, 1));
+        }
     }
 
     @Nested
@@ -417,174 +574,1817 @@ public class UnitTests
 
 
     @Nested
-    @DisplayName("test: DiffieHellman.java")
-    class testDiffieHellman {
+    @DisplayName("Test: NioServer.java")
+    class testNioServer {
+
+        private NioServer server;
+        private KeyPair keyPair;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            server = new NioServer(0, 2);
+            new Thread(server).start();
+            keyPair = Encryption.generateKeyPair();
+        }
+
+        @AfterEach
+        public void tearDown() throws Exception {
+            server.close();
+        }
+
+        private MessageChannel connect() throws IOException {
+            return new FramedMessageChannel(new Socket("localhost", server.getPort()), SerializedMessageCodec.INSTANCE);
+        }
+
+        private void login(MessageChannel channel, String name) throws Exception {
+            channel.send(new Message(name.getBytes(), "Server", "new user", MessageTypes.REGISTER));
+            assertEquals(MessageTypes.REGISTER, channel.receive().getMessageType());
+            String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), name));
+            channel.send(new Message(certificate.getBytes(), "Server", name, MessageTypes.LOGIN));
+            assertEquals(MessageTypes.LOGIN, channel.receive().getMessageType());
+            assertEquals(MessageTypes.LOGGED_USERS, channel.receive().getMessageType());
+        }
+
+        private Message receiveSkippingPresence(MessageChannel channel) throws Exception {
+            Message message;
+            do {
+                message = channel.receive();
+            } while (message.getMessageType() == MessageTypes.ROSTER_DELTA);
+            return message;
+        }
 
         @Test
-        @DisplayName("Testing generatePrivateKey method")
-        public void testGeneratePrivateKey() throws NoSuchAlgorithmException {
-            BigInteger privateKey = DiffieHellman.generatePrivateKey();
+        @DisplayName("Testing that a name can only be registered once")
+        public void testRegister() throws Exception {
+            try (MessageChannel first = connect(); MessageChannel second = connect()) {
+                first.send(new Message("alice".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                second.send(new Message("alice".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                Message firstReply = first.receive();
+                Message secondReply = second.receive();
+
+                assertAll(
+                        () -> assertNotEquals(firstReply.getMessageType(), secondReply.getMessageType()),
+                        () -> assertTrue(firstReply.getMessageType() == MessageTypes.ERROR
+                                || secondReply.getMessageType() == MessageTypes.ERROR)
+                );
+            }
+        }
 
-            assertAll(
-                    () -> assertNotNull(privateKey)
-            );
+        @Test
+        @DisplayName("Testing message delivery between two logged in users")
+        public void testUserMessage() throws Exception {
+            try (MessageChannel alice = connect(); MessageChannel bob = connect()) {
+                login(alice, "alice");
+                login(bob, "bob");
+
+                bob.send(new Message("Hello".getBytes(), "alice", "bob", MessageTypes.USER_MESSAGE));
+                Message received = receiveSkippingPresence(alice);
+
+                assertAll(
+                        () -> assertEquals(MessageTypes.USER_MESSAGE, received.getMessageType()),
+                        () -> assertEquals("bob", received.getSender()),
+                        () -> assertArrayEquals("Hello".getBytes(), received.getMessage())
+                );
+            }
         }
 
         @Test
-        @DisplayName("Testing generatePublicKey method")
-        public void testGeneratePublicKey() throws NoSuchAlgorithmException {
-            BigInteger privateKey = DiffieHellman.generatePrivateKey();
-            BigInteger publicKey = DiffieHellman.generatePublicKey(privateKey);
+        @DisplayName("Testing that a logout only ever logs out the user of its own connection")
+        public void testLogoutOfAnotherUser() throws Exception {
+            try (MessageChannel alice = connect(); MessageChannel bob = connect(); MessageChannel mallory = connect()) {
+                login(alice, "alice");
+                login(bob, "bob");
+                mallory.send(new Message("alice".getBytes(), "Server", "alice", MessageTypes.LOGOUT));
+                assertEquals(MessageTypes.ERROR, mallory.receive().getMessageType());
+                bob.send(new Message("alice".getBytes(), "Server", "alice", MessageTypes.LOGOUT));
+                assertThrows(IOException.class, () -> {
+                    while (true) {
+                        bob.receive();
+                    }
+                });
+                mallory.send(new Message("alice".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                Message alreadyRegistered = mallory.receive();
+                mallory.send(new Message("bob".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                Message bobReleased = mallory.receive();
+
+                assertAll(
+                        () -> assertEquals(MessageTypes.ERROR, alreadyRegistered.getMessageType()),
+                        () -> assertEquals(MessageTypes.REGISTER, bobReleased.getMessageType())
+                );
+            }
+        }
 
-            assertAll(
-                    () -> assertNotNull(publicKey)
-            );
+        @Test
+        @DisplayName("Testing that a client logging in again with a known roster version receives only the delta")
+        public void testRosterDelta() throws Exception {
+            try (MessageChannel alice = connect(); MessageChannel bob = connect()) {
+                login(alice, "alice");
+                String certificate = new CertificateEncoder().encode(new Certificate(keyPair.getPublic(), "alice"));
+                alice.send(new Message("alice".getBytes(), "Server", "alice", MessageTypes.LOGOUT));
+                MessageChannel again = connect();
+                try {
+                    again.send(new Message("alice".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+                    assertEquals(MessageTypes.REGISTER, again.receive().getMessageType());
+                    again.send(new LoginMessage(certificate.getBytes(), "Server", "alice", LoginMessage.NO_VERSION));
+                    assertEquals(MessageTypes.LOGIN, again.receive().getMessageType());
+                    RosterMessage snapshot = (RosterMessage) again.receive();
+                    assertEquals(MessageTypes.LOGGED_USERS, snapshot.getMessageType());
+
+                    login(bob, "bob");
+                    try (MessageChannel third = connect()) {
+                        again.close();
+                        Thread.sleep(100);
+                        third.send(new LoginMessage(certificate.getBytes(), "Server", "alice", snapshot.getVersion()));
+                        assertEquals(MessageTypes.LOGIN, third.receive().getMessageType());
+                        RosterMessage delta = (RosterMessage) third.receive();
+                        String entries = new String(delta.getMessage());
+
+                        assertAll(
+                                () -> assertEquals(MessageTypes.ROSTER_DELTA, delta.getMessageType()),
+                                () -> assertTrue(delta.getVersion() > snapshot.getVersion()),
+                                () -> assertTrue(entries.contains(CertificateEncoder.HEADER)),
+                                () -> assertTrue(entries.contains("-alice,")),
+                                () -> assertTrue(entries.length() < 4 * certificate.length())
+                        );
+                    }
+                } finally {
+                    again.close();
+                }
+            }
         }
 
         @Test
-        @DisplayName("Testing computeSecret method")
-        public void testComputeSecret() throws NoSuchAlgorithmException {
-            BigInteger User1PrivateKey = DiffieHellman.generatePrivateKey();
-            BigInteger User2PrivateKey = DiffieHellman.generatePrivateKey();
+        @DisplayName("Testing that malformed requests are refused without stopping the event loops")
+        public void testMalformedRequests() throws Exception {
+            for (int i = 0; i < 2; i++) {
+                try (MessageChannel client = connect()) {
+                    client.send(new Message("garbage".getBytes(), "Server", "mallory", MessageTypes.LOGIN));
+                    assertEquals(MessageTypes.ERROR, client.receive().getMessageType());
+                    client.send(new Message("Hello".getBytes(), null, "mallory", MessageTypes.USER_MESSAGE));
+                    assertEquals(MessageTypes.ERROR, client.receive().getMessageType());
+                    client.send(new Message(null, "Server", "mallory", MessageTypes.REGISTER));
+                    assertEquals(MessageTypes.ERROR, client.receive().getMessageType());
+                }
+            }
 
-            BigInteger User1PublicKey = DiffieHellman.generatePublicKey(User1PrivateKey);
-            BigInteger User2PublicKey = DiffieHellman.generatePublicKey(User2PrivateKey);
+            try (MessageChannel alice = connect(); MessageChannel bob = connect()) {
+                login(alice, "alice");
+                login(bob, "bob");
+                bob.send(new Message("Hello".getBytes(), "alice", "bob", MessageTypes.USER_MESSAGE));
 
-            BigInteger User1Secret = DiffieHellman.computeSecret(User2PublicKey, User1PrivateKey);
-            BigInteger User2Secret = DiffieHellman.computeSecret(User1PublicKey, User2PrivateKey);
+                assertArrayEquals("Hello".getBytes(), receiveSkippingPresence(alice).getMessage());
+            }
+        }
 
-            assertAll(
-                    () -> assertEquals(User1Secret, User2Secret)
-            );
+        @Test
+        @DisplayName("Testing that a message uploaded once reaches every recipient")
+        public void testMultiRecipientMessage() throws Exception {
+            try (MessageChannel alice = connect(); MessageChannel bob = connect(); MessageChannel carol = connect()) {
+                login(alice, "alice");
+                login(bob, "bob");
+                login(carol, "carol");
+
+                alice.send(new Message("Hi all".getBytes(), "bob, carol, bob, offline", "alice", MessageTypes.USER_MESSAGE));
+                alice.send(new Message("Only bob".getBytes(), "bob", "alice", MessageTypes.USER_MESSAGE));
+
+                assertAll(
+                        () -> assertArrayEquals("Hi all".getBytes(), receiveSkippingPresence(bob).getMessage()),
+                        () -> assertArrayEquals("Only bob".getBytes(), receiveSkippingPresence(bob).getMessage()),
+                        () -> assertArrayEquals("Hi all".getBytes(), receiveSkippingPresence(carol).getMessage())
+                );
+            }
+        }
+
+        @Test
+        @DisplayName("Testing that a message addressed to a group reaches the other members only")
+        public void testGroupMessage() throws Exception {
+            try (MessageChannel alice = connect(); MessageChannel bob = connect(); MessageChannel carol = connect()) {
+                login(alice, "alice");
+                login(bob, "bob");
+                login(carol, "carol");
+
+                alice.send(new Message("team".getBytes(), "Server", "alice", MessageTypes.GROUP_CREATE));
+                assertEquals(MessageTypes.GROUP_CREATE, receiveSkippingPresence(alice).getMessageType());
+                bob.send(new Message("team".getBytes(), "Server", "bob", MessageTypes.GROUP_JOIN));
+                assertEquals(MessageTypes.GROUP_JOIN, receiveSkippingPresence(bob).getMessageType());
+                carol.send(new Message("team".getBytes(), "Server", "carol", MessageTypes.GROUP_CREATE));
+                assertEquals(MessageTypes.ERROR, receiveSkippingPresence(carol).getMessageType());
+
+                carol.send(new Message("Outsider".getBytes(), "#team", "carol", MessageTypes.USER_MESSAGE));
+                alice.send(new Message("Hi team".getBytes(), "#team", "alice", MessageTypes.USER_MESSAGE));
+                alice.send(new Message("Only carol".getBytes(), "carol", "alice", MessageTypes.USER_MESSAGE));
+                Message received = receiveSkippingPresence(bob);
+
+                assertAll(
+                        () -> assertArrayEquals("Hi team".getBytes(), received.getMessage()),
+                        () -> assertEquals("#team", received.getRecipient()),
+                        () -> assertArrayEquals("Only carol".getBytes(), receiveSkippingPresence(carol).getMessage())
+                );
+            }
         }
     }
 
 
     @Nested
-    @DisplayName(" Test: Encryption ")
-    class testEncryption {
+    @DisplayName("Test: GroupDirectory.java")
+    class testGroupDirectory {
+
+        private final GroupDirectory groups = new GroupDirectory(4);
 
         @Test
-        @DisplayName("Tests the RSA Message Encryption")
-        public void testMessageEncryption() throws Exception {
+        @DisplayName("Testing that a group can only be created once and joined while it exists")
+        public void testCreateAndJoin() {
+            assertAll(
+                    () -> assertTrue(groups.create("team", "alice")),
+                    () -> assertFalse(groups.create("team", "bob")),
+                    () -> assertTrue(groups.join("team", "bob")),
+                    () -> assertTrue(groups.join("team", "bob")),
+                    () -> assertFalse(groups.join("missing", "bob")),
+                    () -> assertEquals(Set.of("alice", "bob"), groups.members("team")),
+                    () -> assertNull(groups.members("missing"))
+            );
+        }
 
-            KeyPair keyPair = Encryption.generateKeyPair();
-            byte[] message = "message".getBytes();
-            byte[] encrypted = Encryption.encryptRSA(message, keyPair.getPublic());
-            byte[] decrypted = Encryption.decryptRSA(encrypted, keyPair.getPrivate());
+        @Test
+        @DisplayName("Testing that the members read before a change are not affected by it, and that an empty group is deleted")
+        public void testLeave() {
+            groups.create("team", "alice");
+            groups.join("team", "bob");
+            Set<String> before = groups.members("team");
 
             assertAll(
-                    () -> assertArrayEquals(message, decrypted)
+                    () -> assertTrue(groups.leave("team", "alice")),
+                    () -> assertFalse(groups.leave("team", "alice")),
+                    () -> assertEquals(2, before.size()),
+                    () -> assertTrue(groups.leave("team", "bob")),
+                    () -> assertNull(groups.members("team")),
+                    () -> assertEquals(0, groups.size())
             );
         }
 
         @Test
-        @DisplayName("Test AES Encryption")
-        void testEncryptAES() throws Exception {
-            byte[] message = "Hello, World!".getBytes();
-            byte[] secretKey = "mySecretKey".getBytes();
-            byte[] encryptedMessage = Encryption.encryptAES(message, secretKey);
+        @DisplayName("Testing concurrent joins spread over many groups")
+        public void testConcurrentJoins() throws Exception {
+            for (int g = 0; g < 8; g++) {
+                groups.create("group" + g, "owner");
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < 800; i++) {
+                int index = i;
+                executor.execute(() -> groups.join("group" + index % 8, "user" + index));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            for (int g = 0; g < 8; g++) {
+                assertEquals(101, groups.members("group" + g).size());
+            }
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Test: CertificateCache.java")
+    class testCertificateCache {
+
+        private KeyPair ca;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            ca = Encryption.generateKeyPair();
+        }
+
+        @Test
+        @DisplayName("Testing that a certificate is verified once and a forged one is rejected every time")
+        public void testVerify() throws Exception {
+            CertificateCache cache = new CertificateCache();
+            String valid = signedCertificate("alice", ca);
+            String forged = signedCertificate("mallory", Encryption.generateKeyPair());
 
-            // Verify that the encrypted message is not equal to the original message
             assertAll(
-                    () -> assertNotEquals(message, encryptedMessage)
+                    () -> assertEquals("alice", cache.verify(valid, ca.getPublic())),
+                    () -> assertEquals("alice", cache.verify(valid, ca.getPublic())),
+                    () -> assertNull(cache.verify(forged, ca.getPublic())),
+                    () -> assertNull(cache.verify(forged, ca.getPublic())),
+                    () -> assertEquals(1, cache.getHitCount()),
+                    () -> assertEquals(3, cache.getMissCount()),
+                    () -> assertEquals(1, cache.size())
             );
-
         }
 
         @Test
-        @DisplayName("Test AES Decryption")
-        void testDecryptAES() throws Exception {
-            byte[] message = "Hello, World!".getBytes();
-            byte[] secretKey = "mySecretKey".getBytes();
-            byte[] encryptedMessage = Encryption.encryptAES(message, secretKey);
-            byte[] decryptedMessage = Encryption.decryptAES(encryptedMessage, secretKey);
+        @DisplayName("Testing that a certificate is verified again for a different CA key")
+        public void testOtherCa() throws Exception {
+            CertificateCache cache = new CertificateCache();
+            String valid = signedCertificate("alice", ca);
+            cache.verify(valid, ca.getPublic());
 
-            // Verify that the decrypted message is equal to the original message
             assertAll(
-                    () -> assertArrayEquals(message, decryptedMessage)
+                    () -> assertNull(cache.verify(valid, Encryption.generateKeyPair().getPublic())),
+                    () -> assertEquals(0, cache.getHitCount())
             );
         }
+
+        @Test
+        @DisplayName("Testing that verified certificates are remembered across runs")
+        public void testPersistence(@TempDir Path directory) throws Exception {
+            Path file = directory.resolve("verified");
+            String valid = signedCertificate("alice", ca);
+            try (CertificateCache cache = new CertificateCache(file)) {
+                cache.verify(valid, ca.getPublic());
+            }
+            try (CertificateCache cache = new CertificateCache(file)) {
+                assertAll(
+                        () -> assertEquals("alice", cache.verify(valid, ca.getPublic())),
+                        () -> assertEquals(1, cache.getHitCount()),
+                        () -> assertEquals(0, cache.getMissCount())
+                );
+            }
+        }
     }
 
 
     @Nested
-    @DisplayName(" Test: Integrity.java ")
-    class testIntegrity {
+    @DisplayName("Test: CertificateVerifier.java")
+    class testCertificateVerifier {
 
         @Test
-        @DisplayName("Tests the Message Integrity - SHA-256")
-        public void testMessageIntegrity() throws Exception {
-            byte[] message = "message".getBytes();
-            byte[] digest = Integrity.generateDigest(message);
+        @DisplayName("Testing that the certificates of a roster are verified in parallel off the calling thread")
+        public void testVerify() throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            List<String> roster = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                roster.add(signedCertificate("user" + i, ca));
+            }
+            String forged = signedCertificate("mallory", Encryption.generateKeyPair());
+            Set<String> threads = ConcurrentHashMap.newKeySet();
+            try (CertificateVerifier verifier = new CertificateVerifier(new CertificateCache(), Executors.newFixedThreadPool(4))) {
+                List<CompletableFuture<String>> results = new ArrayList<>();
+                for (String entry : roster) {
+                    results.add(verifier.verify(entry, ca.getPublic()).whenComplete((subject, error) -> threads.add(Thread.currentThread().getName())));
+                }
+                CompletableFuture<String> rejected = verifier.verify(forged, ca.getPublic());
+                CompletableFuture<String> garbage = verifier.verify("not a certificate", ca.getPublic());
 
-            assertAll(
-                    () -> assertTrue(Integrity.verifyDigest(digest, Integrity.generateDigest(message)))
-            );
+                for (int i = 0; i < roster.size(); i++) {
+                    assertEquals("user" + i, results.get(i).get(10, TimeUnit.SECONDS));
+                }
+                assertAll(
+                        () -> assertNull(rejected.get(10, TimeUnit.SECONDS)),
+                        () -> assertThrows(ExecutionException.class, () -> garbage.get(10, TimeUnit.SECONDS)),
+                        () -> assertFalse(threads.contains(Thread.currentThread().getName())),
+                        () -> assertEquals(0, verifier.getPendingCount())
+                );
+            }
         }
     }
 
 
     @Nested
-    @DisplayName("Test: KeyMessage.java")
-    class testKeyMessage{
-        @Test
-        @DisplayName("Testing KeyPair Equality")
-        public void testingKeyMessage() throws Exception {
-            KeyPair keyPair = Encryption.generateKeyPair();
-            PublicKey publicKey = keyPair.getPublic();
+    @DisplayName("Test: IdentityStore.java")
+    class testIdentityStore {
 
-            KeyMessage keyMessage = new KeyMessage(publicKey, "recipient", "sender");
+        @TempDir
+        Path directory;
+
+        private KeyPair ca;
+        private KeyPair keyPair;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            ca = Encryption.generateKeyPair();
+            keyPair = Encryption.generateKeyPair();
+        }
+
+        @Test
+        @DisplayName("Testing that a saved identity is loaded again by its nickname only")
+        public void testSaveAndLoad() throws Exception {
+            IdentityStore store = new IdentityStore(directory, 60_000);
+            String certificate = signedCertificate("alice", keyPair.getPublic(), ca, new Date());
+            store.save("alice", new IdentityStore.Identity(keyPair, certificate, ca.getPublic()));
+            IdentityStore.Identity loaded = new IdentityStore(directory, 60_000).load("alice");
 
             assertAll(
-                    () -> assertEquals(MessageTypes.KEY_MESSAGE, keyMessage.getMessageType()),
-                    () -> assertEquals(publicKey, keyMessage.getPublicKey())
+                    () -> assertNotNull(loaded),
+                    () -> assertEquals(keyPair.getPrivate(), loaded.keyPair().getPrivate()),
+                    () -> assertEquals(keyPair.getPublic(), loaded.keyPair().getPublic()),
+                    () -> assertEquals(certificate, loaded.certificate()),
+                    () -> assertEquals(ca.getPublic(), loaded.caPublicKey()),
+                    () -> assertNull(store.load("bob"))
             );
         }
-    }
 
+        @Test
+        @DisplayName("Testing that expired, foreign and mismatched identities are not reused")
+        public void testInvalidIdentities() throws Exception {
+            IdentityStore store = new IdentityStore(directory, 60_000);
+            Date old = new Date(System.currentTimeMillis() - 120_000);
+            store.save("expired", new IdentityStore.Identity(keyPair, signedCertificate("expired", keyPair.getPublic(), ca, old), ca.getPublic()));
+            store.save("forged", new IdentityStore.Identity(keyPair, signedCertificate("forged", keyPair.getPublic(), Encryption.generateKeyPair(), new Date()), ca.getPublic()));
+            store.save("other", new IdentityStore.Identity(keyPair, signedCertificate("other", Encryption.generateKeyPair().getPublic(), ca, new Date()), ca.getPublic()));
+            store.save("renamed", new IdentityStore.Identity(keyPair, signedCertificate("alice", keyPair.getPublic(), ca, new Date()), ca.getPublic()));
 
-    @Nested
-    @DisplayName("Test: Message.java")
-    class testMessage {
+            assertAll(
+                    () -> assertNull(store.load("expired")),
+                    () -> assertNull(store.load("forged")),
+                    () -> assertNull(store.load("other")),
+                    () -> assertNull(store.load("renamed"))
+            );
+        }
 
-        private Message message;
+        @Test
+        @DisplayName("Testing that a nickname cannot leave the directory of the store")
+        public void testNicknameFiles() throws Exception {
+            IdentityStore store = new IdentityStore(directory.resolve("identities"), 60_000);
+            String certificate = signedCertificate("../alice", keyPair.getPublic(), ca, new Date());
+            store.save("../alice", new IdentityStore.Identity(keyPair, certificate, ca.getPublic()));
+
+            try (Stream<Path> files = Files.list(directory)) {
+                assertAll(
+                        () -> assertNotNull(store.load("../alice")),
+                        () -> assertEquals(List.of(directory.resolve("identities")), files.toList())
+                );
+            }
+        }
 
         @Test
-        @DisplayName("Test Message method")
-        void testMessageValue() {
-            byte[] messageByte = "Message".getBytes();
-            String recipient = "recipient";
-            String sender = "sender";
-            MessageTypes messageType = MessageTypes.USER_MESSAGE;
-            message = new Message(messageByte, recipient, sender,messageType);
+        @DisplayName("Testing that a nickname spelling the encoding of another one gets its own file")
+        public void testEncodedNicknames() throws Exception {
+            IdentityStore store = new IdentityStore(directory, 60_000);
+            String encoded = HexFormat.of().formatHex("a b".getBytes(StandardCharsets.UTF_8));
+            for (String nickname : List.of("a b", encoded, "0x" + encoded, "%" + encoded)) {
+                store.save(nickname, new IdentityStore.Identity(keyPair, signedCertificate(nickname, keyPair.getPublic(), ca, new Date()), ca.getPublic()));
+            }
 
-            assertAll(
-                    () -> assertEquals(messageByte, message.getMessage()),
-                    () -> assertEquals(recipient, message.getRecipient()),
-                    () -> assertEquals(sender, message.getSender()),
-                    () -> assertEquals(messageType, message.getMessageType())
-            );
+            try (Stream<Path> files = Files.list(directory)) {
+                assertAll(
+                        () -> assertEquals(4, files.count()),
+                        () -> assertNotNull(store.load("a b")),
+                        () -> assertNotNull(store.load(encoded)),
+                        () -> assertNotNull(store.load("0x" + encoded)),
+                        () -> assertNotNull(store.load("%" + encoded))
+                );
+            }
         }
     }
 
     @Nested
-    @DisplayName("Test: SerialNumberGenerator.java")
-    class testSerialNumberGenerator {
+    @DisplayName("Test: ObjectMessageChannel.java")
+    class testObjectMessageChannel {
 
         @Test
-        @DisplayName(" Test Serial Number Generator ")
-        void testGenerateSerialNumber() {
-            SerialNumberGenerator generator = new SerialNumberGenerator();
-            BigInteger initialSerialNumber = generator.generateSerialNumber();
-            BigInteger newSerialNumber = generator.generateSerialNumber();
+        @DisplayName("Testing that the output stream is reset after the configured number of messages")
+        public void testReset() throws Exception {
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                ExecutorService executor = Executors.newSingleThreadExecutor();
+                Future<ObjectMessageChannel> accepted = executor.submit(() -> new ObjectMessageChannel(serverSocket.accept()));
+                executor.shutdown();
+                Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+                try (ObjectMessageChannel sender = new ObjectMessageChannel(socket, socket.getInputStream(),
+                        new ObjectMessageChannel.ResetPolicy(10, Long.MAX_VALUE));
+                     ObjectMessageChannel receiver = accepted.get(5, TimeUnit.SECONDS)) {
+                    for (int i = 0; i < 25; i++) {
+                        sender.send(new Message(String.valueOf(i).getBytes(), "bob", "alice", MessageTypes.USER_MESSAGE));
+                    }
+                    for (int i = 0; i < 25; i++) {
+                        assertArrayEquals(String.valueOf(i).getBytes(), receiver.receive().getMessage());
+                    }
 
-            // Verify that the new serial number is one more than the initial serial number
+                    assertAll(
+                            () -> assertEquals(2, sender.getResetCount()),
+                            () -> assertEquals(5, sender.getRetainedMessages())
+                    );
+                }
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: UserRegistry.java")
+    class testUserRegistry {
+
+        @Test
+        @DisplayName("Testing the register, login, logout and unregister transitions")
+        public void testTransitions() {
+            UserRegistry registry = new UserRegistry();
             assertAll(
-                    () -> assertEquals(initialSerialNumber.add(BigInteger.ONE), newSerialNumber)
+                    () -> assertFalse(registry.login("alice")),
+                    () -> assertTrue(registry.register("alice")),
+                    () -> assertFalse(registry.register("alice")),
+                    () -> assertTrue(registry.login("alice")),
+                    () -> assertFalse(registry.login("alice")),
+                    () -> assertTrue(registry.isLoggedIn("alice")),
+                    () -> assertTrue(registry.logout("alice")),
+                    () -> assertTrue(registry.login("alice")),
+                    () -> assertTrue(registry.unregister("alice")),
+                    () -> assertFalse(registry.isRegistered("alice"))
             );
         }
 
+        @Test
+        @DisplayName("Testing that only one of many concurrent logins of the same name succeeds")
+        public void testConcurrentLogin() throws Exception {
+            UserRegistry registry = new UserRegistry();
+            registry.register("alice");
+            AtomicInteger successes = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < 100; i++) {
+                    executor.submit(() -> {
+                        start.await();
+                        if (registry.login("alice")) {
+                            successes.incrementAndGet();
+                        }
+                        return null;
+                    });
+                }
+                start.countDown();
+            }
+            assertEquals(1, successes.get());
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: RegistrationStore.java")
+    class testRegistrationStore {
+
+        @TempDir
+        Path directory;
+
+        private UserRegistry open(RegistrationStore.Options options) throws IOException {
+            return new UserRegistry(new RegistrationStore(directory, options));
+        }
+
+        @Test
+        @DisplayName("Testing that registrations and removals are recovered after a restart")
+        public void testRecovery() throws Exception {
+            RegistrationStore store = new RegistrationStore(directory, new RegistrationStore.Options(4096, 10, 4));
+            UserRegistry registry = new UserRegistry(store);
+            registry.register("alice");
+            registry.register("bob");
+            registry.login("bob");
+            registry.unregister("alice");
+            store.close();
+
+            UserRegistry recovered = open(new RegistrationStore.Options(4096, 10, 4));
+            assertAll(
+                    () -> assertFalse(recovered.isRegistered("alice")),
+                    () -> assertTrue(recovered.isRegistered("bob")),
+                    () -> assertFalse(recovered.isLoggedIn("bob")),
+                    () -> assertEquals(1, recovered.size())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that the log is compacted into a snapshot without losing names")
+        public void testCompaction() throws Exception {
+            RegistrationStore.Options options = new RegistrationStore.Options(64, 10, 2);
+            RegistrationStore store = new RegistrationStore(directory, options);
+            UserRegistry registry = new UserRegistry(store);
+            for (int i = 0; i < 200; i++) {
+                registry.register("user" + i);
+            }
+            for (int i = 0; i < 200; i += 2) {
+                registry.unregister("user" + i);
+            }
+            store.close();
+
+            UserRegistry recovered = open(options);
+            try (Stream<Path> files = Files.list(directory)) {
+                long segments = files.filter(path -> path.getFileName().toString().startsWith("log.")).count();
+                assertTrue(segments < 100, "segments were not compacted: " + segments);
+            }
+            assertAll(
+                    () -> assertTrue(Files.exists(directory.resolve("snapshot"))),
+                    () -> assertEquals(100, recovered.size()),
+                    () -> assertTrue(recovered.isRegistered("user1")),
+                    () -> assertFalse(recovered.isRegistered("user0"))
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: PresenceRoster.java")
+    class testPresenceRoster {
+
+        private final String alice = CertificateEncoder.HEADER + "\nalice\n" + CertificateEncoder.FOOTER;
+        private final String bob = CertificateEncoder.HEADER + "\nbob\n" + CertificateEncoder.FOOTER;
+
+        @Test
+        @DisplayName("Testing that the snapshot holds the entries in order and is shared between clients")
+        public void testSnapshot() {
+            PresenceRoster roster = new PresenceRoster(16);
+            roster.add("alice", alice);
+            long version = roster.add("bob", bob);
+            PresenceRoster.Snapshot snapshot = roster.snapshot();
+
+            assertAll(
+                    () -> assertEquals(version, snapshot.version()),
+                    () -> assertEquals(alice + "," + bob + ",", new String(snapshot.entries())),
+                    () -> assertSame(snapshot, roster.snapshot())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a client with a recent version receives only the changes")
+        public void testDelta() {
+            PresenceRoster roster = new PresenceRoster(2);
+            long known = roster.add("alice", alice);
+            roster.add("bob", bob);
+            long current = roster.remove("alice");
+
+            assertAll(
+                    () -> assertEquals(bob + ",-alice,", new String(roster.since(known).entries())),
+                    () -> assertEquals(current, roster.since(known).version()),
+                    () -> assertEquals(0, roster.since(current).entries().length),
+                    () -> assertNull(roster.since(known - 1)),
+                    () -> assertNull(roster.since(LoginMessage.NO_VERSION)),
+                    () -> assertNull(roster.since(current + 1))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that compacting the snapshot keeps the users that are logged in")
+        public void testCompaction() {
+            PresenceRoster roster = new PresenceRoster(16);
+            roster.add("bob", bob);
+            for (int i = 0; i < 100; i++) {
+                roster.add("alice", alice);
+                roster.remove("alice");
+            }
+
+            assertAll(
+                    () -> assertEquals(1, roster.size()),
+                    () -> assertTrue(new String(roster.snapshot().entries()).length() < 100 * alice.length())
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: PresenceAggregator.java")
+    class testPresenceAggregator {
+
+        private final List<Message> received = new CopyOnWriteArrayList<>();
+        private final ConcurrentHashMap<String, User> clients = new ConcurrentHashMap<>();
+        private final PresenceAggregator presence = new PresenceAggregator(clients, new PresenceRoster(16), 60_000);
+
+        private User user(String name) {
+            MessageSink sink = new MessageSink() {
+                @Override
+                public void send(Message message) {
+                    if (name.equals("watcher")) {
+                        received.add(message);
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            return new User(name, sink, CertificateEncoder.HEADER + "\n" + name + "\n" + CertificateEncoder.FOOTER);
+        }
+
+        @Test
+        @DisplayName("Testing that the changes of a window reach each user as one message")
+        public void testBatching() throws Exception {
+            presence.loggedIn(user("watcher"), () -> {});
+            presence.flush();
+            received.clear();
+            for (int i = 0; i < 10; i++) {
+                presence.loggedIn(user("user" + i), () -> {});
+            }
+            presence.flush();
+
+            assertAll(
+                    () -> assertEquals(1, received.size()),
+                    () -> assertEquals(MessageTypes.ROSTER_DELTA, received.get(0).getMessageType()),
+                    () -> assertEquals(10, new String(received.get(0).getMessage()).split(",").length),
+                    () -> assertEquals(presence.getRoster().getVersion(), ((RosterMessage) received.get(0)).getVersion())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a subscriber is notified only of its contacts")
+        public void testSubscription() throws Exception {
+            User watcher = user("watcher");
+            presence.loggedIn(watcher, () -> {});
+            presence.flush();
+            presence.subscribe(watcher, List.of("alice", "carol"));
+            received.clear();
+            for (String name : List.of("alice", "bob", "carol", "dave")) {
+                presence.loggedIn(user(name), () -> {});
+            }
+            presence.flush();
+            presence.loggedOut(clients.get("dave"));
+            presence.flush();
+
+            assertAll(
+                    () -> assertEquals(1, received.size()),
+                    () -> assertEquals(user("alice").getCertificate() + "," + user("carol").getCertificate() + ",",
+                            new String(received.get(0).getMessage()))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a subscriber receives a snapshot of its contacts and unversioned deltas")
+        public void testSubscriptionSnapshot() throws Exception {
+            User watcher = user("watcher");
+            User alice = user("alice");
+            User bob = user("bob");
+            for (User user : List.of(watcher, alice, bob)) {
+                presence.loggedIn(user, () -> {});
+            }
+            presence.flush();
+            received.clear();
+
+            presence.subscribe(watcher, List.of("alice", "dave"));
+            RosterMessage snapshot = (RosterMessage) received.get(0);
+            presence.loggedOut(bob);
+            presence.flush();
+            int afterOthers = received.size();
+            presence.loggedOut(alice);
+            presence.flush();
+            RosterMessage delta = (RosterMessage) received.get(received.size() - 1);
+
+            assertAll(
+                    () -> assertEquals(MessageTypes.LOGGED_USERS, snapshot.getMessageType()),
+                    () -> assertEquals(alice.getCertificate() + ",", new String(snapshot.getMessage())),
+                    () -> assertEquals(LoginMessage.NO_VERSION, snapshot.getVersion()),
+                    () -> assertEquals(1, afterOthers),
+                    () -> assertEquals(2, received.size()),
+                    () -> assertEquals("-alice,", new String(delta.getMessage())),
+                    () -> assertEquals(LoginMessage.NO_VERSION, delta.getVersion())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a late logout of an earlier session does not hide a newer login")
+        public void testStaleLogout() throws Exception {
+            presence.loggedIn(user("watcher"), () -> {});
+            User earlier = user("alice");
+            presence.loggedIn(earlier, () -> {});
+            presence.flush();
+            received.clear();
+
+            User later = user("alice");
+            presence.loggedIn(later, () -> {});
+            boolean removed = presence.loggedOut(earlier);
+            presence.flush();
+
+            assertAll(
+                    () -> assertFalse(removed),
+                    () -> assertSame(later, clients.get("alice")),
+                    () -> assertEquals(2, presence.getRoster().size()),
+                    () -> assertEquals(1, received.size()),
+                    () -> assertEquals(later.getCertificate() + ",", new String(received.get(0).getMessage()))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that changes announced at once from several threads reach a user in version order")
+        public void testImmediateOrdering() throws Exception {
+            PresenceAggregator immediate = new PresenceAggregator(clients, new PresenceRoster(16), 0);
+            immediate.loggedIn(user("watcher"), () -> {});
+            received.clear();
+            ExecutorService threads = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    String name = "user" + i;
+                    futures.add(threads.submit(() -> {
+                        for (int j = 0; j < 50; j++) {
+                            User user = user(name);
+                            immediate.loggedIn(user, () -> {});
+                            immediate.loggedOut(user);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                threads.shutdown();
+                immediate.close();
+            }
+
+            long previous = LoginMessage.NO_VERSION;
+            for (Message message : received) {
+                long version = ((RosterMessage) message).getVersion();
+                assertTrue(version > previous, "version " + version + " after " + previous);
+                previous = version;
+            }
+            assertFalse(received.isEmpty());
+        }
+
+        @Test
+        @DisplayName("Testing that a login and a logout within one window cancel out")
+        public void testCancellation() throws Exception {
+            presence.loggedIn(user("watcher"), () -> {});
+            User alice = user("alice");
+            presence.loggedIn(alice, () -> {});
+            presence.flush();
+            received.clear();
+
+            User bob = user("bob");
+            presence.loggedIn(bob, () -> {});
+            presence.loggedOut(bob);
+            presence.flush();
+            assertTrue(received.isEmpty());
+
+            presence.loggedOut(alice);
+            presence.loggedIn(alice, () -> {});
+            presence.flush();
+
+            assertAll(
+                    () -> assertEquals(1, presence.getCancelledCount()),
+                    () -> assertEquals(1, received.size()),
+                    () -> assertEquals(alice.getCertificate() + ",", new String(received.get(0).getMessage()))
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: ExecutionMode.java")
+    class testExecutionMode {
+
+        private boolean runsOnVirtualThread(ExecutionMode mode) throws Exception {
+            ExecutorService executor = mode.newExecutor(2);
+            try {
+                return executor.submit(() -> Thread.currentThread().isVirtual()).get();
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("Testing the thread kind used by each execution mode")
+        public void testNewExecutor() throws Exception {
+            assertAll(
+                    () -> assertFalse(runsOnVirtualThread(ExecutionMode.THREADS)),
+                    () -> assertTrue(runsOnVirtualThread(ExecutionMode.VIRTUAL)),
+                    () -> assertFalse(runsOnVirtualThread(ExecutionMode.POOL))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing a login through a server running on virtual threads")
+        public void testVirtualServer() throws Exception {
+            Server server = new Server(0, ExecutionMode.VIRTUAL.newExecutor(0));
+            new Thread(server).start();
+            try (MessageChannel channel = new ObjectMessageChannel(new Socket("localhost", server.getPort()))) {
+                channel.send(new Message("virtual".getBytes(), "Server", "new user", MessageTypes.REGISTER));
+
+                assertEquals(MessageTypes.REGISTER, channel.receive().getMessageType());
+            }
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Test: OutboundQueue.java")
+    class testOutboundQueue {
+
+        /**
+         * A sink that blocks every write until it is released, like a client that stopped reading.
+         */
+        class StalledSink implements MessageSink {
+            final CountDownLatch released = new CountDownLatch(1);
+            final List<Message> written = new CopyOnWriteArrayList<>();
+            volatile boolean closed;
+
+            @Override
+            public void send(Message message) throws IOException {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.add(message);
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                released.countDown();
+            }
+        }
+
+        private Message message(int index) {
+            return new Message(String.valueOf(index).getBytes(), "recipient", "sender", MessageTypes.USER_MESSAGE);
+        }
+
+        @Test
+        @DisplayName("Testing that a slow consumer loses messages above the high watermark with the DROP policy")
+        public void testDropPolicy() throws Exception {
+            StalledSink sink = new StalledSink();
+            OutboundQueue queue = new OutboundQueue(sink, new OutboundQueue.Limits(4, 1, SlowConsumerPolicy.DROP));
+            for (int i = 0; i < 10; i++) {
+                queue.send(message(i));
+            }
+            int depth = queue.getDepth();
+            sink.released.countDown();
+            while (queue.getDepth() > 0) {
+                Thread.sleep(10);
+            }
+
+            assertAll(
+                    () -> assertEquals(4, depth),
+                    () -> assertEquals(6, queue.getDroppedCount()),
+                    () -> assertEquals(4, sink.written.size()),
+                    () -> assertFalse(sink.closed)
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a slow consumer is disconnected with the DISCONNECT policy")
+        public void testDisconnectPolicy() {
+            StalledSink sink = new StalledSink();
+            OutboundQueue queue = new OutboundQueue(sink, new OutboundQueue.Limits(4, 1, SlowConsumerPolicy.DISCONNECT));
+            for (int i = 0; i < 10; i++) {
+                queue.send(message(i));
+            }
+
+            assertAll(
+                    () -> assertTrue(sink.closed),
+                    () -> assertTrue(queue.getDroppedCount() >= 6),
+                    () -> assertTrue(queue.getMaxDepth() <= 4)
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that messages queued under load are flushed together")
+        public void testCoalescing() throws Exception {
+            AtomicInteger writes = new AtomicInteger();
+            AtomicInteger flushes = new AtomicInteger();
+            CountDownLatch released = new CountDownLatch(1);
+            MessageSink sink = new MessageSink() {
+                @Override
+                public void send(Message message) {
+                    write(message);
+                    flush();
+                }
+
+                @Override
+                public void write(Message message) {
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    writes.incrementAndGet();
+                }
+
+                @Override
+                public void flush() {
+                    flushes.incrementAndGet();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            OutboundQueue queue = new OutboundQueue(sink, new OutboundQueue.Limits(100, 10, SlowConsumerPolicy.DROP),
+                    new OutboundQueue.FlushPolicy(64, TimeUnit.SECONDS.toNanos(1)));
+            for (int i = 0; i < 20; i++) {
+                queue.send(message(i));
+            }
+            released.countDown();
+            while (writes.get() < 20) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+
+            assertAll(
+                    () -> assertEquals(20, writes.get()),
+                    () -> assertEquals(1, flushes.get())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that messages are written in order")
+        public void testOrder() throws Exception {
+            StalledSink sink = new StalledSink();
+            sink.released.countDown();
+            OutboundQueue queue = new OutboundQueue(sink, new OutboundQueue.Limits(100, 10, SlowConsumerPolicy.DROP));
+            for (int i = 0; i < 50; i++) {
+                queue.send(message(i));
+            }
+            while (sink.written.size() < 50) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertArrayEquals(String.valueOf(i).getBytes(), sink.written.get(i).getMessage());
+            }
+        }
+    }
+
+
+    @Nested
+    @DisplayName("test: DiffieHellman.java")
+    class testDiffieHellman {
+
+        @Test
+        @DisplayName("Testing generatePrivateKey method")
+        public void testGeneratePrivateKey() throws NoSuchAlgorithmException {
+            BigInteger privateKey = DiffieHellman.generatePrivateKey();
+
+            assertAll(
+                    () -> assertNotNull(privateKey)
+            );
+        }
+
+        @Test
+        @DisplayName("Testing generatePublicKey method")
+        public void testGeneratePublicKey() throws NoSuchAlgorithmException {
+            BigInteger privateKey = DiffieHellman.generatePrivateKey();
+            BigInteger publicKey = DiffieHellman.generatePublicKey(privateKey);
+
+            assertAll(
+                    () -> assertNotNull(publicKey)
+            );
+        }
+
+        @Test
+        @DisplayName("Testing computeSecret method")
+        public void testComputeSecret() throws NoSuchAlgorithmException {
+            BigInteger User1PrivateKey = DiffieHellman.generatePrivateKey();
+            BigInteger User2PrivateKey = DiffieHellman.generatePrivateKey();
+
+            BigInteger User1PublicKey = DiffieHellman.generatePublicKey(User1PrivateKey);
+            BigInteger User2PublicKey = DiffieHellman.generatePublicKey(User2PrivateKey);
+
+            BigInteger User1Secret = DiffieHellman.computeSecret(User2PublicKey, User1PrivateKey);
+            BigInteger User2Secret = DiffieHellman.computeSecret(User1PublicKey, User2PrivateKey);
+
+            assertAll(
+                    () -> assertEquals(User1Secret, User2Secret)
+            );
+        }
+    }
+
+
+    @Nested
+    @DisplayName(" Test: Encryption ")
+    class testEncryption {
+
+        @Test
+        @DisplayName("Tests the RSA Message Encryption")
+        public void testMessageEncryption() throws Exception {
+
+            KeyPair keyPair = Encryption.generateKeyPair();
+            byte[] message = "message".getBytes();
+            byte[] encrypted = Encryption.encryptRSA(message, keyPair.getPublic());
+            byte[] decrypted = Encryption.decryptRSA(encrypted, keyPair.getPrivate());
+
+            assertAll(
+                    () -> assertArrayEquals(message, decrypted)
+            );
+        }
+
+        @Test
+        @DisplayName("Test AES Encryption")
+        void testEncryptAES() throws Exception {
+            byte[] message = "Hello, World!".getBytes();
+            byte[] secretKey = "mySecretKey".getBytes();
+            byte[] encryptedMessage = Encryption.encryptAES(message, secretKey);
+
+            // Verify that the encrypted message is not equal to the original message
+            assertAll(
+                    () -> assertNotEquals(message, encryptedMessage)
+            );
+
+        }
+
+        @Test
+        @DisplayName("Test AES Decryption")
+        void testDecryptAES() throws Exception {
+            byte[] message = "Hello, World!".getBytes();
+            byte[] secretKey = "mySecretKey".getBytes();
+            byte[] encryptedMessage = Encryption.encryptAES(message, secretKey);
+            byte[] decryptedMessage = Encryption.decryptAES(encryptedMessage, secretKey);
+
+            // Verify that the decrypted message is equal to the original message
+            assertAll(
+                    () -> assertArrayEquals(message, decryptedMessage)
+            );
+        }
+
+        @Test
+        @DisplayName("Test that the per-thread contexts follow a change of key")
+        void testAlternatingKeys() throws Exception {
+            byte[] message = "Hello, World!".getBytes();
+            byte[] first = Encryption.encryptAES(message, "firstKey".getBytes());
+            byte[] second = Encryption.encryptAES(message, "secondKey".getBytes());
+            KeyPair keyPair = Encryption.generateKeyPair();
+            KeyPair otherPair = Encryption.generateKeyPair();
+            byte[] sealed = Encryption.encryptRSA(message, keyPair.getPublic());
+
+            assertAll(
+                    () -> assertFalse(Arrays.equals(first, second)),
+                    () -> assertArrayEquals(message, Encryption.decryptAES(first, "firstKey".getBytes())),
+                    () -> assertArrayEquals(message, Encryption.decryptAES(second, "secondKey".getBytes())),
+                    () -> assertThrows(Exception.class, () -> Encryption.decryptRSA(sealed, otherPair.getPrivate())),
+                    () -> assertArrayEquals(message, Encryption.decryptRSA(sealed, keyPair.getPrivate()))
+            );
+        }
+
+        @Test
+        @DisplayName("Test that a context bound to a key can be reused for many messages")
+        void testContext() throws Exception {
+            Encryption.AesContext context = Encryption.aes("mySecretKey".getBytes());
+            for (int i = 0; i < 100; i++) {
+                byte[] message = ("message " + i).getBytes();
+
+                assertArrayEquals(message, context.decrypt(context.encrypt(message)));
+            }
+            assertArrayEquals("Hello".getBytes(), Encryption.decryptAES(context.encrypt("Hello".getBytes()), "mySecretKey".getBytes()));
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Test: AesGcmEngine.java")
+    class testAesGcmEngine {
+
+        private final byte[] key = new byte[16];
+
+        @Test
+        @DisplayName("Testing a round trip through direct buffers, encrypting and decrypting in place")
+        public void testInPlace() throws Exception {
+            AesGcmEngine sender = new AesGcmEngine(key, 1);
+            AesGcmEngine receiver = new AesGcmEngine(key, 2);
+            byte[] message = "Hello, World!".getBytes();
+            ByteBuffer frame = ByteBuffer.allocateDirect(AesGcmEngine.encryptedSize(message.length));
+            frame.position(AesGcmEngine.NONCE_LENGTH);
+            frame.put(message).flip().position(AesGcmEngine.NONCE_LENGTH);
+            ByteBuffer out = frame.duplicate().clear();
+
+            int written = sender.encrypt(frame, out);
+            out.flip();
+            ByteBuffer plaintext = out.duplicate();
+            int read = receiver.decrypt(out, plaintext);
+            byte[] decrypted = new byte[read];
+            plaintext.flip().get(decrypted);
+
+            assertAll(
+                    () -> assertEquals(AesGcmEngine.encryptedSize(message.length), written),
+                    () -> assertArrayEquals(message, decrypted),
+                    () -> assertEquals(1, sender.getMessageCount())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a receiving engine reads each message once, in any order within its window")
+        public void testReplayWindow() throws Exception {
+            AesGcmEngine sender = new AesGcmEngine(key, 3);
+            AesGcmEngine receiver = AesGcmEngine.forReceiving(key, 3);
+            List<byte[]> messages = new ArrayList<>();
+            for (int i = 0; i < AesGcmEngine.REPLAY_WINDOW + 2; i++) {
+                messages.add(sender.encrypt(new byte[]{(byte) i}));
+            }
+            byte[] last = messages.get(messages.size() - 1);
+            byte[] edge = messages.get(messages.size() - AesGcmEngine.REPLAY_WINDOW);
+            byte[] tooOld = messages.get(0);
+            assertArrayEquals(new byte[]{(byte) (messages.size() - 1)}, receiver.decrypt(last));
+
+            assertAll(
+                    () -> assertArrayEquals(new byte[]{(byte) (messages.size() - AesGcmEngine.REPLAY_WINDOW)}, receiver.decrypt(edge)),
+                    () -> assertThrows(GeneralSecurityException.class, () -> receiver.decrypt(edge)),
+                    () -> assertThrows(GeneralSecurityException.class, () -> receiver.decrypt(last)),
+                    () -> assertThrows(GeneralSecurityException.class, () -> receiver.decrypt(tooOld)),
+                    () -> assertThrows(AEADBadTagException.class, () -> receiver.decrypt(new AesGcmEngine(key, 4).encrypt(new byte[1]))),
+                    () -> assertThrows(IllegalStateException.class, () -> receiver.encrypt(new byte[1]))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that nonces are not repeated and that an altered message is rejected")
+        public void testNonceAndTag() throws Exception {
+            AesGcmEngine engine = new AesGcmEngine(key, 7);
+            byte[] first = engine.encrypt("same".getBytes());
+            byte[] second = engine.encrypt("same".getBytes());
+            byte[] altered = first.clone();
+            altered[AesGcmEngine.NONCE_LENGTH] ^= 1;
+
+            assertAll(
+                    () -> assertFalse(Arrays.equals(Arrays.copyOf(first, AesGcmEngine.NONCE_LENGTH), Arrays.copyOf(second, AesGcmEngine.NONCE_LENGTH))),
+                    () -> assertArrayEquals("same".getBytes(), engine.decrypt(second)),
+                    () -> assertThrows(AEADBadTagException.class, () -> engine.decrypt(altered)),
+                    () -> assertThrows(AEADBadTagException.class, () -> new AesGcmEngine(new byte[16]).decrypt(new byte[8])),
+                    () -> assertArrayEquals("same".getBytes(), engine.decrypt(first))
+            );
+        }
+    }
+
+
+    @Nested
+    @DisplayName(" Test: Integrity.java ")
+    class testIntegrity {
+
+        @Test
+        @DisplayName("Tests the Message Integrity - SHA-256")
+        public void testMessageIntegrity() throws Exception {
+            byte[] message = "message".getBytes();
+            byte[] digest = Integrity.generateDigest(message);
+
+            assertAll(
+                    () -> assertTrue(Integrity.verifyDigest(digest, Integrity.generateDigest(message)))
+            );
+        }
+
+        @Test
+        @DisplayName("Tests that a digest of two parts equals the digest of their concatenation")
+        public void testTwoPartDigest() throws Exception {
+            byte[] digest = Integrity.generateDigest("mess".getBytes(), "age".getBytes());
+
+            assertAll(
+                    () -> assertArrayEquals(Integrity.generateDigest("message".getBytes()), digest)
+            );
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Test: KeyAgreementEngine.java")
+    class testKeyAgreementEngine {
+
+        @Test
+        @DisplayName("Testing that both engines agree on the same secret")
+        public void testAgreement() throws Exception {
+            for (KeyAgreementEngine engine : List.of(new X25519Engine(), new LegacyDiffieHellmanEngine())) {
+                KeyAgreementEngine.EphemeralKey alice = engine.generate();
+                KeyAgreementEngine.EphemeralKey bob = engine.generate();
+
+                assertArrayEquals(alice.agree(bob.getPublicKey()), bob.agree(alice.getPublicKey()), engine.getName());
+            }
+        }
+
+        @Test
+        @DisplayName("Testing the 32-byte X25519 public keys and the rejection of malformed ones")
+        public void testX25519PublicKeys() throws Exception {
+            KeyAgreementEngine engine = KeyAgreementEngine.forName("X25519");
+            KeyAgreementEngine.EphemeralKey key = engine.generate();
+
+            assertAll(
+                    () -> assertEquals(X25519Engine.KEY_LENGTH, key.getPublicKey().length),
+                    () -> assertEquals(32, key.agree(engine.generate().getPublicKey()).length),
+                    () -> assertThrows(InvalidKeyException.class, () -> key.agree(new byte[31])),
+                    () -> assertThrows(InvalidKeyException.class, () -> key.agree(new byte[32])),
+                    () -> assertThrows(IllegalArgumentException.class, () -> KeyAgreementEngine.forName("RSA"))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a handshake with another key agreement is rejected")
+        public void testMismatchedSessions() throws Exception {
+            KeyPair aliceKeys = Encryption.generateKeyPair();
+            KeyPair bobKeys = Encryption.generateKeyPair();
+            SessionManager.PeerKeys keys = peer -> peer.equals("alice") ? aliceKeys.getPublic() : bobKeys.getPublic();
+            SessionManager.Limits limits = new SessionManager.Limits(100, 60_000);
+            SessionManager alice = new SessionManager("alice", aliceKeys.getPrivate(), keys, limits, new LegacyDiffieHellmanEngine());
+            SessionManager bob = new SessionManager("bob", bobKeys.getPrivate(), keys, limits, new X25519Engine());
+
+            assertThrows(GeneralSecurityException.class, () -> bob.accept(alice.initiate("bob")));
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: EphemeralKeyPool.java")
+    class testEphemeralKeyPool {
+
+        private void awaitSize(EphemeralKeyPool<?> pool, int size) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (pool.size() < size && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        @Test
+        @DisplayName("Testing that the pool is filled in the background and never hands out a key twice")
+        public void testTake() throws Exception {
+            AtomicInteger counter = new AtomicInteger();
+            try (EphemeralKeyPool<Integer> pool = new EphemeralKeyPool<>("test-pool", counter::incrementAndGet,
+                    new EphemeralKeyPool.Settings(8, 4, 60_000))) {
+                awaitSize(pool, 4);
+                Set<Integer> keys = new HashSet<>();
+                for (int i = 0; i < 4; i++) {
+                    keys.add(pool.take());
+                }
+                long starvedBefore = pool.getStarvationCount();
+                for (int i = 0; i < 20; i++) {
+                    keys.add(pool.take());
+                }
+
+                assertAll(
+                        () -> assertEquals(0, starvedBefore),
+                        () -> assertEquals(24, keys.size()),
+                        () -> assertEquals(24, pool.getTakeCount())
+                );
+            }
+        }
+
+        @Test
+        @DisplayName("Testing that starvation raises the target and idleness lowers it")
+        public void testAdaptiveTarget() throws Exception {
+            AtomicInteger counter = new AtomicInteger();
+            try (EphemeralKeyPool<Integer> pool = new EphemeralKeyPool<>("test-pool", counter::incrementAndGet,
+                    new EphemeralKeyPool.Settings(8, 0, 100))) {
+                pool.take();
+                pool.take();
+                int raised = pool.getTarget();
+                long starved = pool.getStarvationCount();
+                awaitSize(pool, raised);
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (pool.getTarget() > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+
+                assertAll(
+                        () -> assertTrue(raised >= 2),
+                        () -> assertTrue(starved >= 1),
+                        () -> assertTrue(pool.getGeneratedCount() >= raised),
+                        () -> assertEquals(0, pool.getTarget())
+                );
+            }
+        }
+
+        @Test
+        @DisplayName("Testing that a pooled engine still agrees on the secret")
+        public void testPooledEngine() throws Exception {
+            try (PooledKeyAgreementEngine engine = new PooledKeyAgreementEngine(new X25519Engine(),
+                    new EphemeralKeyPool.Settings(4, 2, 60_000))) {
+                awaitSize(engine.getPool(), 2);
+                KeyAgreementEngine.EphemeralKey alice = engine.generate();
+                KeyAgreementEngine.EphemeralKey bob = engine.generate();
+
+                assertAll(
+                        () -> assertEquals("X25519", engine.getName()),
+                        () -> assertArrayEquals(alice.agree(bob.getPublicKey()), bob.agree(alice.getPublicKey())),
+                        () -> assertEquals(0, engine.getPool().getStarvationCount())
+                );
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: MerkleSignature.java")
+    class testMerkleSignature {
+
+        private KeyPair ca;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            ca = Encryption.generateKeyPair();
+        }
+
+        private List<byte[]> digests(int count) throws Exception {
+            List<byte[]> digests = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                digests.add(Integrity.generateDigest(("certificate " + i).getBytes()));
+            }
+            return digests;
+        }
+
+        @Test
+        @DisplayName("Testing that every certificate of batches of any size verifies on its own")
+        public void testBatches() throws Exception {
+            for (int size = 1; size <= 9; size++) {
+                List<byte[]> digests = digests(size);
+                byte[][] signatures = MerkleSignature.sign(digests, ca.getPrivate());
+                for (int i = 0; i < size; i++) {
+                    assertTrue(MerkleSignature.isBatched(signatures[i]));
+                    assertTrue(MerkleSignature.verify(digests.get(i), signatures[i], ca.getPublic()), size + "/" + i);
+                    if (size > 1) {
+                        assertFalse(MerkleSignature.verify(digests.get((i + 1) % size), signatures[i], ca.getPublic()));
+                    }
+                }
+            }
+            byte[] digest = Integrity.generateDigest("alone".getBytes());
+            byte[] plain = Encryption.encryptRSA(digest, ca.getPrivate());
+
+            assertAll(
+                    () -> assertFalse(MerkleSignature.isBatched(plain)),
+                    () -> assertTrue(MerkleSignature.verify(digest, plain, ca.getPublic()))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that altered paths, indexes, keys and truncated signatures are rejected")
+        public void testTampering() throws Exception {
+            List<byte[]> digests = digests(5);
+            byte[] signature = MerkleSignature.sign(digests, ca.getPrivate())[2];
+            byte[] path = signature.clone();
+            path[14] ^= 1;
+            byte[] index = signature.clone();
+            index[7] = 3;
+            byte[] truncated = Arrays.copyOf(signature, 20);
+
+            assertAll(
+                    () -> assertFalse(MerkleSignature.verify(digests.get(2), path, ca.getPublic())),
+                    () -> assertFalse(MerkleSignature.verify(digests.get(2), index, ca.getPublic())),
+                    () -> assertFalse(MerkleSignature.verify(digests.get(2), truncated, ca.getPublic())),
+                    () -> assertFalse(MerkleSignature.verify(digests.get(2), signature, Encryption.generateKeyPair().getPublic()))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that concurrent requests are signed in batches the certificate cache accepts")
+        public void testBatchSigner() throws Exception {
+            int requests = 24;
+            ExecutorService executor = Executors.newFixedThreadPool(requests);
+            try (BatchSigner signer = new BatchSigner(ca.getPrivate(), new BatchSigner.Settings(8, 200))) {
+                List<Future<String>> certificates = new ArrayList<>();
+                for (int i = 0; i < requests; i++) {
+                    String subject = "user" + i;
+                    certificates.add(executor.submit(() -> {
+                        Certificate certificate = new Certificate(Encryption.generateKeyPair().getPublic(), subject);
+                        certificate.setIssuer("CA");
+                        certificate.setEmissionDate(new Date());
+                        certificate.setSignature(signer.sign(Integrity.generateDigest(certificate.getCertificateData())));
+                        return new CertificateEncoder().encode(certificate);
+                    }));
+                }
+                CertificateCache cache = new CertificateCache();
+                for (int i = 0; i < requests; i++) {
+                    assertEquals("user" + i, cache.verify(certificates.get(i).get(), ca.getPublic()));
+                }
+
+                assertAll(
+                        () -> assertEquals(requests, signer.getCertificateCount()),
+                        () -> assertTrue(signer.getBatchCount() < requests)
+                );
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("SigningService.java")
+    class testSigningService {
+
+        @Test
+        @DisplayName("Testing that the workers sign with the key of the CA and record the latency")
+        public void testSignatures() throws Exception {
+            KeyPair ca = Encryption.generateKeyPair();
+            try (SigningService service = new SigningService(ca.getPrivate(), new SigningService.Settings(2, 8, 5000))) {
+                byte[] digest = Integrity.generateDigest("certificate".getBytes());
+                byte[] signature = service.sign(digest);
+                SigningService.Metrics metrics = service.snapshot();
+
+                assertAll(
+                        () -> assertArrayEquals(digest, Encryption.decryptRSA(signature, ca.getPublic())),
+                        () -> assertEquals(1, metrics.signed()),
+                        () -> assertEquals(1, Arrays.stream(metrics.latencyHistogram()).sum()),
+                        () -> assertTrue(metrics.getLatencyPercentileMicros(99) > 0),
+                        () -> assertTrue(metrics.signaturesPerSecond() > 0),
+                        () -> assertEquals(0, service.getQueueDepth())
+                );
+            }
+        }
+
+        @Test
+        @DisplayName("Testing that an overloaded service rejects requests once the queue is full and times out the rest")
+        public void testOverload() throws Exception {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            SigningService.Signer blocked = digest -> {
+                started.countDown();
+                release.await();
+                return digest;
+            };
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try (SigningService service = new SigningService(blocked, new SigningService.Settings(1, 1, 200))) {
+                Future<byte[]> signing = executor.submit(() -> service.sign(new byte[]{1}));
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+                Future<byte[]> queued = executor.submit(() -> service.sign(new byte[]{2}));
+                long deadline = System.currentTimeMillis() + 5000;
+                while (service.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+
+                assertThrows(RejectedExecutionException.class, () -> service.sign(new byte[]{3}));
+                ExecutionException signingFailure = assertThrows(ExecutionException.class, signing::get);
+                ExecutionException queuedFailure = assertThrows(ExecutionException.class, queued::get);
+                release.countDown();
+                SigningService.Metrics metrics = service.snapshot();
+                assertAll(
+                        () -> assertInstanceOf(TimeoutException.class, signingFailure.getCause()),
+                        () -> assertInstanceOf(TimeoutException.class, queuedFailure.getCause()),
+                        () -> assertEquals(1, metrics.rejected()),
+                        () -> assertEquals(2, metrics.timedOut())
+                );
+            } finally {
+                release.countDown();
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: KeyMessage.java")
+    class testKeyMessage{
+        @Test
+        @DisplayName("Testing KeyPair Equality")
+        public void testingKeyMessage() throws Exception {
+            KeyPair keyPair = Encryption.generateKeyPair();
+            PublicKey publicKey = keyPair.getPublic();
+
+            KeyMessage keyMessage = new KeyMessage(publicKey, "recipient", "sender");
+
+            assertAll(
+                    () -> assertEquals(MessageTypes.KEY_MESSAGE, keyMessage.getMessageType()),
+                    () -> assertEquals(publicKey, keyMessage.getPublicKey())
+            );
+        }
+    }
+
+
+    @Nested
+    @DisplayName("Test: Message.java")
+    class testMessage {
+
+        private Message message;
+
+        @Test
+        @DisplayName("Test Message method")
+        void testMessageValue() {
+            byte[] messageByte = "Message".getBytes();
+            String recipient = "recipient";
+            String sender = "sender";
+            MessageTypes messageType = MessageTypes.USER_MESSAGE;
+            message = new Message(messageByte, recipient, sender,messageType);
+
+            assertAll(
+                    () -> assertEquals(messageByte, message.getMessage()),
+                    () -> assertEquals(recipient, message.getRecipient()),
+                    () -> assertEquals(sender, message.getSender()),
+                    () -> assertEquals(messageType, message.getMessageType())
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: SerialNumberGenerator.java")
+    class testSerialNumberGenerator {
+
+        @Test
+        @DisplayName(" Test Serial Number Generator ")
+        void testGenerateSerialNumber() {
+            SerialNumberGenerator generator = new SerialNumberGenerator();
+            BigInteger initialSerialNumber = generator.generateSerialNumber();
+            BigInteger newSerialNumber = generator.generateSerialNumber();
+
+            // Verify that the new serial number is one more than the initial serial number
+            assertAll(
+                    () -> assertEquals(initialSerialNumber.add(BigInteger.ONE), newSerialNumber)
+            );
+        }
+
+    }
+
+    @Nested
+    @DisplayName("Test: SessionManager.java")
+    class testSessionManager {
+
+        private final KeyPair aliceKeys = Encryption.generateKeyPair();
+        private final KeyPair bobKeys = Encryption.generateKeyPair();
+        private final KeyPair carolKeys = Encryption.generateKeyPair();
+
+        testSessionManager() throws Exception {
+        }
+
+        private SessionManager manager(String self, KeyPair keys, SessionManager.Limits limits) {
+            return new SessionManager(self, keys.getPrivate(), peer -> switch (peer) {
+                case "alice" -> aliceKeys.getPublic();
+                case "bob" -> bobKeys.getPublic();
+                case "carol" -> carolKeys.getPublic();
+                default -> null;
+            }, limits);
+        }
+
+        private void handshake(SessionManager initiator, SessionManager responder, String peer) throws Exception {
+            Message reply = responder.accept(initiator.initiate(peer));
+            assertNull(initiator.accept(reply));
+        }
+
+        @Test
+        @DisplayName("Testing a handshake and a message in each direction")
+        public void testRoundTrip() throws Exception {
+            SessionManager alice = manager("alice", aliceKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(100, 60_000));
+            assertFalse(alice.isReady("bob"));
+            handshake(alice, bob, "bob");
+
+            Message toBob = alice.seal("Hello, Bob!".getBytes(), List.of("bob"));
+            Message toAlice = bob.seal("Hello, Alice!".getBytes(), List.of("alice"));
+
+            assertAll(
+                    () -> assertTrue(alice.isReady("bob")),
+                    () -> assertTrue(bob.isReady("alice")),
+                    () -> assertEquals(MessageTypes.SESSION_MESSAGE, toBob.getMessageType()),
+                    () -> assertArrayEquals("Hello, Bob!".getBytes(), bob.open(toBob)),
+                    () -> assertArrayEquals("Hello, Alice!".getBytes(), alice.open(toAlice)),
+                    () -> assertEquals(1, alice.getHandshakeCount())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a message to several peers is sealed once and read by each of them")
+        public void testSeveralRecipients() throws Exception {
+            SessionManager alice = manager("alice", aliceKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager carol = manager("carol", carolKeys, new SessionManager.Limits(100, 60_000));
+            handshake(alice, bob, "bob");
+            handshake(alice, carol, "carol");
+
+            Message message = alice.seal("Hello, both!".getBytes(), List.of("bob", "carol"));
+
+            assertAll(
+                    () -> assertEquals("bob, carol", message.getRecipient()),
+                    () -> assertArrayEquals("Hello, both!".getBytes(), bob.open(message)),
+                    () -> assertArrayEquals("Hello, both!".getBytes(), carol.open(message)),
+                    () -> assertThrows(IllegalStateException.class, () -> bob.seal("Hi".getBytes(), List.of("carol")))
+            );
+        }
+
+        /**
+         * Splits a sealed payload into the recipient header and the body field.
+         */
+        private byte[][] split(Message sealed) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(sealed.getMessage()));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                in.readUTF();
+                in.readLong();
+                in.skipBytes(in.readInt());
+            }
+            int header = sealed.getMessage().length - in.available();
+            return new byte[][]{Arrays.copyOf(sealed.getMessage(), header), Arrays.copyOfRange(sealed.getMessage(), header, sealed.getMessage().length)};
+        }
+
+        @Test
+        @DisplayName("Testing that the body of a message to several peers cannot be swapped under the wrapped keys")
+        public void testSwappedBody() throws Exception {
+            SessionManager alice = manager("alice", aliceKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager carol = manager("carol", carolKeys, new SessionManager.Limits(100, 60_000));
+            handshake(alice, bob, "bob");
+            handshake(alice, carol, "carol");
+
+            byte[][] original = split(alice.seal("Meet at noon".getBytes(), List.of("bob", "carol")));
+            byte[][] other = split(alice.seal("Meet at five".getBytes(), List.of("bob", "carol")));
+            ByteArrayOutputStream swapped = new ByteArrayOutputStream();
+            swapped.write(original[0]);
+            swapped.write(other[1]);
+            Message forged = new Message(swapped.toByteArray(), "carol", "alice", MessageTypes.SESSION_MESSAGE);
+            Message resent = new Message(forged.getMessage(), "carol", "bob", MessageTypes.SESSION_MESSAGE);
+
+            assertAll(
+                    () -> assertEquals("The body was not sealed by alice",
+                            assertThrows(AEADBadTagException.class, () -> carol.open(forged)).getMessage()),
+                    () -> assertThrows(GeneralSecurityException.class, () -> carol.open(resent))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a message, alone or to several peers, is opened only once")
+        public void testReplay() throws Exception {
+            SessionManager alice = manager("alice", aliceKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager carol = manager("carol", carolKeys, new SessionManager.Limits(100, 60_000));
+            handshake(alice, bob, "bob");
+            handshake(alice, carol, "carol");
+
+            Message single = alice.seal("once".getBytes(), List.of("bob"));
+            Message several = alice.seal("once for both".getBytes(), List.of("bob", "carol"));
+            assertArrayEquals("once".getBytes(), bob.open(single));
+            assertArrayEquals("once for both".getBytes(), bob.open(several));
+
+            assertAll(
+                    () -> assertThrows(GeneralSecurityException.class, () -> bob.open(single)),
+                    () -> assertThrows(GeneralSecurityException.class, () -> bob.open(several)),
+                    () -> assertArrayEquals("once for both".getBytes(), carol.open(several))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a handshake signed by another key is rejected")
+        public void testForgedHandshake() throws Exception {
+            SessionManager mallory = manager("alice", carolKeys, new SessionManager.Limits(100, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(100, 60_000));
+
+            assertAll(
+                    () -> assertThrows(SignatureException.class, () -> bob.accept(mallory.initiate("bob"))),
+                    () -> assertFalse(bob.isReady("alice"))
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that a session is replaced once it reached its limit, and old messages stay readable")
+        public void testRotation() throws Exception {
+            SessionManager alice = manager("alice", aliceKeys, new SessionManager.Limits(2, 60_000));
+            SessionManager bob = manager("bob", bobKeys, new SessionManager.Limits(2, 60_000));
+            handshake(alice, bob, "bob");
+            Message first = alice.seal("one".getBytes(), List.of("bob"));
+            Message second = alice.seal("two".getBytes(), List.of("bob"));
+            assertFalse(alice.isReady("bob"));
+            handshake(alice, bob, "bob");
+            Message third = alice.seal("three".getBytes(), List.of("bob"));
+
+            assertAll(
+                    () -> assertEquals(1, alice.getRotationCount()),
+                    () -> assertArrayEquals("three".getBytes(), bob.open(third)),
+                    () -> assertArrayEquals("one".getBytes(), bob.open(first)),
+                    () -> assertArrayEquals("two".getBytes(), bob.open(second))
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("Test: PendingMessageQueue.java")
+    class testPendingMessageQueue {
+
+        private List<String> recipients(List<PendingMessageQueue.Entry> entries) {
+            return entries.stream().map(entry -> String.join("+", entry.recipients()) + ":" + new String(entry.message())).toList();
+        }
+
+        @Test
+        @DisplayName("Testing that a recipient without a session only holds back the messages addressed to it")
+        public void testPerRecipient() throws Exception {
+            PendingMessageQueue queue = new PendingMessageQueue(1000);
+            queue.add(List.of("bob"), "1".getBytes(), 0);
+            queue.add(List.of("carol"), "2".getBytes(), 0);
+            queue.add(List.of("bob", "carol"), "3".getBytes(), 0);
+            queue.add(List.of("carol"), "4".getBytes(), 0);
+
+            List<PendingMessageQueue.Entry> first = new ArrayList<>();
+            List<PendingMessageQueue.Entry> second = new ArrayList<>();
+            queue.drain(Set.of("carol")::contains, first::add, 10);
+            List<PendingMessageQueue.Entry> expired = queue.drain(Set.of("bob", "carol")::contains, second::add, 20);
+
+            assertAll(
+                    () -> assertEquals(List.of("carol:2"), recipients(first)),
+                    () -> assertEquals(List.of("bob:1", "bob+carol:3", "carol:4"), recipients(second)),
+                    () -> assertTrue(expired.isEmpty()),
+                    () -> assertEquals(0, queue.size())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that an expired message reaches the recipients with a session and reports the others")
+        public void testExpiry() throws Exception {
+            PendingMessageQueue queue = new PendingMessageQueue(1000);
+            queue.add(List.of("bob", "carol"), "1".getBytes(), 0);
+            queue.add(List.of("carol"), "2".getBytes(), 500);
+
+            List<PendingMessageQueue.Entry> early = new ArrayList<>();
+            List<PendingMessageQueue.Entry> late = new ArrayList<>();
+            List<PendingMessageQueue.Entry> earlyExpired = queue.drain(Set.of("carol")::contains, early::add, 999);
+            List<PendingMessageQueue.Entry> lateExpired = queue.drain(Set.of("carol")::contains, late::add, 1000);
+
+            assertAll(
+                    () -> assertTrue(early.isEmpty()),
+                    () -> assertTrue(earlyExpired.isEmpty()),
+                    () -> assertEquals(List.of("carol:1", "carol:2"), recipients(late)),
+                    () -> assertEquals(List.of("bob:1"), recipients(lateExpired)),
+                    () -> assertEquals(0, queue.size())
+            );
+        }
+
+        @Test
+        @DisplayName("Testing that messages beyond the limit of a session wait for the next session instead of failing")
+        public void testSessionLimit() throws Exception {
+            KeyPair aliceKeys = Encryption.generateKeyPair();
+            KeyPair bobKeys = Encryption.generateKeyPair();
+            SessionManager.Limits limits = new SessionManager.Limits(2, 60_000);
+            SessionManager alice = new SessionManager("alice", aliceKeys.getPrivate(), peer -> bobKeys.getPublic(), limits);
+            SessionManager bob = new SessionManager("bob", bobKeys.getPrivate(), peer -> aliceKeys.getPublic(), limits);
+            assertNull(alice.accept(bob.accept(alice.initiate("bob"))));
+            PendingMessageQueue queue = new PendingMessageQueue(1000);
+            for (String text : List.of("one", "two", "three")) {
+                queue.add(List.of("bob"), text.getBytes(), 0);
+            }
+            List<Message> sent = new ArrayList<>();
+            PendingMessageQueue.Sender sender = entry -> sent.add(alice.seal(entry.message(), entry.recipients()));
+
+            queue.drain(alice::isReady, sender, 10);
+            int beforeRekey = sent.size();
+            List<String> waiting = queue.recipients();
+            assertNull(alice.accept(bob.accept(alice.initiate("bob"))));
+            queue.drain(alice::isReady, sender, 20);
+            List<String> opened = new ArrayList<>();
+            for (Message message : sent) {
+                opened.add(new String(bob.open(message)));
+            }
+
+            assertAll(
+                    () -> assertEquals(2, beforeRekey),
+                    () -> assertEquals(List.of("bob"), waiting),
+                    () -> assertEquals(0, queue.size()),
+                    () -> assertEquals(List.of("one", "two", "three"), opened)
+            );
+        }
     }
 
     @Nested